@@ -20,7 +20,8 @@ public final class Pref {
                 resources.getString(R.string.preferences_chat_katex_key),
                 resources.getString(R.string.preferences_chat_delete_db_key),
                 resources.getString(R.string.preferences_chat_colorful_messages_key),
-                resources.getString(R.string.preferences_chat_db_max_search_result_key)
+                resources.getString(R.string.preferences_chat_benchmark_key),
+                resources.getString(R.string.preferences_chat_insert_benchmark_key)
         );
 
         General = new General(
@@ -53,9 +54,10 @@ public final class Pref {
         public final String KATEX;
         public final String DELETE_CHAT_DB;
         public final String COLORFUL_MESSAGES;
-        public final String DATABASE_MAX_SEARCH_RESULTS;
+        public final String BENCHMARK;
+        public final String INSERT_BENCHMARK;
 
-        private Chat(String NAME, String CHANNEL, String SHOW_SENSE, String PUBLIC_ID, String SHOW_LINKS, String KATEX, String DELETE_CHAT_DB, String COLORFUL_MESSAGES, String DATABASE_MAX_SEARCH_RESULTS) {
+        private Chat(String NAME, String CHANNEL, String SHOW_SENSE, String PUBLIC_ID, String SHOW_LINKS, String KATEX, String DELETE_CHAT_DB, String COLORFUL_MESSAGES, String BENCHMARK, String INSERT_BENCHMARK) {
             this.NAME = NAME;
             this.CHANNEL = CHANNEL;
             this.SHOW_SENSE = SHOW_SENSE;
@@ -64,7 +66,8 @@ public final class Pref {
             this.KATEX = KATEX;
             this.DELETE_CHAT_DB = DELETE_CHAT_DB;
             this.COLORFUL_MESSAGES = COLORFUL_MESSAGES;
-            this.DATABASE_MAX_SEARCH_RESULTS = DATABASE_MAX_SEARCH_RESULTS;
+            this.BENCHMARK = BENCHMARK;
+            this.INSERT_BENCHMARK = INSERT_BENCHMARK;
         }
     }
     public static final class General {
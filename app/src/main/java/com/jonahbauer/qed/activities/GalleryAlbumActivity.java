@@ -137,6 +137,7 @@ public class GalleryAlbumActivity extends AppCompatActivity implements QEDPageRe
 
         mImageGridView.setAdapter(mImageAdapter);
         mImageGridView.setOnItemClickListener(this);
+        mImageGridView.setOnScrollListener(mImageAdapter);
 
         mProgressBar = findViewById(R.id.progress_bar);
 
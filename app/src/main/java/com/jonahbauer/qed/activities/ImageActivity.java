@@ -5,7 +5,6 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -15,7 +14,6 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.Window;
-import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -34,6 +32,7 @@ import com.jonahbauer.qed.Pref;
 import com.jonahbauer.qed.R;
 import com.jonahbauer.qed.database.GalleryDatabase;
 import com.jonahbauer.qed.database.GalleryDatabaseReceiver;
+import com.jonahbauer.qed.layoutStuff.AdvancedImageView;
 import com.jonahbauer.qed.networking.QEDGalleryPages;
 import com.jonahbauer.qed.networking.QEDGalleryPages.Mode;
 import com.jonahbauer.qed.networking.QEDPageReceiver;
@@ -59,7 +58,7 @@ public class ImageActivity extends AppCompatActivity implements GalleryDatabaseR
 
     private Image mImage;
 
-    private ImageView mImageView;
+    private AdvancedImageView mImageView;
     private TextView mImageName;
     private TextView mImageError;
 
@@ -291,10 +290,8 @@ public class ImageActivity extends AppCompatActivity implements GalleryDatabaseR
         if (image.path != null && new File(image.path).exists()) {
             switch (type) {
                 case "image":
-                    Bitmap bmp = BitmapFactory.decodeFile(image.path);
-                    if (bmp != null) {
-                        mImageView.setImageBitmap(bmp);
-                    }
+                    Image shown = image;
+                    mImageView.setImageFile(image.path, () -> showThumbnail(shown));
                     break;
                 case "video":
                     mImageView.setImageDrawable(getDrawable(R.drawable.ic_gallery_video));
@@ -432,7 +429,7 @@ public class ImageActivity extends AppCompatActivity implements GalleryDatabaseR
 
         switch (getType(mImage)) {
             case "image":
-                mImageView.setImageBitmap(BitmapFactory.decodeFile(mImage.path));
+                mImageView.setImageFile(mImage.path, () -> showThumbnail(mImage));
                 break;
             case "video":
                 mImageView.setImageResource(R.drawable.ic_gallery_video);
@@ -492,23 +489,16 @@ public class ImageActivity extends AppCompatActivity implements GalleryDatabaseR
 
             switch (getType(mImage)) {
                 case "image":
-                    Bitmap bm;
-
-                    bm = BitmapFactory.decodeFile(mImage.path);
-                    if (bm != null) {
-                        mImageView.setImageBitmap(bm);
+                    if (mImage.path != null && new File(mImage.path).exists()) {
+                        String fallbackTitle = title + " (thumbnail)";
+                        mImageView.setImageFile(mImage.path, () -> {
+                            if (showThumbnail(mImage)) mImageName.setText(fallbackTitle);
+                        });
                         available = true;
                         break;
                     }
 
-                    bm = mGalleryDatabase.getThumbnail(mImage);
-                    if (bm != null) {
-                        mImageView.setImageBitmap(bm);
-                        title += " (thumbnail)";
-                        break;
-                    }
-
-                    mImageView.setImageResource(R.drawable.ic_gallery_empty_image);
+                    if (showThumbnail(mImage)) title += " (thumbnail)";
                     break;
                 case "audio":
                     if (mImage.path != null && new File(mImage.path).exists()) {
@@ -537,6 +527,22 @@ public class ImageActivity extends AppCompatActivity implements GalleryDatabaseR
         });
     }
 
+    /**
+     * Shows the stored thumbnail of the given image instead of the image, e.g. because the image file could not be
+     * decoded.
+     * @return true if there is a thumbnail, otherwise a placeholder is shown
+     */
+    private boolean showThumbnail(@NonNull Image image) {
+        Bitmap bm = mGalleryDatabase.getThumbnail(image);
+        if (bm != null) {
+            mImageView.setImageBitmap(bm);
+            return true;
+        }
+
+        mImageView.setImageResource(R.drawable.ic_gallery_empty_image);
+        return false;
+    }
+
     @Override
     public void onProgressUpdate(String tag, long done, long total) {
         if (done == total) {
@@ -1,5 +1,6 @@
 package com.jonahbauer.qed.activities;
 
+import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -8,11 +9,13 @@ import android.content.pm.ResolveInfo;
 import android.content.res.Configuration;
 import android.net.Uri;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.MenuItem;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.StringRes;
 import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
@@ -24,12 +27,15 @@ import androidx.preference.PreferenceFragmentCompat;
 import androidx.preference.PreferenceManager;
 import androidx.preference.SwitchPreference;
 
+import com.jonahbauer.qed.Application;
 import com.jonahbauer.qed.BuildConfig;
 import com.jonahbauer.qed.Pref;
 import com.jonahbauer.qed.R;
 import com.jonahbauer.qed.database.ChatDatabase;
+import com.jonahbauer.qed.database.ChatInsertBenchmark;
 import com.jonahbauer.qed.database.GalleryDatabase;
 import com.jonahbauer.qed.layoutStuff.SeekBarPreference;
+import com.jonahbauer.qed.networking.ChatFrameBenchmark;
 import com.jonahbauer.qed.pingNotifications.PingNotifications;
 
 import org.apache.commons.io.FileUtils;
@@ -37,6 +43,7 @@ import org.apache.commons.io.FileUtils;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.function.Supplier;
 
 public class SettingsActivity extends AppCompatActivity implements PreferenceFragmentCompat.OnPreferenceStartFragmentCallback  {
     private static final String SAVED_INSTANCE_CONTENT_KEY = "content";
@@ -208,6 +215,8 @@ public class SettingsActivity extends AppCompatActivity implements PreferenceFra
 
     public static class ChatPreferenceFragment extends PreferenceFragmentCompat implements Preference.OnPreferenceClickListener, Preference.OnPreferenceChangeListener {
         private Preference deleteDatabase;
+        private Preference benchmark;
+        private Preference insertBenchmark;
         private SwitchPreference katex;
         private SwitchPreference links;
 
@@ -233,6 +242,18 @@ public class SettingsActivity extends AppCompatActivity implements PreferenceFra
             if (deleteDatabase != null)
                 deleteDatabase.setOnPreferenceClickListener(this);
 
+            benchmark = findPreference(Pref.Chat.BENCHMARK);
+            if (benchmark != null && BuildConfig.DEBUG) {
+                benchmark.setVisible(true);
+                benchmark.setOnPreferenceClickListener(this);
+            }
+
+            insertBenchmark = findPreference(Pref.Chat.INSERT_BENCHMARK);
+            if (insertBenchmark != null && BuildConfig.DEBUG) {
+                insertBenchmark.setVisible(true);
+                insertBenchmark.setOnPreferenceClickListener(this);
+            }
+
             SeekBarPreference maxShownRows = findPreference("maxEntries");
             if (maxShownRows != null) {
                 maxShownRows.setOnPreferenceChangeListener(this);
@@ -267,10 +288,45 @@ public class SettingsActivity extends AppCompatActivity implements PreferenceFra
                 });
                 alertDialog.show();
                 return true;
+            } else if (preference.equals(benchmark)) {
+                Context applicationContext = context.getApplicationContext();
+                runBenchmark(benchmark, () -> ChatFrameBenchmark.run(applicationContext), R.string.benchmark_no_messages);
+                return true;
+            } else if (preference.equals(insertBenchmark)) {
+                Context applicationContext = context.getApplicationContext();
+                runBenchmark(insertBenchmark, () -> ChatInsertBenchmark.run(applicationContext), R.string.benchmark_no_messages);
+                return true;
             }
             return false;
         }
 
+        /**
+         * Runs a benchmark on a background thread and shows its result in a dialog.
+         * @param benchmark returns the result or null if there is no data to run the benchmark on
+         * @param noData the message shown if there is no data
+         */
+        private void runBenchmark(@NonNull Preference preference, @NonNull Supplier<String> benchmark, @StringRes int noData) {
+            preference.setEnabled(false);
+            new Thread(() -> {
+                String result = benchmark.get();
+                if (result != null) Log.d(Application.LOG_TAG_DEBUG, preference.getTitle() + ": " + result);
+
+                Activity activity = getActivity();
+                if (activity == null) return;
+                activity.runOnUiThread(() -> {
+                    preference.setEnabled(true);
+                    if (result == null) {
+                        Toast.makeText(activity, noData, Toast.LENGTH_SHORT).show();
+                    } else {
+                        new AlertDialog.Builder(activity)
+                                .setTitle(preference.getTitle())
+                                .setMessage(result)
+                                .show();
+                    }
+                });
+            }, "Benchmark").start();
+        }
+
         @Override
         public boolean onPreferenceChange(Preference preference, Object newValue) {
             if (preference.equals(katex)) {
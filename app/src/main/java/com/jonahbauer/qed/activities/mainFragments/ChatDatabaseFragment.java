@@ -1,8 +1,6 @@
 package com.jonahbauer.qed.activities.mainFragments;
 
 import android.app.Activity;
-import android.content.Context;
-import android.content.SharedPreferences;
 import android.graphics.drawable.Animatable;
 import android.os.Bundle;
 import android.view.View;
@@ -10,7 +8,6 @@ import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.EditText;
-import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
@@ -18,35 +15,51 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.StyleRes;
 import androidx.appcompat.widget.Toolbar;
-import androidx.preference.PreferenceManager;
+import androidx.recyclerview.widget.RecyclerView;
 
-import com.jonahbauer.qed.Pref;
 import com.jonahbauer.qed.R;
 import com.jonahbauer.qed.activities.MainActivity;
 import com.jonahbauer.qed.activities.messageInfoSheet.MessageInfoBottomSheet;
+import com.jonahbauer.qed.chat.ChatDate;
 import com.jonahbauer.qed.chat.Message;
 import com.jonahbauer.qed.chat.MessageAdapter;
+import com.jonahbauer.qed.chat.MessageStore;
 import com.jonahbauer.qed.database.ChatDatabase;
+import com.jonahbauer.qed.database.ChatDatabaseContract.ChatFtsEntry;
 import com.jonahbauer.qed.database.ChatDatabaseReceiver;
+import com.jonahbauer.qed.layoutStuff.MessageListView;
 import com.szagurskii.patternedtextwatcher.PatternedTextWatcher;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.regex.Pattern;
 
 import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_CHANNEL;
 import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_DATE;
 import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_ID;
-import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_MESSAGE;
-import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_NAME;
-import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.TABLE_NAME;
 
 
 public class ChatDatabaseFragment extends QEDFragment implements CompoundButton.OnCheckedChangeListener, ChatDatabaseReceiver {
+    private static final int PAGE_SIZE = 500;
+    private static final int PREFETCH_DISTANCE = 100;
+
+    /**
+     * The maximum number of results kept in memory. Pages scrolled past are dropped and loaded again when scrolling
+     * back.
+     */
+    private static final int MAX_LOADED = 4 * PAGE_SIZE;
+
+    /**
+     * Separates the words of a search, characters with a special meaning in full text queries are dropped with it
+     */
+    private static final Pattern TOKEN_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
     private ChatDatabase mDatabase;
     private MessageAdapter mMessageAdapter;
 
-    private ListView mMessageListView;
+    private MessageListView mMessageListView;
     private View mExpandable;
     private Button mSearchButton;
     private ProgressBar mSearchProgress;
@@ -64,7 +77,33 @@ public class ChatDatabaseFragment extends QEDFragment implements CompoundButton.
     private EditText mIdEditText;
     private TextView mHitsView;
 
-    private SharedPreferences mSharedPreferences;
+    private String mSelection;
+    private String[] mSelectionArgs;
+    private long mFirstId;
+    private long mLastId;
+    private boolean mLoading;
+    private boolean mLoadingBefore;
+    private boolean mExhausted;
+
+    /**
+     * Whether results before the first loaded one have been dropped
+     */
+    private boolean mTruncated;
+
+    /**
+     * The ids of the best results of a keyword-only search ordered by relevance or null for other searches. Pages of
+     * ranked results are addressed by their position in the ranking.
+     */
+    private long[] mRanking;
+    private int mRankStart;
+    private int mRankEnd;
+    private int mRequestStart;
+    private int mRequestEnd;
+
+    /**
+     * The first page of a new search replaces the previous results instead of being appended to them
+     */
+    private boolean mReplaceResults;
 
     @NonNull
     public static ChatDatabaseFragment newInstance(@StyleRes int themeId) {
@@ -78,13 +117,6 @@ public class ChatDatabaseFragment extends QEDFragment implements CompoundButton.
         return fragment;
     }
 
-    @Override
-    public void onAttach(@NonNull Context context) {
-        super.onAttach(context);
-
-        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
-    }
-
     @Override
     public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
         mMessageListView = view.findViewById(R.id.message_list_view);
@@ -109,19 +141,33 @@ public class ChatDatabaseFragment extends QEDFragment implements CompoundButton.
         mDatabase = new ChatDatabase();
         mDatabase.init(requireContext(), this);
 
-        mMessageAdapter = new MessageAdapter(requireContext(), new ArrayList<>(), null, false, null, true);
-        mMessageListView.setOnItemClickListener((adapterView, view1, i, l) -> setChecked(i, false));
-        mMessageListView.setOnItemLongClickListener((adapterView, view1, i, l) -> {
-            if (!mMessageListView.isItemChecked(i)) {
-                int checked = mMessageListView.getCheckedItemPosition();
-                if (checked != -1) setChecked(checked, false);
+        mMessageAdapter = new MessageAdapter(requireContext(), new MessageStore(), false, null, true);
+        mMessageAdapter.setOnItemClickListener(new MessageAdapter.OnItemClickListener() {
+            @Override
+            public void onItemClick(int position) {
+                setChecked(position, false);
+            }
+
+            @Override
+            public boolean onItemLongClick(int position) {
+                if (!mMessageAdapter.isItemChecked(position)) {
+                    int checked = mMessageAdapter.getCheckedItemPosition();
+                    if (checked != -1) setChecked(checked, false);
 
-                setChecked(i, true);
-                return true;
-            } else return false;
+                    setChecked(position, true);
+                    return true;
+                } else return false;
+            }
         });
 
         mMessageListView.setAdapter(mMessageAdapter);
+        mMessageListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (mMessageListView.getLastVisiblePosition() + 1 >= mMessageAdapter.getItemCount() - PREFETCH_DISTANCE) loadNextPage();
+                if (mMessageListView.getFirstVisiblePosition() < PREFETCH_DISTANCE) loadPreviousPage();
+            }
+        });
         mSearchButton.setOnClickListener(a -> search());
 
         expandCheckBox.setOnCheckedChangeListener(this);
@@ -151,7 +197,7 @@ public class ChatDatabaseFragment extends QEDFragment implements CompoundButton.
      * @param value if the item is checked or not
      */
     private void setChecked(int position, boolean value) {
-        mMessageListView.setItemChecked(position, value);
+        mMessageAdapter.setItemChecked(position, value);
 
         Activity activity = getActivity();
         if (activity instanceof MainActivity) {
@@ -161,7 +207,7 @@ public class ChatDatabaseFragment extends QEDFragment implements CompoundButton.
                 Message msg = mMessageAdapter.getItem(position);
 
                 Toolbar toolbar = mainActivity.borrowAltToolbar();
-                toolbar.setNavigationOnClickListener(v -> setChecked(position, false));
+                toolbar.setNavigationOnClickListener(v -> setChecked(mMessageAdapter.getCheckedItemPosition(), false));
 
                 toolbar.inflateMenu(R.menu.menu_message);
                 toolbar.setOnMenuItemClickListener(item -> {
@@ -230,29 +276,32 @@ public class ChatDatabaseFragment extends QEDFragment implements CompoundButton.
     }
 
     private void search() {
-        // TODO not SQL injection safe !!!
         if (!checkFilters()) return;
 
         ArrayList<String> filters = new ArrayList<>();
+        ArrayList<String> args = new ArrayList<>();
 
-        StringBuilder dateFromEditTextBuilder = new StringBuilder(mDateFromEditText.getText().toString());
-        while (dateFromEditTextBuilder.length() < 4) {
-            dateFromEditTextBuilder.append("0");
-        }
-        if (dateFromEditTextBuilder.length() == 4) dateFromEditTextBuilder.append("-");
+        StringBuilder match = new StringBuilder();
+        if (mMessageCheckBox.isChecked()) appendMatch(match, ChatFtsEntry.COLUMN_NAME_MESSAGE, mMessageEditText.getText().toString());
+        if (mNameCheckBox.isChecked()) appendMatch(match, ChatFtsEntry.COLUMN_NAME_NAME, mNameEditText.getText().toString());
 
-        StringBuilder dateToEditTextBuilder = new StringBuilder(mDateToEditText.getText().toString());
-        while (dateToEditTextBuilder.length() < 4) {
-            dateToEditTextBuilder.append("0");
+        if (match.length() > 0) {
+            filters.add("(" + COLUMN_NAME_ID + " IN (SELECT " + ChatFtsEntry.COLUMN_NAME_DOCID + " FROM " + ChatFtsEntry.TABLE_NAME
+                    + " WHERE " + ChatFtsEntry.TABLE_NAME + " MATCH ?))");
+            args.add(match.toString());
+        }
+        if (mChannelCheckBox.isChecked()) {
+            filters.add("(" + COLUMN_NAME_CHANNEL + " = ?)");
+            args.add(mChannelEditText.getText().toString());
+        }
+        if (mDateFromCheckBox.isChecked()) {
+            filters.add("(" + COLUMN_NAME_DATE + " >= ?)");
+            args.add(String.valueOf(parseDateBound(mDateFromEditText.getText().toString(), false)));
+        }
+        if (mDateToCheckBox.isChecked()) {
+            filters.add("(" + COLUMN_NAME_DATE + " < ?)");
+            args.add(String.valueOf(parseDateBound(mDateToEditText.getText().toString(), true)));
         }
-        if (dateToEditTextBuilder.length() == 4) dateToEditTextBuilder.append("-");
-
-
-        if (mChannelCheckBox.isChecked()) filters.add("(" + COLUMN_NAME_CHANNEL + " = '" + mChannelEditText.getText().toString() + "')");
-        if (mMessageCheckBox.isChecked()) filters.add("(" + COLUMN_NAME_MESSAGE + " LIKE '%" + mMessageEditText.getText().toString() + "%')");
-        if (mNameCheckBox.isChecked()) filters.add("(" + COLUMN_NAME_NAME + " LIKE '%" + mNameEditText.getText().toString() + "%')");
-        if (mDateFromCheckBox.isChecked()) filters.add("(" + COLUMN_NAME_DATE + " >= '" + dateFromEditTextBuilder.toString() + "')");
-        if (mDateToCheckBox.isChecked()) filters.add("(" + COLUMN_NAME_DATE + " <= '" + dateToEditTextBuilder.toString() + "')");
         if (mIdCheckBox.isChecked()) {
             String idText = mIdEditText.getText().toString();
             if (!idText.equals("")) {
@@ -266,32 +315,140 @@ public class ChatDatabaseFragment extends QEDFragment implements CompoundButton.
                 if (id.length > 0 && !id[0].isEmpty()) idFrom = Integer.parseInt(id[0]);
                 if (id.length > 1 && !id[1].isEmpty()) idTo = Integer.parseInt(id[1]);
 
-                if (idFrom != -1)
-                    filters.add("(" + COLUMN_NAME_ID + " >= '" + idFrom + "')");
-                if (idTo != -1)
-                    filters.add("(" + COLUMN_NAME_ID + " <= '" + idTo + "')");
+                if (idFrom != -1) {
+                    filters.add("(" + COLUMN_NAME_ID + " >= ?)");
+                    args.add(String.valueOf(idFrom));
+                }
+                if (idTo != -1) {
+                    filters.add("(" + COLUMN_NAME_ID + " <= ?)");
+                    args.add(String.valueOf(idTo));
+                }
             }
         }
 
-        StringBuilder sql = new StringBuilder("SELECT * FROM " + TABLE_NAME);
-        for (int i = 0; i < filters.size(); i++) {
-            if (i == 0) sql.append(" WHERE ").append(filters.get(i));
-            else sql.append(" AND ").append(filters.get(i));
-        }
-        sql.append(" ORDER BY ").append(COLUMN_NAME_ID).append(" ASC");
+        // keyword-only searches are ordered by relevance, all others chronologically
+        boolean ranked = match.length() > 0 && filters.size() == 1;
+
+        mDatabase.cancelQueries();
 
-        int limit = mSharedPreferences.getInt(Pref.Chat.DATABASE_MAX_SEARCH_RESULTS, 50000);
-        sql.append(" LIMIT ").append(limit).append(";");
+        mSelection = filters.isEmpty() ? null : String.join(" AND ", filters);
+        mSelectionArgs = args.toArray(new String[0]);
+        mFirstId = mLastId = Long.MIN_VALUE;
+        mLoading = false;
+        mLoadingBefore = false;
+        mExhausted = false;
+        mTruncated = false;
+        mRanking = null;
+        mRankStart = mRankEnd = 0;
 
-        mMessageAdapter.clear();
+        // the previous results are kept until the first page arrives so that only changed rows are rebound
+        int checked = mMessageAdapter.getCheckedItemPosition();
+        if (checked != -1) setChecked(checked, false);
+        mReplaceResults = true;
+        mMessageAdapter.reload();
+        mHitsView.setText("");
 
         mSearchProgress.setVisibility(View.VISIBLE);
         mMessageListView.setVisibility(View.GONE);
         mSearchButton.setEnabled(false);
 
-        mDatabase.query(sql.toString(), null);
+        mDatabase.count(mSelection, mSelectionArgs);
+        if (ranked) {
+            // pages are loaded once the ranking arrives
+            mLoading = true;
+            mDatabase.rank(match.toString());
+        } else {
+            loadNextPage();
+        }
+    }
+
+    /**
+     * Loads the next page of search results unless a page is already being loaded or all results have been loaded.
+     */
+    private void loadNextPage() {
+        if (mLoading || mExhausted || mSelectionArgs == null) return;
+
+        mLoading = true;
+        if (mRanking != null) {
+            mRequestStart = mRankEnd;
+            mRequestEnd = Math.min(mRankEnd + PAGE_SIZE, mRanking.length);
+            mDatabase.query(Arrays.copyOfRange(mRanking, mRequestStart, mRequestEnd));
+        } else {
+            mDatabase.query(mSelection, mSelectionArgs, mLastId, PAGE_SIZE);
+        }
+    }
+
+    /**
+     * Loads the page of search results preceding the first loaded result again after it has been dropped.
+     */
+    private void loadPreviousPage() {
+        if (mLoading || !mTruncated || mSelectionArgs == null) return;
+
+        mLoading = true;
+        mLoadingBefore = true;
+        if (mRanking != null) {
+            mRequestStart = Math.max(0, mRankStart - PAGE_SIZE);
+            mRequestEnd = mRankStart;
+            mDatabase.query(Arrays.copyOfRange(mRanking, mRequestStart, mRequestEnd));
+        } else {
+            mDatabase.queryBefore(mSelection, mSelectionArgs, mFirstId, PAGE_SIZE);
+        }
+    }
+
+    /**
+     * Appends a full text query to the given builder that matches all words of the given text as prefixes in the
+     * given column. Characters with a special meaning in full text queries are dropped.
+     */
+    private static void appendMatch(@NonNull StringBuilder match, @NonNull String column, @NonNull String text) {
+        for (String token : TOKEN_SEPARATOR.split(text)) {
+            if (token.isEmpty()) continue;
+
+            if (match.length() > 0) match.append(' ');
+            match.append(column).append(':').append(token).append('*');
+        }
     }
     
+    /**
+     * @return whether the given text contains a word to search for, see {@link #appendMatch(StringBuilder, String, String)}
+     */
+    private static boolean hasTokens(@NonNull String text) {
+        for (String token : TOKEN_SEPARATOR.split(text)) {
+            if (!token.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Converts a possibly incomplete date of the format {@code yyyy-MM-dd HH:mm:ss} to seconds since the epoch.
+     * Incomplete fields are padded with zeros like in {@link #checkFilters()}.
+     * @param end whether to return the (exclusive) end of the period described by the date instead of its start
+     * @see ChatDate
+     */
+    private static long parseDateBound(@NonNull String text, boolean end) {
+        int[] fields = {0, 1, 1, 0, 0, 0};
+        int[] widths = {4, 2, 2, 2, 2, 2};
+
+        String[] parts = text.split("[^\\d]");
+        int count = 0;
+        for (int i = 0; i < parts.length && i < fields.length; i++) {
+            if (parts[i].isEmpty()) break;
+
+            StringBuilder part = new StringBuilder(parts[i]);
+            while (part.length() < widths[i]) part.append("0");
+            fields[i] = Integer.parseInt(part.toString());
+            count++;
+        }
+        if (fields[1] < 1) fields[1] = 1;
+        if (fields[2] < 1) fields[2] = 1;
+
+        if (end) {
+            if (count == 0) return Long.MAX_VALUE;
+            fields[count - 1]++;
+        }
+
+        return ChatDate.toEpoch(fields[0], fields[1], fields[2], fields[3], fields[4], fields[5]);
+    }
+
     private boolean checkFilters() {
         boolean error = false;
         boolean localError;
@@ -300,6 +457,16 @@ public class ChatDatabaseFragment extends QEDFragment implements CompoundButton.
         mMessageEditText.post(() -> mMessageEditText.setCompoundDrawablesWithIntrinsicBounds(0,0,0,0));
         mNameEditText.post(() -> mNameEditText.setCompoundDrawablesWithIntrinsicBounds(0,0,0,0));
 
+        // text without a single word would not filter at all
+        if (mMessageCheckBox.isChecked() && !hasTokens(mMessageEditText.getText().toString())) {
+            error = true;
+            mMessageEditText.post(() -> mMessageEditText.setCompoundDrawablesWithIntrinsicBounds(0, 0, R.drawable.ic_error_red, 0));
+        }
+        if (mNameCheckBox.isChecked() && !hasTokens(mNameEditText.getText().toString())) {
+            error = true;
+            mNameEditText.post(() -> mNameEditText.setCompoundDrawablesWithIntrinsicBounds(0, 0, R.drawable.ic_error_red, 0));
+        }
+
         if (mDateFromCheckBox.isChecked()) {
             localError = false;
             try {
@@ -447,28 +614,128 @@ public class ChatDatabaseFragment extends QEDFragment implements CompoundButton.
 
     @Override
     public void onReceiveResult(@NonNull List<Message> messages) {
-        String hits = messages.size() + " " + getString(R.string.database_hits);
+        boolean before = mLoadingBefore;
+        mLoading = false;
+        mLoadingBefore = false;
 
-        mHandler.post(() -> {
-            mSearchProgress.setVisibility(View.GONE);
-            mMessageListView.setVisibility(View.VISIBLE);
-            mSearchButton.setEnabled(true);
-            mHitsView.setText(hits);
-        });
+        mSearchProgress.setVisibility(View.GONE);
+        mMessageListView.setVisibility(View.VISIBLE);
+        mSearchButton.setEnabled(true);
 
-        mMessageListView.post(() -> {
-            messages.forEach(mMessageAdapter::add);
-            mMessageAdapter.notifyDataSetChanged();
-        });
+        if (mRanking != null) {
+            if (before) mRankStart = mRequestStart;
+            else mRankEnd = mRequestEnd;
+        }
+
+        int dropped = showResults(messages, before);
+
+        // ranked results are addressed by their position in the ranking instead of their id
+        if (mRanking != null) {
+            if (before) mRankEnd -= dropped;
+            else mRankStart += dropped;
+
+            mTruncated = mRankStart > 0;
+            mExhausted = mRankEnd >= mRanking.length;
+        }
+    }
+
+    /**
+     * Adds a page of results to the loaded results, dropping results at the other end if there are too many.
+     * @param before whether the page precedes the loaded results
+     * @return the number of results dropped
+     */
+    private int showResults(@NonNull List<Message> messages, boolean before) {
+        if (before) {
+            if (messages.size() < PAGE_SIZE) mTruncated = false;
+        } else {
+            if (messages.size() < PAGE_SIZE) mExhausted = true;
+        }
+
+        if (mReplaceResults) {
+            mReplaceResults = false;
+            if (!messages.isEmpty()) {
+                mFirstId = messages.get(0).id;
+                mLastId = messages.get(messages.size() - 1).id;
+            }
+
+            MessageStore results = new MessageStore();
+            results.addAll(messages);
+            mMessageAdapter.setData(results, () -> mMessageListView.scrollToPosition(0));
+            return 0;
+        }
+
+        if (messages.isEmpty()) return 0;
+
+        List<Message> loaded = mMessageAdapter.getMessages();
+        if (before) {
+            // drop the last results to make room, they are loaded again when scrolling down
+            int keep = Math.min(loaded.size(), MAX_LOADED - messages.size());
+            int drop = loaded.size() - keep;
+            if (drop > 0) {
+                mExhausted = false;
+                mLastId = loaded.get(keep - 1).id;
+                uncheckDropped(keep, loaded.size());
+                mMessageAdapter.removeLast(drop);
+            }
+            mFirstId = messages.get(0).id;
+
+            mMessageAdapter.prependAll(messages);
+            return drop;
+        } else {
+            mLastId = messages.get(messages.size() - 1).id;
+
+            // drop the first results to make room, they are loaded again when scrolling up
+            int drop = Math.max(0, loaded.size() + messages.size() - MAX_LOADED);
+            if (drop > 0) {
+                mTruncated = true;
+                mFirstId = loaded.get(drop).id;
+                uncheckDropped(0, drop);
+                mMessageAdapter.removeFirst(drop);
+            }
+
+            mMessageAdapter.addAll(messages);
+            return drop;
+        }
+    }
+
+    /**
+     * Unchecks the checked result if it is in the given range of positions that are about to be dropped
+     */
+    private void uncheckDropped(int from, int to) {
+        int checked = mMessageAdapter.getCheckedItemPosition();
+        if (checked >= from && checked < to) setChecked(checked, false);
+    }
+
+    @Override
+    public void onReceiveCount(long count) {
+        mHitsView.setText(count + " " + getString(R.string.database_hits));
+    }
+
+    @Override
+    public void onReceiveRanking(@NonNull long[] ids) {
+        mRanking = ids;
+        mRankStart = mRankEnd = 0;
+        mLoading = false;
+
+        if (ids.length == 0) onReceiveResult(new ArrayList<>());
+        else loadNextPage();
     }
 
     @Override
     public void onDatabaseError() {
-        mHandler.post(() -> {
-            mSearchProgress.setVisibility(View.GONE);
-            mMessageListView.setVisibility(View.VISIBLE);
-            mSearchButton.setEnabled(true);
-        });
+        if (mLoadingBefore) mTruncated = false;
+        else mExhausted = true;
+        mLoading = false;
+        mLoadingBefore = false;
+
+        if (mReplaceResults) {
+            mReplaceResults = false;
+            mMessageAdapter.clear();
+        }
+
+        mSearchProgress.setVisibility(View.GONE);
+        mMessageListView.setVisibility(View.VISIBLE);
+        mSearchButton.setEnabled(true);
     }
 
     @Override
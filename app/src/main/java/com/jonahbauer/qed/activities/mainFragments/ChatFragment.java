@@ -10,16 +10,14 @@ import android.content.res.Resources;
 import android.graphics.drawable.Animatable;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AbsListView;
 import android.widget.EditText;
 import android.widget.ImageButton;
-import android.widget.LinearLayout;
-import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.Toast;
 
@@ -27,30 +25,41 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.StyleRes;
 import androidx.appcompat.widget.Toolbar;
+import androidx.lifecycle.Lifecycle;
 import androidx.preference.PreferenceManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
+import com.jonahbauer.qed.Application;
+import com.jonahbauer.qed.BuildConfig;
 import com.jonahbauer.qed.NetworkListener;
 import com.jonahbauer.qed.Pref;
 import com.jonahbauer.qed.R;
 import com.jonahbauer.qed.activities.MainActivity;
 import com.jonahbauer.qed.activities.messageInfoSheet.MessageInfoBottomSheet;
+import com.jonahbauer.qed.chat.ChatSnapshot;
 import com.jonahbauer.qed.chat.Message;
 import com.jonahbauer.qed.chat.MessageAdapter;
 import com.jonahbauer.qed.database.ChatDatabase;
+import com.jonahbauer.qed.database.ChatDatabaseWriter;
+import com.jonahbauer.qed.layoutStuff.MessageListView;
 import com.jonahbauer.qed.networking.ChatWebSocket;
 import com.jonahbauer.qed.networking.ChatWebSocketListener;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
-public class ChatFragment extends QEDFragment implements NetworkListener, AbsListView.OnScrollListener, ChatWebSocketListener {
+public class ChatFragment extends QEDFragment implements NetworkListener, ChatWebSocketListener {
     private Resources mRes;
     private ChatDatabase mDatabase;
+    private ChatDatabaseWriter mDatabaseWriter;
     private SharedPreferences mSharedPreferences;
 
     private final Object mSocketLock = new Object();
@@ -58,13 +67,14 @@ public class ChatFragment extends QEDFragment implements NetworkListener, AbsLis
     private MessageAdapter mMessageAdapter;
 
     private boolean mInitDone = false;
+    private volatile boolean mLoaded = false;
     private List<Message> mInitMessages;
 
     private long mTopPosition = Long.MAX_VALUE;
     private long mLastPostId;
 
     private FloatingActionButton mScrollDownButton;
-    private ListView mMessageListView;
+    private MessageListView mMessageListView;
     private ProgressBar mProgressBar;
     private EditText mMessageEditText;
     private ImageButton mSendButton;
@@ -97,7 +107,6 @@ public class ChatFragment extends QEDFragment implements NetworkListener, AbsLis
 
     @Override
     public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
-        LinearLayout mathPreload = view.findViewById(R.id.math_preload);
         mScrollDownButton = view.findViewById(R.id.scroll_down_Button);
         mMessageListView = view.findViewById(R.id.messageBox);
         mProgressBar = view.findViewById(R.id.progress_bar);
@@ -180,19 +189,31 @@ public class ChatFragment extends QEDFragment implements NetworkListener, AbsLis
             mShowQuickSettings = !mShowQuickSettings;
         });
 
-//        messageAdapter = new MessageAdapter(view.getContext(), new ArrayList<>(), mSharedPreferences.getBoolean(Pref.Chat.KATEX, false), mMathPreload);
-        mMessageAdapter = new MessageAdapter(view.getContext(), new ArrayList<>(), mathPreload);
+        mMessageAdapter = new MessageAdapter(view.getContext(), new ArrayList<>());
         mMessageListView.setAdapter(mMessageAdapter);
-        mMessageListView.setOnScrollListener(this);
-        mMessageListView.setOnItemClickListener((adapterView, view1, i, l) -> setChecked(i, false));
-        mMessageListView.setOnItemLongClickListener((adapterView, view1, i, l) -> {
-            if (!mMessageListView.isItemChecked(i)) {
-                int checked = mMessageListView.getCheckedItemPosition();
-                if (checked != -1) setChecked(checked, false);
-
-                setChecked(i, true);
-                return true;
-            } else return false;
+        mMessageListView.setAutoScroll(true);
+        mMessageListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                updateScrollDownButton();
+            }
+        });
+        mMessageAdapter.setOnItemClickListener(new MessageAdapter.OnItemClickListener() {
+            @Override
+            public void onItemClick(int position) {
+                setChecked(position, false);
+            }
+
+            @Override
+            public boolean onItemLongClick(int position) {
+                if (!mMessageAdapter.isItemChecked(position)) {
+                    int checked = mMessageAdapter.getCheckedItemPosition();
+                    if (checked != -1) setChecked(checked, false);
+
+                    setChecked(position, true);
+                    return true;
+                } else return false;
+            }
         });
         mInitMessages = new LinkedList<>();
 
@@ -200,6 +221,7 @@ public class ChatFragment extends QEDFragment implements NetworkListener, AbsLis
 
         mDatabase = new ChatDatabase();
         mDatabase.init(getContext(), null);
+        mDatabaseWriter = ChatDatabaseWriter.getInstance(view.getContext());
 
         setHasOptionsMenu(true);
     }
@@ -233,7 +255,7 @@ public class ChatFragment extends QEDFragment implements NetworkListener, AbsLis
      * @param value if the item is checked or not
      */
     private void setChecked(int position, boolean value) {
-        mMessageListView.setItemChecked(position, value);
+        mMessageAdapter.setItemChecked(position, value);
 
         Activity activity = getActivity();
         if (activity instanceof MainActivity) {
@@ -266,14 +288,15 @@ public class ChatFragment extends QEDFragment implements NetworkListener, AbsLis
 
     @Override
     public void revokeAltToolbar() {
-        int checked = mMessageListView.getCheckedItemPosition();
+        int checked = mMessageAdapter.getCheckedItemPosition();
         if (checked != -1) setChecked(checked, false);
     }
 
     @Override
     public void onStart() {
         super.onStart();
-        reload();
+        if (mLoaded) resume();
+        else restore();
     }
 
 //    @Override
@@ -286,6 +309,8 @@ public class ChatFragment extends QEDFragment implements NetworkListener, AbsLis
     public void onStop() {
         super.onStop();
         if (mWebSocket != null) mWebSocket.closeSocket();
+        if (mDatabaseWriter != null) mDatabaseWriter.flush();
+        if (mLoaded) saveSnapshot();
     }
 
     @Override
@@ -311,44 +336,135 @@ public class ChatFragment extends QEDFragment implements NetworkListener, AbsLis
 
         assert getActivity() != null;
 
+        int checked = mMessageAdapter.getCheckedItemPosition();
+        if (checked != -1) mMessageAdapter.setItemChecked(checked, false);
+
+        // the old posts are kept in the adapter so that only changed rows are rebound once the chat is loaded
+        mLoaded = false;
         mInitMessages.clear();
-        mMessageAdapter.clear();
+        mMessageAdapter.reload();
         mInitDone = false;
         mProgressBar.setVisibility(View.VISIBLE);
         mMessageListView.setVisibility(View.GONE);
 
-        initSocket();
+        initSocket(ChatWebSocket::openSocket);
         if (mMessageEditText != null) {
             mMessageEditText.setEnabled(true);
             mMessageEditText.post(() -> mMessageEditText.setCompoundDrawablesWithIntrinsicBounds(0,0,0,0));
         }
         if (mSendButton != null) mSendButton.setEnabled(true);
 
-        mMessageAdapter.notifyDataSetChanged();
-
         if (mRefreshButton != null) mRefreshButton.setEnabled(true);
     }
 
     /**
-     * Appends the given message to the {@link #mMessageListView}. The post will also be written to the chat database
+     * Reconnects to the chat web socket without clearing the posts already shown. Only posts newer than the last post
+     * received are requested from the server.
+     */
+    private void resume() {
+        mNetworkError.set(false);
+        setConnected(false);
+
+        initSocket(ChatWebSocket::resumeSocket);
+    }
+
+    /**
+     * Shows the posts from the snapshot of the current channel and resumes the chat after them. When there is no
+     * snapshot the chat is {@linkplain #reload() reloaded}.
+     */
+    private void restore() {
+        Context context = getContext();
+        if (context == null) return;
+
+        File file = ChatSnapshot.getSnapshotFile(context, mSharedPreferences.getString(Pref.Chat.CHANNEL, ""));
+        new Thread(() -> {
+            List<Message> snapshot = ChatSnapshot.read(file);
+            mHandler.post(() -> {
+                // the chat is restored again when the fragment is started the next time
+                if (mLoaded || !isAdded() || !getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.STARTED)) return;
+
+                if (snapshot == null || snapshot.isEmpty()) {
+                    reload();
+                    return;
+                }
+
+                if (BuildConfig.DEBUG) Log.d(Application.LOG_TAG_DEBUG, "Chat: restored " + snapshot.size() + " posts from snapshot");
+
+                mNetworkError.set(false);
+                mInitMessages.clear();
+                mMessageAdapter.setData(snapshot, () -> {
+                    mMessageListView.setSelection(snapshot.size() - 1);
+
+                    mProgressBar.setVisibility(View.GONE);
+                    mMessageListView.setVisibility(View.VISIBLE);
+                });
+
+                mInitDone = true;
+                mLoaded = true;
+                setConnected(false);
+
+                long lastId = snapshot.get(snapshot.size() - 1).id;
+                initSocket(socket -> socket.resumeSocket(lastId));
+            });
+        }).start();
+    }
+
+    /**
+     * Writes the most recent posts to the snapshot of the current channel
+     */
+    private void saveSnapshot() {
+        Context context = getContext();
+        if (context == null) return;
+
+        int count = mMessageAdapter.getItemCount();
+        List<Message> recent = new ArrayList<>(Math.min(count, ChatSnapshot.MAX_MESSAGES));
+        for (int i = Math.max(0, count - ChatSnapshot.MAX_MESSAGES); i < count; i++) {
+            recent.add(mMessageAdapter.getItem(i));
+        }
+        if (recent.isEmpty()) return;
+
+        File file = ChatSnapshot.getSnapshotFile(context, mSharedPreferences.getString(Pref.Chat.CHANNEL, ""));
+        new Thread(() -> {
+            try {
+                ChatSnapshot.write(file, recent);
+            } catch (IOException | RuntimeException e) {
+                Log.e(Application.LOG_TAG_ERROR, "Could not write chat snapshot.", e);
+            }
+        }).start();
+    }
+
+    /**
+     * Enables or disables sending posts depending on the connection state
+     */
+    private void setConnected(boolean connected) {
+        if (mSendButton != null) mSendButton.setEnabled(connected);
+    }
+
+    /**
+     * Appends the given message to the {@link #mMessageListView}. The post will also be queued for the chat database
      *
      * @param message the message to be appended
-     * @param notify if {@link MessageAdapter#notifyDataSetChanged()} should be called
      */
-    private void addPost(@NonNull Message message, boolean notify) {
+    private void addPost(@NonNull Message message) {
         assert getContext() != null;
 
         if (Message.PONG.equals(message)) {
+            if (mLoaded) {
+                mHandler.post(() -> setConnected(true));
+                return;
+            }
+
             mInitDone = true;
+            mLoaded = true;
             mHandler.post(() -> {
-                mMessageAdapter.clear();
-                mMessageAdapter.addAll(mInitMessages);
+                List<Message> messages = new ArrayList<>(mInitMessages);
                 mDatabase.insertAll(mInitMessages);
-                mMessageAdapter.notifyDataSetChanged();
-                mMessageListView.setSelection(mInitMessages.size() - 1);
+                mMessageAdapter.setData(messages, () -> {
+                    mMessageListView.setSelection(messages.size() - 1);
 
-                mProgressBar.setVisibility(View.GONE);
-                mMessageListView.setVisibility(View.VISIBLE);
+                    mProgressBar.setVisibility(View.GONE);
+                    mMessageListView.setVisibility(View.VISIBLE);
+                });
             });
             return;
         }
@@ -358,40 +474,43 @@ public class ChatFragment extends QEDFragment implements NetworkListener, AbsLis
             return;
         }
 
-        mDatabase.insert(message);
+        mDatabaseWriter.enqueue(message);
 
         if (message.id < mTopPosition) mTopPosition = message.id;
         if (message.bottag == 1 && mSharedPreferences.getBoolean(Pref.Chat.SHOW_SENSE,false)) return;
 
-        mHandler.post(() -> {
-            mMessageAdapter.add(message);
-            if (notify) mMessageAdapter.notifyDataSetChanged();
-        });
+        mHandler.post(() -> mMessageAdapter.add(message));
     }
 
     private void editTextClicked() {
-        if (mMessageListView.getLastVisiblePosition() >= mMessageAdapter.getCount()-1)
-            mHandler.postDelayed(() -> mMessageListView.setSelection(mMessageAdapter.getCount() -1),100);
+        if (mMessageListView.getLastVisiblePosition() >= mMessageAdapter.getItemCount()-1)
+            mHandler.postDelayed(() -> mMessageListView.setSelection(mMessageAdapter.getItemCount() -1),100);
     }
 
     public void onConnectionFail() {
-        onError(REASON_NETWORK, null);
+        if (mLoaded) mHandler.post(() -> setConnected(false));
+        else onError(REASON_NETWORK, null);
     }
 
     @Override
     public void onConnectionRegain() {
-        mHandler.post(this::reload);
+        mHandler.post(() -> {
+            if (mLoaded) resume();
+            else reload();
+        });
     }
 
     /**
      * Opens a web socket connection to the chat server
+     *
+     * @param open opens the socket, e.g. {@link ChatWebSocket#openSocket()}
      */
-    private void initSocket() {
+    private void initSocket(@NonNull Consumer<ChatWebSocket> open) {
         new Thread(() -> {
             synchronized (mSocketLock) {
                 if (mWebSocket == null) mWebSocket = new ChatWebSocket(this);
 
-                mWebSocket.openSocket();
+                open.accept(mWebSocket);
             }
         }).start();
     }
@@ -432,46 +551,30 @@ public class ChatFragment extends QEDFragment implements NetworkListener, AbsLis
         }
     }
 
-//    static boolean scrollDown = false;
-//    static int scrollDurationLeft = 0;
-//    static long scrollStartTime;
-
-    @Override
-    public void onScrollStateChanged(AbsListView view, int scrollState) {
-//        if (scrollState == SCROLL_STATE_TOUCH_SCROLL) {
-//            scrollDown = false;
-//        }
-    }
-
-    @Override
-    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
-//        if (scrollDown) {
-//            if (firstVisibleItem + visibleItemCount != totalItemCount) {
-//                view.smoothScrollToPositionFromTop(mMessageAdapter2.getCount(), 0, scrollDurationLeft -= (System.currentTimeMillis() - scrollStartTime));
-//            } else {
-//                scrollDown = false;
-//            }
-//        }
-
+    private void updateScrollDownButton() {
+        if (mScrollDownButton == null) return;
 
-        if (mScrollDownButton != null) if (totalItemCount-visibleItemCount-firstVisibleItem > 0) mScrollDownButton.show();
+        if (mMessageListView.getLastVisiblePosition() < mMessageAdapter.getItemCount() - 1) mScrollDownButton.show();
         else mScrollDownButton.hide();
     }
 
     private void scrollDown() {
-//        scrollDown = true;
-//        scrollDurationLeft = 250;
-//        scrollStartTime = System.currentTimeMillis();
-        mMessageListView.smoothScrollToPositionFromTop(mMessageAdapter.getCount(), 0, 250);
+        int count = mMessageAdapter.getItemCount();
+        if (count > 0) mMessageListView.smoothScrollToPosition(count - 1);
     }
 
     @Override
     public void onMessage(@NonNull Message message) {
-        addPost(message, mInitDone);
+        addPost(message);
 
         if (mLastPostId < message.id) mLastPostId = message.id;
     }
 
+    @Override
+    public void onReconnecting(long delay) {
+        mHandler.post(() -> setConnected(false));
+    }
+
     @Override
     public void onError(@Nullable String reason, @Nullable Throwable cause) {
         ChatWebSocketListener.super.onError(reason, cause);
@@ -493,13 +596,18 @@ public class ChatFragment extends QEDFragment implements NetworkListener, AbsLis
      */
     private void error(String message) {
         if (mWebSocket != null) mWebSocket.closeSocket();
+
+        // drop the posts kept from before a reload
+        if (!mInitDone) mHandler.post(mMessageAdapter::clear);
+
         mInitDone = true;
+        mLoaded = false;
         Calendar cal = Calendar.getInstance();
 
         Locale locale = mRes.getConfiguration().getLocales().get(0);
 
         String date = String.format(locale, "%1$tY-%1$tm-%1$td %1$tH:%1$tM:%1$tS", cal);
-        addPost(new Message("Error", message, date,503,"Error","220000", Integer.MAX_VALUE, 0, ""), true);
+        addPost(new Message("Error", message, date,503,"Error","220000", Integer.MAX_VALUE, 0, ""));
         mHandler.post(() -> {
             mMessageEditText.setEnabled(false);
             mSendButton.setEnabled(false);
@@ -21,7 +21,6 @@ import android.widget.AdapterView;
 import android.widget.DatePicker;
 import android.widget.EditText;
 import android.widget.ImageView;
-import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.Spinner;
 import android.widget.TableLayout;
@@ -40,8 +39,10 @@ import com.jonahbauer.qed.activities.MainActivity;
 import com.jonahbauer.qed.activities.messageInfoSheet.MessageInfoBottomSheet;
 import com.jonahbauer.qed.chat.Message;
 import com.jonahbauer.qed.chat.MessageAdapter;
+import com.jonahbauer.qed.chat.MessageStore;
 import com.jonahbauer.qed.database.ChatDatabase;
 import com.jonahbauer.qed.database.ChatDatabaseReceiver;
+import com.jonahbauer.qed.layoutStuff.MessageListView;
 import com.jonahbauer.qed.networking.QEDChatPages;
 import com.jonahbauer.qed.networking.QEDPageStreamReceiver;
 import com.jonahbauer.qed.networking.downloadManager.Download;
@@ -51,7 +52,6 @@ import com.jonahbauer.qed.networking.downloadManager.DownloadListener;
 import java.lang.ref.SoftReference;
 import java.text.DateFormat;
 import java.text.MessageFormat;
-import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
@@ -130,8 +130,9 @@ public class LogFragment extends QEDFragment implements ChatDatabaseReceiver, QE
     private Download mLogDownload = null;
     private MessageAdapter mMessageAdapter;
 
+    private ProgressBar mParseProgressBar;
     private ProgressBar mSaveProgressBar;
-    private ListView mMessageListView;
+    private MessageListView mMessageListView;
     private TextView mSubtitle;
     private TextView mLabelError;
 
@@ -173,6 +174,7 @@ public class LogFragment extends QEDFragment implements ChatDatabaseReceiver, QE
 
     @Override
     public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
+        mParseProgressBar = view.findViewById(R.id.parse_progress);
         mSaveProgressBar = view.findViewById(R.id.save_progress);
         mMessageListView = view.findViewById(R.id.log_message_container);
         mSubtitle = view.findViewById(R.id.log_fragment_subtitle);
@@ -199,17 +201,24 @@ public class LogFragment extends QEDFragment implements ChatDatabaseReceiver, QE
 
         mSubtitle.setOnClickListener((View v) -> showDialog());
 
-        mMessageAdapter = new MessageAdapter(context, new ArrayList<>(), null, false, null, false);
+        mMessageAdapter = new MessageAdapter(context, new MessageStore(), false, null, false);
         mMessageListView.setAdapter(mMessageAdapter);
-        mMessageListView.setOnItemClickListener((adapterView, view1, i, l) -> setChecked(i, false));
-        mMessageListView.setOnItemLongClickListener((adapterView, view1, i, l) -> {
-            if (!mMessageListView.isItemChecked(i)) {
-                int checked = mMessageListView.getCheckedItemPosition();
-                if (checked != -1) setChecked(checked, false);
-
-                setChecked(i, true);
-                return true;
-            } else return false;
+        mMessageAdapter.setOnItemClickListener(new MessageAdapter.OnItemClickListener() {
+            @Override
+            public void onItemClick(int position) {
+                setChecked(position, false);
+            }
+
+            @Override
+            public boolean onItemLongClick(int position) {
+                if (!mMessageAdapter.isItemChecked(position)) {
+                    int checked = mMessageAdapter.getCheckedItemPosition();
+                    if (checked != -1) setChecked(checked, false);
+
+                    setChecked(position, true);
+                    return true;
+                } else return false;
+            }
         });
         mMessageListView.setPadding(mMessageListView.getPaddingLeft(),
                 mMessageListView.getPaddingTop(),
@@ -325,7 +334,10 @@ public class LogFragment extends QEDFragment implements ChatDatabaseReceiver, QE
 
         this.mSubtitle.setText(subtitle);
 
+        // clearing releases a mapped log, which is read-only, so start over with an empty store
         mMessageAdapter.clear();
+        mMessageAdapter.setData(new MessageStore());
+        mMessageAdapter.reload();
 
         // handling of running downloads is done before reload is called
         if (mLogDownload != null) Download.stopDownload(mLogDownload);
@@ -349,7 +361,7 @@ public class LogFragment extends QEDFragment implements ChatDatabaseReceiver, QE
      * @param value if the item is checked or not
      */
     private void setChecked(int position, boolean value) {
-        mMessageListView.setItemChecked(position, value);
+        mMessageAdapter.setItemChecked(position, value);
 
         Activity activity = getActivity();
         if (activity instanceof MainActivity) {
@@ -389,12 +401,34 @@ public class LogFragment extends QEDFragment implements ChatDatabaseReceiver, QE
     @Override
     public boolean onOptionsItemSelected(@NonNull MenuItem item) {
         if (item.getItemId() == R.id.log_save) {
-            mDatabase.insertAll(mMessageAdapter.getData());
+            // the message store and the mapped log can be read on the background thread without copying them
+            mDatabase.insertAll(mMessageAdapter.getMessages());
+            return true;
+        } else if (item.getItemId() == R.id.log_jump_to_date) {
+            showJumpToDateDialog();
             return true;
         }
         return false;
     }
 
+    /**
+     * Lets the user pick a day and scrolls to the first message posted on or after that day.
+     */
+    private void showJumpToDateDialog() {
+        if (mMessageAdapter.getItemCount() == 0) return;
+
+        // start at the day currently shown, days are counted in utc
+        android.icu.util.Calendar calendar = android.icu.util.Calendar.getInstance(TimeZone.GMT_ZONE);
+        int day = mMessageAdapter.getDay(Math.max(0, mMessageListView.getFirstVisiblePosition()));
+        if (day != Integer.MIN_VALUE) calendar.setTimeInMillis(day * 86400000L);
+
+        DatePickerDialog dialog = new DatePickerDialog(requireContext(), R.style.AppTheme_Dialog, (view, year, month, dayOfMonth) -> {
+            mMessageListView.setSelection(mMessageAdapter.getPositionForDay(year, month + 1, dayOfMonth));
+        }, calendar.get(android.icu.util.Calendar.YEAR), calendar.get(android.icu.util.Calendar.MONTH),
+                calendar.get(android.icu.util.Calendar.DAY_OF_MONTH));
+        dialog.show();
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -427,6 +461,7 @@ public class LogFragment extends QEDFragment implements ChatDatabaseReceiver, QE
     @Override
     public void onDestroy() {
         mDatabase.close();
+        mMessageAdapter.clear();
         super.onDestroy();
     }
 
@@ -510,10 +545,17 @@ public class LogFragment extends QEDFragment implements ChatDatabaseReceiver, QE
         mSharedPreferences.edit().putLong(LOG_DOWNLOAD_ID_KEY, -1).apply();
         mLogDownload = null;
 
-        mMessageAdapter.notifyDataSetChanged();
         mProgressTable.setVisibility(View.GONE);
         mMessageListView.setVisibility(View.VISIBLE);
+        mParseProgressBar.setVisibility(View.GONE);
+    }
 
+    @Override
+    public void onPagePartiallyReceived(String tag) {
+        // show the first messages while the rest of the log is being parsed
+        mProgressTable.setVisibility(View.GONE);
+        mMessageListView.setVisibility(View.VISIBLE);
+        mParseProgressBar.setVisibility(View.VISIBLE);
     }
 
     @Override
@@ -564,7 +606,14 @@ public class LogFragment extends QEDFragment implements ChatDatabaseReceiver, QE
 
             }
         } else { // parsing
-            mHandler.post(() -> setStatus(5 + (1 << 4), done, total));
+            mHandler.post(() -> {
+                if (mMessageListView.getVisibility() == View.VISIBLE) {
+                    mParseProgressBar.setIndeterminate(total <= 0);
+                    if (total > 0) mParseProgressBar.setProgress((int) (done * 100 / total), true);
+                } else {
+                    setStatus(5 + (1 << 4), done, total);
+                }
+            });
         }
     }
 
@@ -854,7 +903,9 @@ public class LogFragment extends QEDFragment implements ChatDatabaseReceiver, QE
                 mProgressBars[1].setVisibility(View.INVISIBLE);
                 break;
             case 1:
-                mProgressText[1].setText(String.format(PARSE_PROGRESS_STRING, data0 + "/" + data1));
+                // parse progress is measured in bytes of the log file
+                String progress = data1 > 0 ? (data0 * 100 / data1) + " %" : data0 / 1_048_576 + " MiB";
+                mProgressText[1].setText(String.format(PARSE_PROGRESS_STRING, progress));
                 mProgressText[1].setEnabled(true);
 
                 mProgressIcons[1].setVisibility(View.INVISIBLE);
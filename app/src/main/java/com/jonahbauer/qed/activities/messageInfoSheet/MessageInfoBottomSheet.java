@@ -109,7 +109,7 @@ public class MessageInfoBottomSheet extends BottomSheetDialogFragment {
                 Window rootWindow = activity.getWindow();
 
                 mBehavior = BottomSheetBehavior.from((View) view.getParent());
-                mBehavior.addBottomSheetCallback(mSheetCallback != null ? mSheetCallback : (mSheetCallback = new ColorfulBottomSheetCallback(MessageInfoBottomSheet.this, rootWindow, touchOutside, mMessage.transformedColor)));
+                mBehavior.addBottomSheetCallback(mSheetCallback != null ? mSheetCallback : (mSheetCallback = new ColorfulBottomSheetCallback(MessageInfoBottomSheet.this, rootWindow, touchOutside, mMessage.getTransformedColor())));
             }
 
             @Override
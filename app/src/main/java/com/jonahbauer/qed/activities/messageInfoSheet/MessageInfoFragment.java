@@ -87,15 +87,15 @@ public class MessageInfoFragment extends Fragment implements View.OnScrollChange
 
         // this is equal to #CCC multiplied by transformedColor (the same as the dark regions of background)
         int darkColor = Color.rgb(
-                Color.red(mMessage.transformedColor) * 204 / 255,
-                Color.green(mMessage.transformedColor) * 204 / 255,
-                Color.blue(mMessage.transformedColor) * 204 / 255);
+                Color.red(mMessage.getTransformedColor()) * 204 / 255,
+                Color.green(mMessage.getTransformedColor()) * 204 / 255,
+                Color.blue(mMessage.getTransformedColor()) * 204 / 255);
 
         if (mMessage != null) {
             View backgroundLayout = view.findViewById(R.id.background_layout);
             // choose random background image and set color
             mBackground.setBackgroundResource(backgroundResId[(int) mMessage.id % backgroundResId.length]);
-            mBackground.setBackgroundTintList(ColorStateList.valueOf(mMessage.transformedColor));
+            mBackground.setBackgroundTintList(ColorStateList.valueOf(mMessage.getTransformedColor()));
             backgroundLayout.setBackgroundColor(darkColor);
             if (mToolbar != null) {
                 mToolbar.setBackgroundColor(darkColor);
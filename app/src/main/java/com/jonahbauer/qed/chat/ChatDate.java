@@ -0,0 +1,112 @@
+package com.jonahbauer.qed.chat;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Conversions between the dates used by the chat ({@code yyyy-MM-dd HH:mm:ss}) and seconds since the epoch.
+ *
+ * Dates are interpreted as UTC. Only their order and the day boundaries are relevant, so no time zone lookups
+ * are needed and dates of the usual format survive a round trip unchanged.
+ */
+public final class ChatDate {
+    private ChatDate() {}
+
+    /**
+     * Converts a date of the format {@code yyyy-MM-dd HH:mm:ss} to seconds since the epoch.
+     * A missing or malformed time of day is treated as midnight.
+     * @return the date in seconds or {@link Long#MIN_VALUE} if the date could not be parsed
+     */
+    public static long parse(@NonNull String date) {
+        if (date.length() < 10 || date.charAt(4) != '-' || date.charAt(7) != '-') return Long.MIN_VALUE;
+
+        int year = parseDigits(date, 0, 4);
+        int month = parseDigits(date, 5, 2);
+        int day = parseDigits(date, 8, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31) return Long.MIN_VALUE;
+
+        int hours = 0, minutes = 0, seconds = 0;
+        if (date.length() >= 19 && date.charAt(13) == ':' && date.charAt(16) == ':') {
+            int h = parseDigits(date, 11, 2);
+            int m = parseDigits(date, 14, 2);
+            int s = parseDigits(date, 17, 2);
+            if (h >= 0 && m >= 0 && s >= 0) {
+                hours = h;
+                minutes = m;
+                seconds = s;
+            }
+        }
+
+        return toEpoch(year, month, day, hours, minutes, seconds);
+    }
+
+    /**
+     * Converts the given date to seconds since the epoch. Months greater than 12 roll over into the next year,
+     * all other fields may exceed their range as well.
+     */
+    public static long toEpoch(int year, int month, int day, int hours, int minutes, int seconds) {
+        year += (month - 1) / 12;
+        month = (month - 1) % 12 + 1;
+
+        // days from civil, see http://howardhinnant.github.io/date_algorithms.html
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        long days = era * 146097L + doe - 719468;
+
+        return days * 86400 + hours * 3600L + minutes * 60L + seconds;
+    }
+
+    /**
+     * Converts seconds since the epoch back to a date of the format {@code yyyy-MM-dd HH:mm:ss}.
+     * @see #parse(String)
+     */
+    @NonNull
+    public static String format(long epoch) {
+        long days = Math.floorDiv(epoch, 86400);
+        int time = (int) Math.floorMod(epoch, 86400);
+
+        // civil from days, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        int doe = (int) (z - era * 146097);
+        int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        int mp = (5 * doy + 2) / 153;
+        int day = doy - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+        char[] out = new char[19];
+        writeDigits(out, 0, (int) year, 4);
+        out[4] = '-';
+        writeDigits(out, 5, month, 2);
+        out[7] = '-';
+        writeDigits(out, 8, day, 2);
+        out[10] = ' ';
+        writeDigits(out, 11, time / 3600, 2);
+        out[13] = ':';
+        writeDigits(out, 14, time / 60 % 60, 2);
+        out[16] = ':';
+        writeDigits(out, 17, time % 60, 2);
+        return new String(out);
+    }
+
+    private static int parseDigits(String string, int offset, int length) {
+        int out = 0;
+        for (int i = offset; i < offset + length; i++) {
+            char c = string.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            out = out * 10 + (c - '0');
+        }
+        return out;
+    }
+
+    private static void writeDigits(char[] out, int offset, int value, int length) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            out[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
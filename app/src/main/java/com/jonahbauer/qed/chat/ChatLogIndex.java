@@ -0,0 +1,328 @@
+package com.jonahbauer.qed.chat;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jonahbauer.qed.Application;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent index of a downloaded chat log.
+ *
+ * For every message in the log the index holds the byte offset and length of its line, the message id, the date
+ * and the channel. The index is stored in a sidecar file next to the app's cache and is read through a memory
+ * mapping so that re-opening a log does not require parsing it again. An index is only used for a log of the same
+ * size and modification time whose first and last line match the checksums stored in the index.
+ *
+ * <pre>
+ * header:  int magic, int version, long source size, long source modification time, int count, int channel count,
+ *          int checksum of the first line, int checksum of the last line
+ * records: long offset, long id, long date, int length, int channel (count times)
+ * footer:  channel names as length-prefixed utf-8 (channel count times)
+ * </pre>
+ */
+public class ChatLogIndex {
+    private static final String INDEX_DIRECTORY = "log_index";
+    private static final int MAX_INDEX_FILES = 8;
+
+    private static final int MAGIC = 0x51454449; // QEDI
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 40;
+
+    private static final int HEADER_SOURCE_SIZE = 8;
+    private static final int HEADER_SOURCE_MODIFIED = 16;
+    private static final int HEADER_COUNT = 24;
+    private static final int HEADER_CHANNEL_COUNT = 28;
+    private static final int HEADER_FIRST_CHECKSUM = 32;
+    private static final int HEADER_LAST_CHECKSUM = 36;
+    private static final int RECORD_SIZE = 32;
+
+    private static final int RECORD_OFFSET = 0;
+    private static final int RECORD_ID = 8;
+    private static final int RECORD_DATE = 16;
+    private static final int RECORD_LENGTH = 24;
+    private static final int RECORD_CHANNEL = 28;
+
+    private final MappedByteBuffer mBuffer;
+    private final int mCount;
+    private final String[] mChannels;
+
+    private ChatLogIndex(MappedByteBuffer buffer, int count, String[] channels) {
+        this.mBuffer = buffer;
+        this.mCount = count;
+        this.mChannels = channels;
+    }
+
+    /**
+     * @return the index file belonging to the log at the given uri
+     */
+    @NonNull
+    public static File getIndexFile(@NonNull Context context, @NonNull Uri source) {
+        File dir = new File(context.getCacheDir(), INDEX_DIRECTORY);
+        return new File(dir, Integer.toHexString(source.toString().hashCode()) + ".idx");
+    }
+
+    /**
+     * Deletes the index belonging to the log at the given uri, e.g. because the log is about to be replaced
+     */
+    public static void delete(@NonNull Context context, @NonNull Uri source) {
+        File file = getIndexFile(context, source);
+        if (file.exists() && !file.delete()) {
+            Log.w(Application.LOG_TAG_ERROR, "Unable to delete chat log index " + file);
+        }
+    }
+
+    /**
+     * Opens the given index file if it exists and belongs to a log of the given size and modification time.
+     * The content of the log is checked by {@link #matches(ByteBuffer)}.
+     * @return the index or null if there is no valid index
+     */
+    @Nullable
+    public static ChatLogIndex open(@NonNull File file, long sourceSize, long sourceModified) {
+        if (!file.exists()) return null;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) return null;
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) return null;
+            if (buffer.getLong(HEADER_SOURCE_SIZE) != sourceSize || buffer.getLong(HEADER_SOURCE_MODIFIED) != sourceModified) return null;
+
+            int count = buffer.getInt(HEADER_COUNT);
+            int channelCount = buffer.getInt(HEADER_CHANNEL_COUNT);
+
+            long recordsEnd = HEADER_SIZE + (long) count * RECORD_SIZE;
+            if (count < 0 || channelCount < 0 || recordsEnd > channel.size()) return null;
+
+            String[] channels = new String[channelCount];
+            ByteBuffer footer = buffer.duplicate();
+            footer.position((int) recordsEnd);
+            for (int i = 0; i < channelCount; i++) {
+                int length = footer.getShort() & 0xFFFF;
+                byte[] bytes = new byte[length];
+                footer.get(bytes);
+                channels[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            return new ChatLogIndex(buffer, count, channels);
+        } catch (IOException | RuntimeException e) {
+            Log.e(Application.LOG_TAG_ERROR, "Unable to open chat log index " + file, e);
+            return null;
+        }
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Checks whether the first and last line of the given log match the checksums stored in this index
+     * @param source the content of the log
+     */
+    public boolean matches(@NonNull ByteBuffer source) {
+        if (mCount == 0) return true;
+
+        Integer first = checksum(source, 0);
+        Integer last = checksum(source, mCount - 1);
+        return first != null && first == mBuffer.getInt(HEADER_FIRST_CHECKSUM)
+                && last != null && last == mBuffer.getInt(HEADER_LAST_CHECKSUM);
+    }
+
+    /**
+     * @return the checksum of the line of the given message or null if the line is not part of the log
+     */
+    @Nullable
+    private Integer checksum(@NonNull ByteBuffer source, int index) {
+        long offset = getOffset(index);
+        int length = getLength(index);
+        if (offset < 0 || length < 0 || offset + length > source.limit()) return null;
+
+        byte[] bytes = new byte[length];
+        ByteBuffer line = source.duplicate();
+        line.position((int) offset);
+        line.get(bytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    public long getOffset(int index) {
+        return mBuffer.getLong(position(index) + RECORD_OFFSET);
+    }
+
+    public int getLength(int index) {
+        return mBuffer.getInt(position(index) + RECORD_LENGTH);
+    }
+
+    public long getId(int index) {
+        return mBuffer.getLong(position(index) + RECORD_ID);
+    }
+
+    /**
+     * @return the date of the message in seconds as returned by {@link ChatDate#parse(String)}
+     */
+    public long getDate(int index) {
+        return mBuffer.getLong(position(index) + RECORD_DATE);
+    }
+
+    @NonNull
+    public String getChannel(int index) {
+        return mChannels[mBuffer.getInt(position(index) + RECORD_CHANNEL)];
+    }
+
+    /**
+     * @return the position of the first message posted at or after the given date
+     * @see ChatDate#parse(String)
+     */
+    public int findByDate(long date) {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getDate(mid) < date) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private int position(int index) {
+        if (index < 0 || index >= mCount) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mCount);
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    /**
+     * Writes an index while the log is being parsed. Records have to be added in the order of the log.
+     * The index only becomes visible at its final location once {@link #commit()} has been called.
+     */
+    public static class Writer implements Closeable {
+        private final File mFile;
+        private final File mTmpFile;
+        private final long mSourceSize;
+        private final long mSourceModified;
+        private final DataOutputStream mOut;
+
+        private final CRC32 mFirstChecksum = new CRC32();
+        private final CRC32 mLastChecksum = new CRC32();
+
+        private final Map<String, Integer> mChannels = new HashMap<>();
+        private int mCount;
+        private long mLastDate;
+
+        public Writer(@NonNull File file, long sourceSize, long sourceModified) throws IOException {
+            this.mFile = file;
+            this.mTmpFile = new File(file.getPath() + ".tmp");
+            this.mSourceSize = sourceSize;
+            this.mSourceModified = sourceModified;
+
+            File dir = file.getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) throw new IOException("Could not create " + dir);
+
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mTmpFile)));
+            mOut.write(new byte[HEADER_SIZE]);
+        }
+
+        /**
+         * Adds the message parsed from the last line read by the given reader
+         */
+        public void add(@NonNull ChatLogReader in, @NonNull Message message) throws IOException {
+            long offset = in.getLineOffset();
+            int length = in.getLineLength();
+
+            if (mCount == 0) in.updateChecksum(mFirstChecksum);
+            mLastChecksum.reset();
+            in.updateChecksum(mLastChecksum);
+
+            // keep dates monotonic so that the index can be searched by date
+            long date = ChatDate.parse(message.date);
+            if (date == Long.MIN_VALUE || date < mLastDate) date = mLastDate;
+            mLastDate = date;
+
+            Integer channel = mChannels.get(message.channel);
+            if (channel == null) {
+                channel = mChannels.size();
+                mChannels.put(message.channel, channel);
+            }
+
+            mOut.writeLong(offset);
+            mOut.writeLong(message.id);
+            mOut.writeLong(date);
+            mOut.writeInt(length);
+            mOut.writeInt(channel);
+            mCount++;
+        }
+
+        /**
+         * Finishes the index and moves it to its final location
+         */
+        public void commit() throws IOException {
+            String[] channels = new String[mChannels.size()];
+            mChannels.forEach((channel, code) -> channels[code] = channel);
+            for (String channel : channels) {
+                byte[] bytes = channel.getBytes(StandardCharsets.UTF_8);
+                mOut.writeShort(bytes.length);
+                mOut.write(bytes);
+            }
+            mOut.close();
+
+            try (RandomAccessFile raf = new RandomAccessFile(mTmpFile, "rw")) {
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeLong(mSourceSize);
+                raf.writeLong(mSourceModified);
+                raf.writeInt(mCount);
+                raf.writeInt(channels.length);
+                raf.writeInt((int) mFirstChecksum.getValue());
+                raf.writeInt((int) mLastChecksum.getValue());
+            }
+
+            if (!mTmpFile.renameTo(mFile)) throw new IOException("Could not move index to " + mFile);
+
+            trim(mFile.getParentFile());
+        }
+
+        @Override
+        public void close() {
+            try {
+                mOut.close();
+            } catch (IOException ignored) {}
+
+            if (mTmpFile.exists()) //noinspection ResultOfMethodCallIgnored
+                mTmpFile.delete();
+        }
+
+        /**
+         * Deletes all but the {@link #MAX_INDEX_FILES} most recent index files
+         */
+        private static void trim(@Nullable File dir) {
+            File[] files = dir != null ? dir.listFiles() : null;
+            if (files == null || files.length <= MAX_INDEX_FILES) return;
+
+            Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+            for (int i = MAX_INDEX_FILES; i < files.length; i++) {
+                //noinspection ResultOfMethodCallIgnored
+                files[i].delete();
+            }
+        }
+    }
+}
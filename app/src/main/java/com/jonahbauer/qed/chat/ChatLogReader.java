@@ -0,0 +1,122 @@
+package com.jonahbauer.qed.chat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Checksum;
+
+/**
+ * Reads a chat log line by line while keeping track of the byte offsets of each line in the underlying stream.
+ */
+public class ChatLogReader implements Closeable {
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream mIn;
+
+    private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private int mStart;
+    private int mEnd;
+    private long mBufferOffset;
+    private boolean mEof;
+
+    private long mLineOffset = -1;
+    private int mLineLength;
+
+    public ChatLogReader(@NonNull InputStream in) {
+        this.mIn = in;
+    }
+
+    /**
+     * Reads the next line of the log. Line terminators ({@code \n} and {@code \r\n}) are not included.
+     * @return the next line or null if the end of the stream has been reached
+     */
+    @Nullable
+    public String readLine() throws IOException {
+        int i = mStart;
+        while (true) {
+            for (; i < mEnd; i++) {
+                if (mBuffer[i] == '\n') {
+                    String line = decode(mStart, i);
+                    mStart = i + 1;
+                    return line;
+                }
+            }
+
+            if (mEof) {
+                if (mStart == mEnd) return null;
+
+                String line = decode(mStart, mEnd);
+                mStart = mEnd;
+                return line;
+            }
+
+            int scanned = i - mStart;
+            fill();
+            i = mStart + scanned;
+        }
+    }
+
+    /**
+     * @return the byte offset of the last line returned by {@link #readLine()}
+     */
+    public long getLineOffset() {
+        return mLineOffset;
+    }
+
+    /**
+     * @return the length in bytes of the last line returned by {@link #readLine()} without line terminators
+     */
+    public int getLineLength() {
+        return mLineLength;
+    }
+
+    /**
+     * Updates the given checksum with the bytes of the last line returned by {@link #readLine()}
+     */
+    public void updateChecksum(@NonNull Checksum checksum) {
+        checksum.update(mBuffer, (int) (mLineOffset - mBufferOffset), mLineLength);
+    }
+
+    /**
+     * @return the number of bytes consumed from the underlying stream so far
+     */
+    public long getBytesRead() {
+        return mBufferOffset + mStart;
+    }
+
+    private String decode(int start, int end) {
+        mLineOffset = mBufferOffset + start;
+        if (end > start && mBuffer[end - 1] == '\r') end--;
+        mLineLength = end - start;
+
+        return new String(mBuffer, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private void fill() throws IOException {
+        if (mStart > 0) {
+            System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+            mBufferOffset += mStart;
+            mEnd -= mStart;
+            mStart = 0;
+        }
+
+        if (mEnd == mBuffer.length) {
+            byte[] buffer = new byte[mBuffer.length * 2];
+            System.arraycopy(mBuffer, 0, buffer, 0, mEnd);
+            mBuffer = buffer;
+        }
+
+        int read = mIn.read(mBuffer, mEnd, mBuffer.length - mEnd);
+        if (read == -1) mEof = true;
+        else mEnd += read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+}
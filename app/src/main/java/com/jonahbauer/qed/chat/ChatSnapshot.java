@@ -0,0 +1,187 @@
+package com.jonahbauer.qed.chat;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jonahbauer.qed.Application;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A binary snapshot of the most recent messages of a channel, used to show the chat immediately when it is opened.
+ *
+ * Ids are stored as the varint encoded difference to the previous id, strings as varint length-prefixed utf-8.
+ * Nullable strings store their length plus one, zero encoding {@code null}.
+ *
+ * <pre>
+ * header:   int magic, int version, varint count
+ * messages: varint id delta, varint user id + 1, varint bottag,
+ *           name, message, date, user name (nullable), color, channel (count times)
+ * </pre>
+ */
+public final class ChatSnapshot {
+    private static final String SNAPSHOT_DIRECTORY = "chat_snapshot";
+
+    private static final int MAGIC = 0x51454453; // QEDS
+    private static final int VERSION = 1;
+
+    /**
+     * Snapshots older than this are ignored, replaying the missed posts would take longer than a fresh start.
+     */
+    private static final long MAX_AGE_MS = 24 * 60 * 60 * 1000;
+
+    /**
+     * The maximum number of messages stored per channel
+     */
+    public static final int MAX_MESSAGES = 200;
+
+    private ChatSnapshot() {}
+
+    /**
+     * @return the snapshot file of the given channel
+     */
+    @NonNull
+    public static File getSnapshotFile(@NonNull Context context, @NonNull String channel) {
+        File dir = new File(context.getCacheDir(), SNAPSHOT_DIRECTORY);
+        return new File(dir, Integer.toHexString(channel.hashCode()) + ".snap");
+    }
+
+    /**
+     * Reads the snapshot from the given file.
+     * @return the messages of the snapshot in ascending order or null if there is no recent, valid snapshot
+     */
+    @Nullable
+    public static List<Message> read(@NonNull File file) {
+        if (!file.exists() || System.currentTimeMillis() - file.lastModified() > MAX_AGE_MS) return null;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) return null;
+
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+
+            int count = (int) readVarint(buffer);
+            if (count < 0 || count > MAX_MESSAGES) return null;
+
+            List<Message> messages = new ArrayList<>(count);
+            byte[] scratch = new byte[256];
+            long id = 0;
+            for (int i = 0; i < count; i++) {
+                id += readVarint(buffer);
+                long userId = readVarint(buffer) - 1;
+                int bottag = (int) readVarint(buffer);
+
+                String name = readString(buffer, scratch, false);
+                String message = readString(buffer, scratch, false);
+                String date = readString(buffer, scratch, false);
+                String userName = readString(buffer, scratch, true);
+                String color = readString(buffer, scratch, false);
+                String channelName = readString(buffer, scratch, false);
+
+                //noinspection ConstantConditions non-nullable strings are never read as null
+                messages.add(new Message(name, message, date, userId, userName, color, id, bottag, channelName));
+            }
+
+            return messages;
+        } catch (IOException | RuntimeException e) {
+            Log.e(Application.LOG_TAG_ERROR, "Unable to read chat snapshot " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the last {@link #MAX_MESSAGES} of the given messages to the given file. Messages have to be in
+     * ascending order of their ids.
+     */
+    public static void write(@NonNull File file, @NonNull List<Message> messages) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) throw new IOException("Could not create " + dir);
+
+        int from = Math.max(0, messages.size() - MAX_MESSAGES);
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeVarint(out, messages.size() - from);
+
+            long lastId = 0;
+            for (int i = from; i < messages.size(); i++) {
+                Message message = messages.get(i);
+                if (message.id < lastId) throw new IllegalArgumentException("Messages are not in ascending order.");
+
+                writeVarint(out, message.id - lastId);
+                writeVarint(out, message.userId + 1);
+                writeVarint(out, message.bottag);
+                writeString(out, message.name, false);
+                writeString(out, message.message, false);
+                writeString(out, message.date, false);
+                writeString(out, message.userName, true);
+                writeString(out, message.color, false);
+                writeString(out, message.channel, false);
+
+                lastId = message.id;
+            }
+        }
+
+        if (!tmpFile.renameTo(file)) throw new IOException("Could not move snapshot to " + file);
+    }
+
+    private static long readVarint(ByteBuffer buffer) throws IOException {
+        long out = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            out |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return out;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeVarint(DataOutputStream out, long value) throws IOException {
+        if (value < 0) throw new IllegalArgumentException("Negative varint " + value);
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    @Nullable
+    private static String readString(ByteBuffer buffer, byte[] scratch, boolean nullable) throws IOException {
+        int length = (int) readVarint(buffer);
+        if (nullable) {
+            if (length == 0) return null;
+            length--;
+        }
+        if (length < 0 || length > buffer.remaining()) throw new BufferUnderflowException();
+
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String string, boolean nullable) throws IOException {
+        if (string == null) {
+            if (!nullable) throw new IllegalArgumentException("String must not be null.");
+            writeVarint(out, 0);
+            return;
+        }
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, nullable ? bytes.length + 1 : bytes.length);
+        out.write(bytes);
+    }
+}
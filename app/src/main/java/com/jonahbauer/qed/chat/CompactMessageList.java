@@ -0,0 +1,22 @@
+package com.jonahbauer.qed.chat;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A list of messages that does not keep {@link Message} objects around but creates them on demand.
+ *
+ * Ids and days of the messages can be queried without creating {@link Message} objects.
+ */
+public abstract class CompactMessageList extends AbstractList<Message> implements RandomAccess {
+    /**
+     * @return the id of the message at the given position without creating a {@link Message} object
+     */
+    public abstract long getId(int index);
+
+    /**
+     * Returns a key for the day the message at the given position was posted on. Two messages were posted on the
+     * same day if and only if their day keys are equal.
+     */
+    public abstract int getDay(int index);
+}
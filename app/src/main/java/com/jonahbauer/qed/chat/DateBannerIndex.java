@@ -0,0 +1,277 @@
+package com.jonahbauer.qed.chat;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The positions in a list of messages at which a new day begins, i.e. the positions showing a date banner.
+ *
+ * Each day boundary is a section, sections are kept in sorted primitive arrays together with the day they start on
+ * (in days since the epoch). Positions are stored relative to an offset, so prepending or removing messages at the
+ * start only moves the offset. Appending, prepending and removing a batch of messages at either end only look at the
+ * messages concerned and the boundaries next to them. Lookups use binary search,
+ * the last section found is remembered so that the sequential lookups made while scrolling take constant time.
+ * Messages are expected to be in chronological order.
+ */
+final class DateBannerIndex {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] mPositions = new int[INITIAL_CAPACITY];
+    private int[] mDays = new int[INITIAL_CAPACITY];
+
+    /**
+     * Sections are stored at {@code [mStart, mEnd)}, free space is kept on both sides to allow cheap prepends.
+     */
+    private int mStart;
+    private int mEnd;
+
+    /**
+     * Added to the stored positions
+     */
+    private int mOffset;
+
+    private int mCursor;
+
+    DateBannerIndex() {}
+
+    private DateBannerIndex(@NonNull DateBannerIndex other) {
+        mPositions = other.mPositions.clone();
+        mDays = other.mDays.clone();
+        mStart = other.mStart;
+        mEnd = other.mEnd;
+        mOffset = other.mOffset;
+    }
+
+    @NonNull
+    DateBannerIndex copy() {
+        return new DateBannerIndex(this);
+    }
+
+    /**
+     * @return the number of sections, i.e. the number of distinct days
+     */
+    int size() {
+        return mEnd - mStart;
+    }
+
+    void clear() {
+        mStart = mEnd = mOffset = mCursor = 0;
+    }
+
+    /**
+     * @return true if the message at the given position is the first of its day
+     */
+    boolean contains(int position) {
+        int section = getSection(position);
+        return section != -1 && getPosition(section) == position;
+    }
+
+    /**
+     * @return the position of the first message of the given section
+     */
+    int getPosition(int section) {
+        return mPositions[mStart + section] + mOffset;
+    }
+
+    /**
+     * @return the day of the given section in days since the epoch
+     */
+    int getDay(int section) {
+        return mDays[mStart + section];
+    }
+
+    /**
+     * @return the section containing the given position or -1 if the position is before the first section
+     */
+    int getSection(int position) {
+        int size = size();
+        if (size == 0) return -1;
+
+        int stored = position - mOffset;
+
+        // sequential access, e.g. while scrolling
+        int cursor = mCursor;
+        if (cursor < size && mPositions[mStart + cursor] <= stored
+                && (cursor + 1 == size || mPositions[mStart + cursor + 1] > stored)) {
+            return cursor;
+        }
+
+        int index = Arrays.binarySearch(mPositions, mStart, mEnd, stored);
+        int section = (index >= 0 ? index : -index - 2) - mStart;
+        if (section >= 0) mCursor = section;
+        return section < 0 ? -1 : section;
+    }
+
+    /**
+     * @return the first section starting on or after the given day or {@link #size()} if there is none
+     */
+    int findSection(int day) {
+        int low = mStart;
+        int high = mEnd;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mDays[mid] < day) low = mid + 1;
+            else high = mid;
+        }
+        return low - mStart;
+    }
+
+    /**
+     * Updates the index after messages have been appended to the list.
+     * @param start the position of the first new message
+     */
+    void append(@NonNull List<Message> messageList, int start) {
+        int size = messageList.size();
+        if (start >= size) return;
+
+        if (messageList instanceof CompactMessageList) {
+            CompactMessageList store = (CompactMessageList) messageList;
+            if (start == 0) add(0, getEpochDay(store, 0));
+
+            int lastDay = store.getDay(start == 0 ? 0 : start - 1);
+            for (int i = start == 0 ? 1 : start; i < size; i++) {
+                int day = store.getDay(i);
+                if (day != lastDay) {
+                    lastDay = day;
+                    add(i, getEpochDay(store, i));
+                }
+            }
+            return;
+        }
+
+        Iterator<Message> iterator = messageList.listIterator(start == 0 ? 0 : start - 1);
+        Message message = iterator.next();
+        String lastDate = message.getDateNoTime();
+        if (start == 0) add(0, getEpochDay(message));
+
+        int i = start == 0 ? 1 : start;
+        while (iterator.hasNext()) {
+            message = iterator.next();
+            String dateNoTime = message.getDateNoTime();
+
+            //noinspection StringEquality dateNoTime values are created with String.intern()
+            if (lastDate != dateNoTime) {
+                lastDate = dateNoTime;
+                add(i, getEpochDay(message));
+            }
+
+            i++;
+        }
+    }
+
+    /**
+     * Updates the index after messages have been inserted at the start of the list.
+     * @param count the number of new messages
+     */
+    void prepend(@NonNull List<Message> messageList, int count) {
+        if (count <= 0) return;
+
+        mOffset += count;
+
+        // the old first message might share its day with the last new one
+        if (size() > 0 && getPosition(0) == count) {
+            if (getDayKey(messageList, count - 1).equals(getDayKey(messageList, count))) mStart++;
+        }
+
+        int[] positions = new int[count];
+        int[] days = new int[count];
+        int found = 0;
+
+        Object lastDay = null;
+        for (int i = 0; i < count; i++) {
+            Object day = getDayKey(messageList, i);
+            if (i == 0 || !day.equals(lastDay)) {
+                positions[found] = i;
+                days[found] = getEpochDay(messageList.get(i));
+                found++;
+            }
+            lastDay = day;
+        }
+
+        if (mStart < found) grow(found, 0);
+        mStart -= found;
+        for (int i = 0; i < found; i++) {
+            mPositions[mStart + i] = positions[i] - mOffset;
+            mDays[mStart + i] = days[i];
+        }
+        mCursor = 0;
+    }
+
+    /**
+     * Updates the index after messages have been removed from the start of the list. The new first message always
+     * starts a section.
+     * @param count the number of removed messages
+     */
+    void removeFirst(int count) {
+        if (count <= 0 || size() == 0) return;
+
+        int section = getSection(count);
+        mStart += section;
+        mPositions[mStart] = count - mOffset;
+        mOffset -= count;
+        mCursor = 0;
+    }
+
+    /**
+     * Updates the index after messages have been removed from the end of the list.
+     * @param size the number of messages left
+     */
+    void removeLast(int size) {
+        if (size <= 0) {
+            clear();
+            return;
+        }
+
+        mEnd = mStart + getSection(size - 1) + 1;
+        mCursor = 0;
+    }
+
+    private void add(int position, int day) {
+        if (mEnd == mPositions.length) grow(0, 1);
+        mPositions[mEnd] = position - mOffset;
+        mDays[mEnd] = day;
+        mEnd++;
+    }
+
+    /**
+     * Makes sure that there is at least the given free space before and after the sections. Space freed by removing
+     * sections is reused, the arrays only grow if the sections do not fit otherwise.
+     */
+    private void grow(int before, int after) {
+        int size = size();
+        int headroom = before > 0 ? before + (size >> 1) : Math.min(mStart, size >> 1);
+        int tailroom = after > 0 ? after + (size >> 1) : 0;
+        int capacity = Math.max(INITIAL_CAPACITY, headroom + size + tailroom);
+
+        int[] positions = capacity > mPositions.length ? new int[capacity] : mPositions;
+        int[] days = capacity > mDays.length ? new int[capacity] : mDays;
+        System.arraycopy(mPositions, mStart, positions, headroom, size);
+        System.arraycopy(mDays, mStart, days, headroom, size);
+
+        mPositions = positions;
+        mDays = days;
+        mStart = headroom;
+        mEnd = headroom + size;
+    }
+
+    @NonNull
+    private static Object getDayKey(@NonNull List<Message> messageList, int index) {
+        if (messageList instanceof CompactMessageList) {
+            return ((CompactMessageList) messageList).getDay(index);
+        } else {
+            return messageList.get(index).getDateNoTime();
+        }
+    }
+
+    private static int getEpochDay(@NonNull CompactMessageList store, int index) {
+        return getEpochDay(store.get(index));
+    }
+
+    private static int getEpochDay(@NonNull Message message) {
+        long date = ChatDate.parse(message.date);
+        return date == Long.MIN_VALUE ? Integer.MIN_VALUE : (int) Math.floorDiv(date, 86400);
+    }
+}
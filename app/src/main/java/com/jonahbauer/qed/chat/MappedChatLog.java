@@ -0,0 +1,128 @@
+package com.jonahbauer.qed.chat;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jonahbauer.qed.Application;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A read-only list of the messages of a chat log that pages messages from the memory mapped log file on demand.
+ *
+ * Positions, ids and days are taken from a {@link ChatLogIndex}, {@link Message} objects are parsed from the log
+ * when they are requested and kept in a small cache. Lines that cannot be parsed are shown as an error message.
+ */
+public class MappedChatLog extends CompactMessageList implements Closeable {
+    private static final int CACHE_SIZE = 256;
+
+    private final ChatLogIndex mIndex;
+    private final ParcelFileDescriptor mDescriptor;
+    private final MessageParser mParser = new MessageParser();
+    private final LruCache<Integer, Message> mCache = new LruCache<>(CACHE_SIZE);
+
+    private MappedByteBuffer mSource;
+    private int mSize;
+
+    private MappedChatLog(@NonNull ChatLogIndex index, @NonNull ParcelFileDescriptor descriptor, @NonNull MappedByteBuffer source) {
+        this.mIndex = index;
+        this.mDescriptor = descriptor;
+        this.mSource = source;
+        this.mSize = index.size();
+    }
+
+    /**
+     * Maps the given log file. The file descriptor is owned by the returned object and closed by {@link #close()}. If
+     * the log cannot be mapped the descriptor stays open and remains owned by the caller.
+     * @return a mapped chat log or null if the log could not be mapped or does not match the index
+     */
+    @Nullable
+    public static MappedChatLog open(@NonNull ChatLogIndex index, @NonNull ParcelFileDescriptor descriptor) {
+        long size = descriptor.getStatSize();
+        if (size < 0 || size > Integer.MAX_VALUE) return null;
+
+        try {
+            FileChannel channel = new FileInputStream(descriptor.getFileDescriptor()).getChannel();
+            MappedByteBuffer source = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (!index.matches(source)) return null;
+
+            return new MappedChatLog(index, descriptor, source);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @NonNull
+    public ChatLogIndex getIndex() {
+        return mIndex;
+    }
+
+    @Override
+    public synchronized Message get(int index) {
+        if (index < 0 || index >= mSize) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+
+        Message message = mCache.get(index);
+        if (message != null) return message;
+
+        ByteBuffer line = mSource.duplicate();
+        int offset = (int) mIndex.getOffset(index);
+        line.position(offset);
+        line.limit(offset + mIndex.getLength(index));
+
+        CharBuffer chars = StandardCharsets.UTF_8.decode(line);
+        message = mParser.parse(chars);
+        if (message == null) {
+            Log.e(Application.LOG_TAG_ERROR, "Chat log index does not match log file at message " + index + ".");
+            message = new Message("Error", "Could not read message.", ChatDate.format(mIndex.getDate(index)),
+                    0, null, "220000", mIndex.getId(index), 0, mIndex.getChannel(index));
+        }
+
+        mCache.put(index, message);
+        return message;
+    }
+
+    @Override
+    public long getId(int index) {
+        return mIndex.getId(index);
+    }
+
+    @Override
+    public int getDay(int index) {
+        return (int) Math.floorDiv(mIndex.getDate(index), 86400);
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Releases the log file. The list will be empty afterwards.
+     */
+    @Override
+    public void clear() {
+        try {
+            close();
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mSize = 0;
+        mSource = null;
+        mCache.evictAll();
+        modCount++;
+        mDescriptor.close();
+    }
+}
@@ -4,21 +4,14 @@ import android.graphics.Color;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
+import android.util.LruCache;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.jonahbauer.qed.Application;
 
-import org.jetbrains.annotations.Contract;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.io.Serializable;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
 
 /**
  * An object representing a message in the qed chat
@@ -67,8 +60,15 @@ public class Message implements Parcelable, Comparable<Message>, Serializable {
         return 0;
     }
 
-    private static final SimpleDateFormat sdfIn = new SimpleDateFormat("yyyy-MM-dd", Locale.GERMANY);
-    private static final SimpleDateFormat sdfOut = new SimpleDateFormat("dd.MM.yyyy", Locale.GERMANY);
+    private static final int DAY_CACHE_SIZE = 64;
+    private static final int COLOR_CACHE_SIZE = 256;
+
+    /**
+     * Memo tables for the derived fields, most messages share their day and color with many others.
+     * Days are mapped from {@code yyyy-MM-dd} to {@code dd.MM.yyyy}, colors from their hex string to the transformed color.
+     */
+    private static final LruCache<String, String> sDayCache = new LruCache<>(DAY_CACHE_SIZE);
+    private static final LruCache<String, Integer> sColorCache = new LruCache<>(COLOR_CACHE_SIZE);
 
     public static final Message PONG = new Message("PONG", "PONG", "PONG", 0, "PONG", "000000", 0, 0, "PONG");
 
@@ -82,8 +82,8 @@ public class Message implements Parcelable, Comparable<Message>, Serializable {
     public final int bottag;
     public final long id;
 
-    public final String dateNoTime;
-    public final int transformedColor;
+    private transient volatile String mDateNoTime;
+    private transient volatile Integer mTransformedColor;
 
     public Message(@NonNull String name, @NonNull String message, @NonNull String date, long userId, @Nullable String userName, @NonNull String color, long id, int bottag, @NonNull String channel) {
         this.name = name;
@@ -95,19 +95,43 @@ public class Message implements Parcelable, Comparable<Message>, Serializable {
         this.id = id;
         this.bottag = bottag;
         this.channel = channel;
+    }
 
-        Date dateNoTimeObj = null;
-        try {
-            dateNoTimeObj = sdfIn.parse(date.split(" ")[0]);
-        } catch (ParseException ignored) {}
-
-        if (dateNoTimeObj != null) {
-            this.dateNoTime = sdfOut.format(dateNoTimeObj).intern();
-        } else {
-            this.dateNoTime = date.split(" ")[0].intern();
+    /**
+     * @return the day of this message formatted as {@code dd.MM.yyyy}. The returned strings are interned, so that
+     *         days can be compared by identity.
+     */
+    @NonNull
+    public String getDateNoTime() {
+        String dateNoTime = mDateNoTime;
+        if (dateNoTime == null) {
+            int space = date.indexOf(' ');
+            String day = space != -1 ? date.substring(0, space) : date;
+
+            dateNoTime = sDayCache.get(day);
+            if (dateNoTime == null) {
+                dateNoTime = formatDay(day);
+                sDayCache.put(day, dateNoTime);
+            }
+            mDateNoTime = dateNoTime;
         }
+        return dateNoTime;
+    }
 
-        transformedColor = transformColor(color);
+    /**
+     * @return the color of this message with full saturation and a fixed value
+     */
+    public int getTransformedColor() {
+        Integer transformedColor = mTransformedColor;
+        if (transformedColor == null) {
+            transformedColor = sColorCache.get(color);
+            if (transformedColor == null) {
+                transformedColor = transformColor(color);
+                sColorCache.put(color, transformedColor);
+            }
+            mTransformedColor = transformedColor;
+        }
+        return transformedColor;
     }
 
     @NonNull
@@ -130,39 +154,28 @@ public class Message implements Parcelable, Comparable<Message>, Serializable {
     }
 
     /**
-     * Parses a string as obtained by the chat web socket to a message object
-     * @param jsonMessage a json formatted message string
-     * @return a message object representing the given message, null if an error occurred
+     * Converts a day of the format {@code yyyy-MM-dd} to {@code dd.MM.yyyy}. Other formats are returned unchanged.
      */
-    @Contract("null -> null")
-    public static Message interpretJSONMessage(@Nullable String jsonMessage) {
-        if (jsonMessage == null) return null;
-        try {
-            JSONObject json = new JSONObject(jsonMessage);
-            String name = json.getString("name");
-            String message = json.getString("message");
-            String username = json.getString("username");
-            String color = json.getString("color");
-            String date = json.getString("date");
-            String channel = json.getString("channel");
-            int userid = json.optInt("user_id", -1);
-            int id = json.getInt("id");
-            int bottag = json.getInt("bottag");
-            name = name.trim();
-            if ("null".equals(username)) username = null;
-            return new Message(name, message, date, userid, username, color, id, bottag, channel);
-        } catch (JSONException e) {
-            if (!jsonMessage.contains("\"type\":\"ok\""))
-                Log.e(Application.LOG_TAG_ERROR, jsonMessage + ": " + e.getMessage(), e);
-        }
-        return null;
+    @NonNull
+    private static String formatDay(@NonNull String day) {
+        long epoch = ChatDate.parse(day);
+        if (epoch == Long.MIN_VALUE) return day.intern();
+
+        // normalizes out of range days just like a lenient date format would
+        String normalized = ChatDate.format(epoch);
+        return (normalized.substring(8, 10) + "." + normalized.substring(5, 7) + "." + normalized.substring(0, 4)).intern();
     }
 
-    private int transformColor(String color) {
-        return transformColor(Color.parseColor("#" + color));
+    private static int transformColor(String color) {
+        try {
+            return transformColor(Color.parseColor("#" + color));
+        } catch (IllegalArgumentException e) {
+            Log.e(Application.LOG_TAG_ERROR, "Invalid message color " + color, e);
+            return transformColor(Color.BLACK);
+        }
     }
 
-    private int transformColor(int color) {
+    private static int transformColor(int color) {
         float[] hsv = new float[3];
         Color.colorToHSV(color, hsv);
 
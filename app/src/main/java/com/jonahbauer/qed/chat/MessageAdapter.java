@@ -2,32 +2,66 @@ package com.jonahbauer.qed.chat;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.util.TypedValue;
-import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
-import android.widget.LinearLayout;
+import android.widget.SectionIndexer;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.preference.PreferenceManager;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.jonahbauer.qed.Pref;
 import com.jonahbauer.qed.R;
 import com.jonahbauer.qed.layoutStuff.MathView;
+import com.jonahbauer.qed.layoutStuff.MessageLayoutCache;
 import com.jonahbauer.qed.layoutStuff.MessageView;
 
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
-public class MessageAdapter extends ArrayAdapter<Message> {
+/**
+ * Shows a list of messages in a {@link RecyclerView}.
+ *
+ * Items have stable ids, appending messages only binds the new rows. When the whole list is replaced via
+ * {@link #setData(List)} the changes are computed with {@link DiffUtil} on a background thread so that only rows
+ * which actually changed are rebound.
+ *
+ * Each day is a section starting with a date banner, the sections are kept in a {@link DateBannerIndex}.
+ */
+public class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.ViewHolder> implements SectionIndexer {
+    public static final int VIEW_TYPE_NORMAL = 0;
+    public static final int VIEW_TYPE_KATEX = 1;
+    public static final int VIEW_TYPE_EXTENDED = 2;
+
+    /**
+     * The number of messages before and after a bound message whose texts are precomputed in the background
+     */
+    private static final int PREFETCH_DISTANCE = 20;
+
+    /**
+     * Lists longer than this are replaced without computing a diff, e.g. when a complete log is loaded
+     */
+    private static final int MAX_DIFF_SIZE = 5000;
+
+    /**
+     * Payload for rows whose checked state changed
+     */
+    private static final Object PAYLOAD_CHECKED = new Object();
+
+    private static Handler sDiffHandler;
+
     private final Context mContext;
-    private final List<Message> mMessageList;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private List<Message> mMessageList;
 
-    private final HashSet<Integer> mDateBannerPositions;
+    private DateBannerIndex mDateBanners;
+    private String[] mSections;
 
     private final int mDp3;
     private boolean mLinkify;
@@ -38,18 +72,31 @@ public class MessageAdapter extends ArrayAdapter<Message> {
     private boolean mKatexSet;
     private boolean mLinkifySet;
 
-    private final LinearLayout mathPreload;
-
-    public MessageAdapter(Context context, @NonNull List<Message> messageList, @Nullable LinearLayout mathPreload) {
-        this(context, messageList, mathPreload, null, null, false);
+    private long mCheckedId = RecyclerView.NO_ID;
+    private int mCheckedPosition = RecyclerView.NO_POSITION;
+    private OnItemClickListener mOnItemClickListener;
+
+    /**
+     * The list passed to {@link #setData(List)} while its diff is being computed
+     */
+    private List<Message> mPendingList;
+    private Runnable mPendingCallback;
+    private int mGeneration;
+
+    /**
+     * The position around which messages were last prefetched, prefetching only happens again after scrolling
+     * a few messages since looking up messages is not free.
+     */
+    private int mPrefetchPosition = Integer.MIN_VALUE / 2;
+
+    public MessageAdapter(Context context, @NonNull List<Message> messageList) {
+        this(context, messageList, null, null, false);
     }
 
-    public MessageAdapter(Context context, @NonNull List<Message> messageList, @Nullable LinearLayout mathPreload, @Nullable Boolean katex, @Nullable Boolean linkify, boolean extended) {
-        super(context, 0, messageList);
+    public MessageAdapter(Context context, @NonNull List<Message> messageList, @Nullable Boolean katex, @Nullable Boolean linkify, boolean extended) {
         this.mContext = context;
         this.mMessageList = messageList;
-        this.mDateBannerPositions = new HashSet<>();
-        this.mathPreload = mathPreload;
+        this.mDateBanners = new DateBannerIndex();
 
         this.mExtended = extended;
 
@@ -61,126 +108,453 @@ public class MessageAdapter extends ArrayAdapter<Message> {
 
         if (mExtended && mKatexSet && mKatex) throw new IllegalArgumentException("Extended message views do not support Katex!");
 
-        if (!messageList.isEmpty()) findDateBanners();
+        mDateBanners.append(messageList, 0);
 
         mDp3 = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 3, context.getResources().getDisplayMetrics());
+        setHasStableIds(true);
         reload();
     }
 
+    @Override
+    public int getItemViewType(int position) {
+        if (mExtended) return VIEW_TYPE_EXTENDED;
+        else if (mKatex) return VIEW_TYPE_KATEX;
+        else return VIEW_TYPE_NORMAL;
+    }
+
     @NonNull
     @Override
-    public View getView(int position, View convertView, @NonNull ViewGroup parent) {
-        final Message message = mMessageList.get(position);
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        MessageView view = new MessageView(mContext, viewType == VIEW_TYPE_EXTENDED);
+        view.setLayoutParams(new RecyclerView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+        view.setPadding(mDp3, mDp3, mDp3, mDp3);
+        view.setKatex(viewType == VIEW_TYPE_KATEX);
+        view.setDescendantFocusability(ViewGroup.FOCUS_BLOCK_DESCENDANTS);
 
-        MessageView view = null;
-        if (convertView instanceof MessageView) {
-            view = (MessageView) convertView;
-            if (view.isExtended() != mExtended) {
-                view = null;
+        ViewHolder holder = new ViewHolder(view);
+        view.setOnClickListener(v -> {
+            int position = holder.getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION && mOnItemClickListener != null) {
+                mOnItemClickListener.onItemClick(position);
             }
-        }
+        });
+        view.setOnLongClickListener(v -> {
+            int position = holder.getAdapterPosition();
+            return position != RecyclerView.NO_POSITION && mOnItemClickListener != null
+                    && mOnItemClickListener.onItemLongClick(position);
+        });
+        return holder;
+    }
 
-        if (view == null) {
-            view = new MessageView(mContext, mExtended);
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (!payloads.isEmpty() && payloads.stream().allMatch(payload -> payload == PAYLOAD_CHECKED)) {
+            holder.mMessageView.setActivated(position == mCheckedPosition);
+        } else {
+            onBindViewHolder(holder, position);
         }
+    }
 
-        view.setPadding(mDp3, mDp3, mDp3, mDp3);
-        view.setKatex(mKatex);
-        view.setMessage(message);
-        view.setFocusable(false);
-        view.setDescendantFocusability(ViewGroup.FOCUS_BLOCK_DESCENDANTS);
-        view.setDateBanner(mDateBannerPositions.contains(position) ? message.dateNoTime : null);
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        final Message message = mMessageList.get(position);
+        MessageView view = holder.mMessageView;
+
+        // the links are part of the precomputed text, so they have to be set up first
         view.setLinkify(mLinkify);
+        view.setMessage(message);
+        if (!mKatex && Math.abs(position - mPrefetchPosition) > PREFETCH_DISTANCE / 2) {
+            mPrefetchPosition = position;
+            MessageLayoutCache.getInstance().prefetch(mMessageList, position - PREFETCH_DISTANCE, position + PREFETCH_DISTANCE + 1, view.getTextSettings());
+        }
+        view.setDateBanner(mDateBanners.contains(position) ? message.getDateNoTime() : null);
         view.setColorful(mColorful);
+        view.setActivated(position == mCheckedPosition);
+    }
 
-        return view;
+    public void setOnItemClickListener(@Nullable OnItemClickListener listener) {
+        mOnItemClickListener = listener;
     }
 
-    public List<Message> getData() {
-        return new LinkedList<>(mMessageList);
+    /**
+     * Sets the checked state of the item at the given position. At most one item is checked at any time.
+     */
+    public void setItemChecked(int position, boolean checked) {
+        int oldPosition = mCheckedPosition;
+        if (checked) {
+            mCheckedPosition = position;
+            mCheckedId = getItemId(position);
+        } else if (position == mCheckedPosition) {
+            mCheckedPosition = RecyclerView.NO_POSITION;
+            mCheckedId = RecyclerView.NO_ID;
+        } else {
+            return;
+        }
+
+        if (oldPosition != RecyclerView.NO_POSITION && oldPosition != mCheckedPosition) notifyItemChanged(oldPosition, PAYLOAD_CHECKED);
+        if (mCheckedPosition != RecyclerView.NO_POSITION) notifyItemChanged(mCheckedPosition, PAYLOAD_CHECKED);
     }
 
-    @Override
-    public void addAll(@NonNull Collection<? extends Message> collection) {
-        super.addAll(collection);
-        findDateBanners();
+    public boolean isItemChecked(int position) {
+        return position != RecyclerView.NO_POSITION && position == mCheckedPosition;
+    }
 
-        if (mKatex) {
-            float size = mContext.getResources().getDimensionPixelSize(R.dimen.message_text_size);
-            for (Message message : collection) {
-                MathView.extractAndPreload(mContext, message.message, size, message.id, mathPreload);
+    /**
+     * @return the position of the checked item or {@link RecyclerView#NO_POSITION} if no item is checked
+     */
+    public int getCheckedItemPosition() {
+        return mCheckedPosition;
+    }
+
+    /**
+     * @return the list shown by this adapter without copying it. The list must not be modified.
+     */
+    @NonNull
+    public List<Message> getMessages() {
+        applyPendingData();
+        return mMessageList;
+    }
+
+    /**
+     * Replaces the messages shown by this adapter.
+     * @see #setData(List, Runnable)
+     */
+    public void setData(@NonNull List<Message> messageList) {
+        setData(messageList, null);
+    }
+
+    /**
+     * Replaces the messages shown by this adapter. The adapter takes ownership of the given list.
+     *
+     * Unless one of the lists is very long, the changes are computed on a background thread and only the rows that
+     * changed are rebound. Until then the old messages stay visible.
+     *
+     * @param commitCallback invoked on the main thread once the new messages are shown
+     */
+    public void setData(@NonNull List<Message> messageList, @Nullable Runnable commitCallback) {
+        applyPendingData();
+        mPrefetchPosition = Integer.MIN_VALUE / 2;
+
+        int oldSize = mMessageList.size();
+        int newSize = messageList.size();
+        if (oldSize == 0 || newSize == 0 || oldSize > MAX_DIFF_SIZE || newSize > MAX_DIFF_SIZE) {
+            DateBannerIndex dateBanners = new DateBannerIndex();
+            dateBanners.append(messageList, 0);
+            replaceData(messageList, dateBanners);
+
+            if (oldSize == 0) notifyItemRangeInserted(0, newSize);
+            else if (newSize == 0) notifyItemRangeRemoved(0, oldSize);
+            else notifyDataSetChanged();
+
+            if (commitCallback != null) commitCallback.run();
+            return;
+        }
+
+        long[] oldIds = getIds(mMessageList);
+        DateBannerIndex oldDateBanners = mDateBanners.copy();
+
+        int generation = ++mGeneration;
+        mPendingList = messageList;
+        mPendingCallback = commitCallback;
+        getDiffHandler().post(() -> {
+            long[] newIds = getIds(messageList);
+            DateBannerIndex newDateBanners = new DateBannerIndex();
+            newDateBanners.append(messageList, 0);
+
+            // messages never change, a row only changes when it gains or loses its date banner
+            DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return oldIds.length;
+                }
+
+                @Override
+                public int getNewListSize() {
+                    return newIds.length;
+                }
+
+                @Override
+                public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                    return oldIds[oldItemPosition] == newIds[newItemPosition];
+                }
+
+                @Override
+                public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                    return oldDateBanners.contains(oldItemPosition) == newDateBanners.contains(newItemPosition);
+                }
+            }, false);
+
+            mHandler.post(() -> {
+                if (generation != mGeneration) return;
+
+                mPendingList = null;
+                mPendingCallback = null;
+                replaceData(messageList, newDateBanners);
+                result.dispatchUpdatesTo(this);
+
+                if (commitCallback != null) commitCallback.run();
+            });
+        });
+    }
+
+    /**
+     * Immediately shows the list whose diff is still being computed
+     */
+    private void applyPendingData() {
+        if (mPendingList == null) return;
+
+        List<Message> messageList = mPendingList;
+        Runnable commitCallback = mPendingCallback;
+        mPendingList = null;
+        mPendingCallback = null;
+        mGeneration++;
+
+        DateBannerIndex dateBanners = new DateBannerIndex();
+        dateBanners.append(messageList, 0);
+        replaceData(messageList, dateBanners);
+        notifyDataSetChanged();
+
+        if (commitCallback != null) commitCallback.run();
+    }
+
+    private void replaceData(@NonNull List<Message> messageList, @NonNull DateBannerIndex dateBanners) {
+        mMessageList = messageList;
+        mDateBanners = dateBanners;
+        mSections = null;
+
+        // keep the checked message checked if it is still there
+        int checkedPosition = RecyclerView.NO_POSITION;
+        if (mCheckedId != RecyclerView.NO_ID) {
+            for (int i = 0; i < messageList.size(); i++) {
+                if (getItemId(i) == mCheckedId) {
+                    checkedPosition = i;
+                    break;
+                }
             }
         }
+        mCheckedPosition = checkedPosition;
+        if (checkedPosition == RecyclerView.NO_POSITION) mCheckedId = RecyclerView.NO_ID;
     }
 
-    public void add(Message message) {
-        super.add(message);
-        checkDateBanner();
+    @NonNull
+    private static long[] getIds(@NonNull List<Message> messageList) {
+        long[] ids = new long[messageList.size()];
+        if (messageList instanceof CompactMessageList) {
+            CompactMessageList store = (CompactMessageList) messageList;
+            for (int i = 0; i < ids.length; i++) ids[i] = store.getId(i);
+        } else {
+            int i = 0;
+            for (Message message : messageList) ids[i++] = message.id;
+        }
+        return ids;
+    }
 
-        if (mKatex) {
-            float size = mContext.getResources().getDimensionPixelSize(R.dimen.message_text_size);
-            MathView.extractAndPreload(mContext, message.message, size, message.id, mathPreload);
+    @NonNull
+    private static synchronized Handler getDiffHandler() {
+        if (sDiffHandler == null) {
+            HandlerThread thread = new HandlerThread("MessageAdapterDiff", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sDiffHandler = new Handler(thread.getLooper());
         }
+        return sDiffHandler;
     }
 
-    private void findDateBanners() {
-        mDateBannerPositions.clear();
+    public Message getItem(int position) {
+        return mMessageList.get(position);
+    }
 
-        if (mMessageList.size() == 0) return;
+    public void addAll(@NonNull Collection<? extends Message> collection) {
+        applyPendingData();
 
-        mDateBannerPositions.add(0);
+        int start = mMessageList.size();
+        mMessageList.addAll(collection);
+        mDateBanners.append(mMessageList, start);
+        mSections = null;
+        notifyItemRangeInserted(start, mMessageList.size() - start);
 
-        Iterator<Message> iterator = mMessageList.iterator();
-        String lastDate = iterator.next().dateNoTime;
-        String dateNoTime;
+        preloadKatex(collection);
+    }
 
-        int i = 1;
-        while (iterator.hasNext()) {
-            dateNoTime = iterator.next().dateNoTime;
+    /**
+     * Inserts the given messages, which have to be older than the messages shown so far, at the start of the list.
+     * The list passed to this adapter has to support insertion at the start, e.g. a {@link MessageStore}.
+     */
+    public void prependAll(@NonNull Collection<? extends Message> collection) {
+        applyPendingData();
+        if (collection.isEmpty()) return;
+
+        mMessageList.addAll(0, collection);
+        mDateBanners.prepend(mMessageList, collection.size());
+        mSections = null;
+        if (mCheckedPosition != RecyclerView.NO_POSITION) mCheckedPosition += collection.size();
+        mPrefetchPosition += collection.size();
+        notifyItemRangeInserted(0, collection.size());
+
+        // the previously first message might have lost its date banner
+        notifyItemChanged(collection.size());
+
+        preloadKatex(collection);
+    }
 
-            //noinspection StringEquality dateNoTime values are created with String.intern()
-            if (lastDate != dateNoTime) {
-                lastDate = dateNoTime;
-                mDateBannerPositions.add(i);
+    /**
+     * Removes the first messages. The list passed to this adapter has to support removal at the start, e.g. a
+     * {@link MessageStore}.
+     */
+    public void removeFirst(int count) {
+        applyPendingData();
+        count = Math.min(count, mMessageList.size());
+        if (count <= 0) return;
+
+        if (count == mMessageList.size()) {
+            clear();
+            return;
+        }
+
+        if (mMessageList instanceof MessageStore) {
+            ((MessageStore) mMessageList).removeFirst(count);
+        } else {
+            mMessageList.subList(0, count).clear();
+        }
+        mDateBanners.removeFirst(count);
+        mSections = null;
+        if (mCheckedPosition != RecyclerView.NO_POSITION) {
+            mCheckedPosition -= count;
+            if (mCheckedPosition < 0) {
+                mCheckedPosition = RecyclerView.NO_POSITION;
+                mCheckedId = RecyclerView.NO_ID;
             }
+        }
+        mPrefetchPosition -= count;
+        notifyItemRangeRemoved(0, count);
+
+        // the new first message always shows a date banner
+        notifyItemChanged(0);
+    }
 
-            i++;
+    /**
+     * Removes the last messages.
+     */
+    public void removeLast(int count) {
+        applyPendingData();
+        count = Math.min(count, mMessageList.size());
+        if (count <= 0) return;
+
+        int size = mMessageList.size() - count;
+        if (mMessageList instanceof MessageStore) {
+            ((MessageStore) mMessageList).removeLast(count);
+        } else {
+            mMessageList.subList(size, size + count).clear();
         }
+        mDateBanners.removeLast(size);
+        mSections = null;
+        if (mCheckedPosition >= size) {
+            mCheckedPosition = RecyclerView.NO_POSITION;
+            mCheckedId = RecyclerView.NO_ID;
+        }
+        notifyItemRangeRemoved(size, count);
     }
 
-    private void checkDateBanner() {
-        int size = mMessageList.size();
+    public void add(Message message) {
+        applyPendingData();
+
+        mMessageList.add(message);
+        mDateBanners.append(mMessageList, mMessageList.size() - 1);
+        mSections = null;
+        notifyItemInserted(mMessageList.size() - 1);
+
+        if (mKatex) {
+            float size = mContext.getResources().getDimensionPixelSize(R.dimen.message_text_size);
+            MathView.extractAndPreload(mContext, message.message, size);
+        }
+    }
+
+    private void preloadKatex(@NonNull Collection<? extends Message> collection) {
+        if (!mKatex) return;
+
+        float size = mContext.getResources().getDimensionPixelSize(R.dimen.message_text_size);
+        for (Message message : collection) {
+            MathView.extractAndPreload(mContext, message.message, size);
+        }
+    }
+
+    /**
+     * @return the position of the first message posted on or after the given day or the position of the last
+     * message if there is none
+     * @param month the month from 1 to 12
+     */
+    public int getPositionForDay(int year, int month, int dayOfMonth) {
+        applyPendingData();
+
+        long date = ChatDate.toEpoch(year, month, dayOfMonth, 0, 0, 0);
 
-        if (size < 2) return;
+        // a mapped log can be searched by date without looking at its messages
+        if (mMessageList instanceof MappedChatLog) {
+            int position = ((MappedChatLog) mMessageList).getIndex().findByDate(date);
+            return Math.max(0, Math.min(position, mMessageList.size() - 1));
+        }
+
+        int day = (int) Math.floorDiv(date, 86400);
+        int section = mDateBanners.findSection(day);
+        if (section < mDateBanners.size()) return mDateBanners.getPosition(section);
+        else return Math.max(0, mMessageList.size() - 1);
+    }
 
-        String lastDateNoTime = mMessageList.get(size - 2).dateNoTime;
-        String dateNoTime = mMessageList.get(size - 1).dateNoTime;
+    /**
+     * @return the day the message at the given position was posted on in days since the epoch or
+     * {@link Integer#MIN_VALUE} if it is unknown
+     */
+    public int getDay(int position) {
+        int section = mDateBanners.getSection(position);
+        return section == -1 ? Integer.MIN_VALUE : mDateBanners.getDay(section);
+    }
 
-        //noinspection StringEquality dateNoTime values are created with String.intern()
-        if (lastDateNoTime != dateNoTime) {
-            mDateBannerPositions.add(size - 1);
+    @Override
+    public Object[] getSections() {
+        if (mSections == null) {
+            String[] sections = new String[mDateBanners.size()];
+            for (int i = 0; i < sections.length; i++) {
+                sections[i] = mMessageList.get(mDateBanners.getPosition(i)).getDateNoTime();
+            }
+            mSections = sections;
         }
+        return mSections;
     }
 
     @Override
-    public int getCount() {
-        return mMessageList.size();
+    public int getPositionForSection(int sectionIndex) {
+        int size = mDateBanners.size();
+        if (size == 0) return 0;
+        return mDateBanners.getPosition(Math.max(0, Math.min(sectionIndex, size - 1)));
     }
 
     @Override
-    public boolean hasStableIds() {
-        return true;
+    public int getSectionForPosition(int position) {
+        return Math.max(0, mDateBanners.getSection(position));
+    }
+
+    @Override
+    public int getItemCount() {
+        return mMessageList.size();
     }
 
     @Override
     public long getItemId(int position) {
-        if (position < mMessageList.size())
+        if (position < mMessageList.size() && mMessageList instanceof CompactMessageList)
+            return ((CompactMessageList) mMessageList).getId(position);
+        else if (position < mMessageList.size())
             return mMessageList.get(position).id;
         else
             return -1;
     }
 
+    /**
+     * Reads the message settings from the preferences and rebinds all rows if they changed.
+     */
     public void reload() {
+        boolean colorful = mColorful;
+        boolean linkify = mLinkify;
+        boolean katex = mKatex;
+
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
         mColorful = sharedPreferences.getBoolean(Pref.Chat.COLORFUL_MESSAGES,false);
         if (!mLinkifySet)
@@ -188,13 +562,8 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         if (!mKatexSet)
             mKatex = sharedPreferences.getBoolean(Pref.Chat.KATEX, false);
 
-        MathView.clearCache();
-        if (mathPreload != null) mathPreload.removeAllViews();
-        if (mKatex && !mExtended) {
-            float size = mContext.getResources().getDimensionPixelSize(R.dimen.message_text_size);
-            for (Message message : mMessageList) {
-                MathView.extractAndPreload(mContext, message.message, size, message.id, mathPreload);
-            }
+        if (colorful != mColorful || linkify != mLinkify || katex != mKatex) {
+            notifyItemRangeChanged(0, mMessageList.size());
         }
     }
 
@@ -205,9 +574,38 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         reload();
     }
 
-    @Override
+    /**
+     * Removes all messages. Settings are not re-read, call {@link #reload()} for that.
+     */
     public void clear() {
-        super.clear();
-        reload();
+        mPendingList = null;
+        mPendingCallback = null;
+        mGeneration++;
+
+        int size = mMessageList.size();
+        mMessageList.clear();
+        mDateBanners.clear();
+        mSections = null;
+        mCheckedPosition = RecyclerView.NO_POSITION;
+        mCheckedId = RecyclerView.NO_ID;
+        notifyItemRangeRemoved(0, size);
+    }
+
+    public interface OnItemClickListener {
+        void onItemClick(int position);
+
+        /**
+         * @return true if the long click was consumed
+         */
+        boolean onItemLongClick(int position);
+    }
+
+    public static class ViewHolder extends RecyclerView.ViewHolder {
+        final MessageView mMessageView;
+
+        ViewHolder(@NonNull MessageView view) {
+            super(view);
+            mMessageView = view;
+        }
     }
 }
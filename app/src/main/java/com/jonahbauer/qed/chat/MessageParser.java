@@ -0,0 +1,364 @@
+package com.jonahbauer.qed.chat;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jonahbauer.qed.Application;
+
+import org.json.JSONException;
+
+/**
+ * A streaming parser for json formatted messages as obtained by the chat web socket or the chat log.
+ *
+ * No intermediate {@code JSONObject} is built, the message fields are read straight from the input. Instances hold
+ * reusable buffers and are therefore not thread safe.
+ */
+public class MessageParser {
+    public static final String TYPE_PING = "ping";
+    public static final String TYPE_PONG = "pong";
+    public static final String TYPE_ACK = "ack";
+    public static final String TYPE_POST = "post";
+
+    private static final String[] TYPES = {TYPE_PING, TYPE_PONG, TYPE_ACK, TYPE_POST};
+
+    private static final int FIELD_NAME = 1;
+    private static final int FIELD_MESSAGE = 1 << 1;
+    private static final int FIELD_USERNAME = 1 << 2;
+    private static final int FIELD_COLOR = 1 << 3;
+    private static final int FIELD_DATE = 1 << 4;
+    private static final int FIELD_CHANNEL = 1 << 5;
+    private static final int FIELD_USER_ID = 1 << 6;
+    private static final int FIELD_ID = 1 << 7;
+    private static final int FIELD_BOTTAG = 1 << 8;
+    private static final int FIELD_TYPE = 1 << 9;
+    private static final int FIELD_UNKNOWN = 0;
+
+    private static final int FIELDS_REQUIRED = FIELD_NAME | FIELD_MESSAGE | FIELD_USERNAME | FIELD_COLOR
+            | FIELD_DATE | FIELD_CHANNEL | FIELD_ID | FIELD_BOTTAG;
+
+    private static final String[] KEYS = {"name", "message", "username", "color", "date", "channel", "user_id", "id", "bottag", "type"};
+    private static final int[] KEY_FIELDS = {FIELD_NAME, FIELD_MESSAGE, FIELD_USERNAME, FIELD_COLOR, FIELD_DATE, FIELD_CHANNEL, FIELD_USER_ID, FIELD_ID, FIELD_BOTTAG, FIELD_TYPE};
+
+    private final StringBuilder mBuilder = new StringBuilder();
+
+    private CharSequence mInput;
+    private int mPosition;
+    private int mLength;
+
+    private int mFields;
+    private String mName;
+    private String mMessage;
+    private String mUserName;
+    private String mColor;
+    private String mDate;
+    private String mChannel;
+    private String mType;
+    private long mUserId;
+    private long mId;
+    private int mBottag;
+
+    private long mNumber;
+
+    /**
+     * Parses a json formatted message string to a message object
+     * @param json a json formatted message string
+     * @return a message object representing the given message, null if the input is no message or an error occurred
+     */
+    @Nullable
+    public Message parse(@Nullable CharSequence json) {
+        if (json == null) return null;
+
+        try {
+            readObject(json);
+        } catch (JSONException e) {
+            Log.e(Application.LOG_TAG_ERROR, json + ": " + e.getMessage(), e);
+            return null;
+        } finally {
+            mInput = null;
+        }
+
+        if ((mFields & FIELDS_REQUIRED) != FIELDS_REQUIRED) return null;
+
+        String userName = "null".equals(mUserName) ? null : mUserName;
+        long userId = (mFields & FIELD_USER_ID) != 0 ? mUserId : -1;
+
+        return new Message(mName.trim(), mMessage, mDate, userId, userName, mColor, mId, mBottag, mChannel);
+    }
+
+    /**
+     * @return the value of the {@code type} field of the last parsed object or null if there was none. Known types
+     *         are returned as the {@code TYPE_*} constants.
+     */
+    @Nullable
+    public String getType() {
+        return mType;
+    }
+
+    private void readObject(@NonNull CharSequence json) throws JSONException {
+        mInput = json;
+        mPosition = 0;
+        mLength = json.length();
+
+        mFields = 0;
+        mType = null;
+
+        skipWhitespace();
+        expect('{');
+
+        skipWhitespace();
+        if (peek() == '}') {
+            mPosition++;
+            return;
+        }
+
+        while (true) {
+            skipWhitespace();
+            expect('"');
+            readString();
+            int field = matchKey();
+
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+
+            switch (field) {
+                case FIELD_NAME:
+                    mName = readStringValue();
+                    break;
+                case FIELD_MESSAGE:
+                    mMessage = readStringValue();
+                    break;
+                case FIELD_USERNAME:
+                    mUserName = readStringValue();
+                    break;
+                case FIELD_COLOR:
+                    mColor = readStringValue();
+                    break;
+                case FIELD_DATE:
+                    mDate = readStringValue();
+                    break;
+                case FIELD_CHANNEL:
+                    mChannel = readStringValue();
+                    break;
+                case FIELD_TYPE:
+                    mType = readTypeValue();
+                    break;
+                case FIELD_USER_ID:
+                    if (readLongValue()) mUserId = mNumber;
+                    else field = FIELD_UNKNOWN;
+                    break;
+                case FIELD_ID:
+                    if (readLongValue()) mId = mNumber;
+                    else field = FIELD_UNKNOWN;
+                    break;
+                case FIELD_BOTTAG:
+                    if (readLongValue()) mBottag = (int) mNumber;
+                    else field = FIELD_UNKNOWN;
+                    break;
+                default:
+                    skipValue();
+                    break;
+            }
+
+            mFields |= field;
+
+            skipWhitespace();
+            char c = next();
+            if (c == '}') return;
+            else if (c != ',') throw syntaxError("Expected ',' or '}'");
+        }
+    }
+
+    private int matchKey() {
+        int index = match(KEYS);
+        return index != -1 ? KEY_FIELDS[index] : FIELD_UNKNOWN;
+    }
+
+    /**
+     * @return the index of the string equal to the content of {@link #mBuilder} or -1 if there is none
+     */
+    private int match(String[] strings) {
+        int length = mBuilder.length();
+        outer: for (int i = 0; i < strings.length; i++) {
+            String string = strings[i];
+            if (string.length() != length) continue;
+            for (int j = 0; j < length; j++) {
+                if (string.charAt(j) != mBuilder.charAt(j)) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a value as a string. Non-string values are returned as they appear in the input.
+     */
+    @NonNull
+    private String readStringValue() throws JSONException {
+        if (peek() == '"') {
+            mPosition++;
+            readString();
+        } else {
+            readLiteral();
+        }
+        return mBuilder.toString();
+    }
+
+    /**
+     * Reads a value as a string like {@link #readStringValue()}, but returns one of the {@code TYPE_*} constants
+     * without allocating if possible.
+     */
+    @NonNull
+    private String readTypeValue() throws JSONException {
+        if (peek() == '"') {
+            mPosition++;
+            readString();
+        } else {
+            readLiteral();
+        }
+
+        int index = match(TYPES);
+        return index != -1 ? TYPES[index] : mBuilder.toString();
+    }
+
+    /**
+     * Reads a value as a number and stores it in {@link #mNumber}.
+     * @return false if the value could not be interpreted as a number
+     */
+    private boolean readLongValue() throws JSONException {
+        if (peek() == '"') {
+            mPosition++;
+            readString();
+        } else {
+            readLiteral();
+        }
+
+        int length = mBuilder.length();
+        if (length == 0) return false;
+
+        boolean negative = mBuilder.charAt(0) == '-';
+        long out = 0;
+        for (int i = negative ? 1 : 0; i < length; i++) {
+            char c = mBuilder.charAt(i);
+            if (c >= '0' && c <= '9') {
+                out = out * 10 + (c - '0');
+            } else {
+                // fractions and exponents are rare enough to take the slow path
+                try {
+                    mNumber = (long) Double.parseDouble(mBuilder.toString());
+                    return true;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+
+        mNumber = negative ? -out : out;
+        return true;
+    }
+
+    /**
+     * Reads a string starting after the opening quotation mark into {@link #mBuilder}.
+     */
+    private void readString() throws JSONException {
+        mBuilder.setLength(0);
+
+        while (mPosition < mLength) {
+            char c = mInput.charAt(mPosition++);
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                c = next();
+                switch (c) {
+                    case 'b': mBuilder.append('\b'); break;
+                    case 'f': mBuilder.append('\f'); break;
+                    case 'n': mBuilder.append('\n'); break;
+                    case 'r': mBuilder.append('\r'); break;
+                    case 't': mBuilder.append('\t'); break;
+                    case 'u':
+                        if (mPosition + 4 > mLength) throw syntaxError("Unterminated escape sequence");
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(mInput.charAt(mPosition++), 16);
+                            if (digit == -1) throw syntaxError("Invalid escape sequence");
+                            code = (code << 4) | digit;
+                        }
+                        mBuilder.append((char) code);
+                        break;
+                    default:
+                        mBuilder.append(c);
+                }
+            } else {
+                mBuilder.append(c);
+            }
+        }
+
+        throw syntaxError("Unterminated string");
+    }
+
+    /**
+     * Reads an unquoted value (number, {@code true}, {@code false} or {@code null}) into {@link #mBuilder}.
+     */
+    private void readLiteral() throws JSONException {
+        mBuilder.setLength(0);
+
+        while (mPosition < mLength) {
+            char c = mInput.charAt(mPosition);
+            if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) break;
+            mBuilder.append(c);
+            mPosition++;
+        }
+
+        if (mBuilder.length() == 0) throw syntaxError("Expected value");
+    }
+
+    private void skipValue() throws JSONException {
+        char c = peek();
+        if (c == '"') {
+            mPosition++;
+            readString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            while (mPosition < mLength) {
+                c = mInput.charAt(mPosition++);
+                if (c == '"') {
+                    readString();
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) return;
+                }
+            }
+            throw syntaxError("Unterminated value");
+        } else {
+            readLiteral();
+        }
+    }
+
+    private void skipWhitespace() {
+        while (mPosition < mLength && Character.isWhitespace(mInput.charAt(mPosition))) {
+            mPosition++;
+        }
+    }
+
+    private void expect(char expected) throws JSONException {
+        if (next() != expected) throw syntaxError("Expected '" + expected + "'");
+    }
+
+    private char peek() throws JSONException {
+        if (mPosition >= mLength) throw syntaxError("Unexpected end of input");
+        return mInput.charAt(mPosition);
+    }
+
+    private char next() throws JSONException {
+        if (mPosition >= mLength) throw syntaxError("Unexpected end of input");
+        return mInput.charAt(mPosition++);
+    }
+
+    @NonNull
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + mPosition);
+    }
+}
@@ -0,0 +1,427 @@
+package com.jonahbauer.qed.chat;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A memory compact list of messages that can only be modified at its ends.
+ *
+ * Instead of keeping one {@link Message} object per post the fields are stored in primitive arrays. Names, user
+ * names, colors, channels and days are dictionary encoded, message bodies are kept as utf-8 in a shared byte
+ * array. {@link Message} objects are only created when an element is requested via {@link #get(int)}.
+ *
+ * The elements occupy a range of the arrays with free space on both sides, so that appending, prepending and removing
+ * messages at either end only costs time proportional to the number of messages concerned (amortized).
+ * The store is thread-safe, so that it can be read on a background thread while messages are appended.
+ */
+public class MessageStore extends CompactMessageList {
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int NO_TIME = Integer.MIN_VALUE;
+
+    private final Pool mNamePool = new Pool();
+    private final Pool mUserNamePool = new Pool();
+    private final Pool mColorPool = new Pool();
+    private final Pool mChannelPool = new Pool();
+    private final Pool mDayPool = new Pool();
+    private final Pool mTimePool = new Pool();
+
+    /**
+     * The elements are stored at {@code [mStart, mStart + mSize)} of the arrays
+     */
+    private int mStart;
+    private int mSize;
+
+    private long[] mIds;
+    private int[] mUserIds;
+    private int[] mBottags;
+    private int[] mNames;
+    private int[] mUserNames;
+    private int[] mColors;
+    private int[] mChannels;
+    private int[] mDays;
+    private int[] mTimes;
+
+    /**
+     * The start of each body in {@link #mBodies}, the bodies are stored at {@code [mBodiesStart, mBodiesEnd)} in
+     * element order
+     */
+    private int[] mBodyOffsets;
+    private byte[] mBodies;
+    private int mBodiesStart;
+    private int mBodiesEnd;
+
+    public MessageStore() {
+        allocate(INITIAL_CAPACITY);
+        mBodies = new byte[INITIAL_CAPACITY * 64];
+    }
+
+    @NonNull
+    @Override
+    public synchronized Message get(int index) {
+        checkIndex(index);
+        int i = mStart + index;
+
+        int bodyStart = mBodyOffsets[i];
+        int bodyEnd = index + 1 < mSize ? mBodyOffsets[i + 1] : mBodiesEnd;
+
+        return new Message(
+                mNamePool.get(mNames[i]),
+                new String(mBodies, bodyStart, bodyEnd - bodyStart, StandardCharsets.UTF_8),
+                getDate(i),
+                mUserIds[i],
+                mUserNamePool.get(mUserNames[i]),
+                mColorPool.get(mColors[i]),
+                mIds[i],
+                mBottags[i],
+                mChannelPool.get(mChannels[i])
+        );
+    }
+
+    @Override
+    public synchronized long getId(int index) {
+        checkIndex(index);
+        return mIds[mStart + index];
+    }
+
+    @Override
+    public synchronized int getDay(int index) {
+        checkIndex(index);
+        return mDays[mStart + index];
+    }
+
+    @Override
+    public synchronized boolean add(@NonNull Message message) {
+        ensureCapacity(0, 1);
+
+        byte[] body = message.message.getBytes(StandardCharsets.UTF_8);
+        ensureBodyCapacity(0, body.length);
+
+        put(mStart + mSize, message, body, mBodiesEnd);
+        mBodiesEnd += body.length;
+
+        mSize++;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Inserts the given message. Only insertion at the start or the end is supported.
+     */
+    @Override
+    public void add(int index, Message element) {
+        if (index == 0) addAll(0, Collections.singletonList(element));
+        else if (index == size()) add(element);
+        else throw new UnsupportedOperationException("MessageStore only supports insertion at its ends.");
+    }
+
+    @Override
+    public synchronized boolean addAll(@NonNull Collection<? extends Message> collection) {
+        ensureCapacity(0, collection.size());
+
+        for (Message message : collection) {
+            add(message);
+        }
+        return !collection.isEmpty();
+    }
+
+    /**
+     * Inserts the given messages. Only insertion at the start or the end is supported.
+     */
+    @Override
+    public synchronized boolean addAll(int index, @NonNull Collection<? extends Message> collection) {
+        if (index == mSize) return addAll(collection);
+        if (index != 0) throw new UnsupportedOperationException("MessageStore only supports insertion at its ends.");
+
+        int count = collection.size();
+        if (count == 0) return false;
+
+        byte[][] bodies = new byte[count][];
+        int length = 0;
+        int k = 0;
+        for (Message message : collection) {
+            bodies[k] = message.message.getBytes(StandardCharsets.UTF_8);
+            length += bodies[k].length;
+            k++;
+        }
+
+        ensureCapacity(count, 0);
+        ensureBodyCapacity(length, 0);
+
+        int i = mStart - count;
+        int offset = mBodiesStart - length;
+        k = 0;
+        for (Message message : collection) {
+            put(i + k, message, bodies[k], offset);
+            offset += bodies[k].length;
+            k++;
+        }
+
+        mStart -= count;
+        mBodiesStart -= length;
+        mSize += count;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Removes the first {@code count} messages without moving the remaining ones.
+     */
+    public synchronized void removeFirst(int count) {
+        if (count < 0 || count > mSize) throw new IndexOutOfBoundsException("Count: " + count + ", Size: " + mSize);
+        if (count == 0) return;
+
+        mStart += count;
+        mSize -= count;
+        mBodiesStart = mSize > 0 ? mBodyOffsets[mStart] : mBodiesEnd;
+        modCount++;
+    }
+
+    /**
+     * Removes the last {@code count} messages.
+     */
+    public synchronized void removeLast(int count) {
+        if (count < 0 || count > mSize) throw new IndexOutOfBoundsException("Count: " + count + ", Size: " + mSize);
+        if (count == 0) return;
+
+        mSize -= count;
+        mBodiesEnd = mSize > 0 ? mBodyOffsets[mStart + mSize] : mBodiesStart;
+        modCount++;
+    }
+
+    @Override
+    public synchronized void clear() {
+        mStart = 0;
+        mSize = 0;
+        mBodiesStart = 0;
+        mBodiesEnd = 0;
+
+        mNamePool.clear();
+        mUserNamePool.clear();
+        mColorPool.clear();
+        mChannelPool.clear();
+        mDayPool.clear();
+        mTimePool.clear();
+
+        allocate(INITIAL_CAPACITY);
+        mBodies = new byte[INITIAL_CAPACITY * 64];
+        modCount++;
+    }
+
+    @Override
+    public synchronized int size() {
+        return mSize;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+    }
+
+    /**
+     * Dates are split into the day and the time of day. Days are dictionary encoded, times of the usual format
+     * {@code HH:mm:ss} are stored as seconds. Anything else is kept in a separate pool.
+     */
+    private void putDate(int index, @NonNull String date) {
+        int space = date.indexOf(' ');
+        if (space == -1) {
+            mDays[index] = mDayPool.put(date);
+            mTimes[index] = NO_TIME;
+            return;
+        }
+
+        mDays[index] = mDayPool.put(date.substring(0, space));
+
+        int seconds = parseTime(date, space + 1);
+        if (seconds >= 0) {
+            mTimes[index] = seconds;
+        } else {
+            mTimes[index] = -1 - mTimePool.put(date.substring(space + 1));
+        }
+    }
+
+    @NonNull
+    private String getDate(int index) {
+        String day = mDayPool.get(mDays[index]);
+        int time = mTimes[index];
+
+        if (time == NO_TIME) {
+            return day;
+        } else if (time < 0) {
+            return day + " " + mTimePool.get(-1 - time);
+        } else {
+            int hours = time / 3600;
+            int minutes = time / 60 % 60;
+            int seconds = time % 60;
+
+            char[] out = new char[day.length() + 9];
+            day.getChars(0, day.length(), out, 0);
+            int i = day.length();
+            out[i++] = ' ';
+            out[i++] = (char) ('0' + hours / 10);
+            out[i++] = (char) ('0' + hours % 10);
+            out[i++] = ':';
+            out[i++] = (char) ('0' + minutes / 10);
+            out[i++] = (char) ('0' + minutes % 10);
+            out[i++] = ':';
+            out[i++] = (char) ('0' + seconds / 10);
+            out[i] = (char) ('0' + seconds % 10);
+            return new String(out);
+        }
+    }
+
+    /**
+     * @return the time of day in seconds or -1 if the string at the given offset is not of the format {@code HH:mm:ss}
+     */
+    private static int parseTime(String date, int offset) {
+        if (date.length() - offset != 8) return -1;
+        if (date.charAt(offset + 2) != ':' || date.charAt(offset + 5) != ':') return -1;
+
+        int hours = parseTwoDigits(date, offset);
+        int minutes = parseTwoDigits(date, offset + 3);
+        int seconds = parseTwoDigits(date, offset + 6);
+
+        if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59 || seconds < 0 || seconds > 59) return -1;
+        return hours * 3600 + minutes * 60 + seconds;
+    }
+
+    private static int parseTwoDigits(String string, int offset) {
+        char a = string.charAt(offset);
+        char b = string.charAt(offset + 1);
+        if (a < '0' || a > '9' || b < '0' || b > '9') return -1;
+        return (a - '0') * 10 + (b - '0');
+    }
+
+    /**
+     * Writes the given message to the given slot of the arrays and its encoded body to the given offset
+     */
+    private void put(int i, @NonNull Message message, @NonNull byte[] body, int bodyOffset) {
+        mIds[i] = message.id;
+        mUserIds[i] = (int) message.userId;
+        mBottags[i] = message.bottag;
+        mNames[i] = mNamePool.put(message.name);
+        mUserNames[i] = mUserNamePool.put(message.userName);
+        mColors[i] = mColorPool.put(message.color);
+        mChannels[i] = mChannelPool.put(message.channel);
+        putDate(i, message.date);
+
+        System.arraycopy(body, 0, mBodies, bodyOffset, body.length);
+        mBodyOffsets[i] = bodyOffset;
+    }
+
+    /**
+     * Makes sure that there are at least the given number of free slots before and after the elements. When the
+     * arrays have to be rearranged, half the current size is added as free space to the side that ran out of space.
+     */
+    private void ensureCapacity(int before, int after) {
+        int tail = mIds.length - mStart - mSize;
+        if (mStart >= before && tail >= after) return;
+
+        int headroom = before > 0 ? before + (mSize >> 1) : Math.min(mStart, mSize >> 1);
+        int tailroom = after > 0 ? after + (mSize >> 1) : Math.min(tail, mSize >> 1);
+        relocate(headroom, Math.max(INITIAL_CAPACITY, headroom + mSize + tailroom));
+    }
+
+    /**
+     * Like {@link #ensureCapacity(int, int)} for the bytes of the bodies
+     */
+    private void ensureBodyCapacity(int before, int after) {
+        int size = mBodiesEnd - mBodiesStart;
+        int tail = mBodies.length - mBodiesEnd;
+        if (mBodiesStart >= before && tail >= after) return;
+
+        int headroom = before > 0 ? before + (size >> 1) : Math.min(mBodiesStart, size >> 1);
+        int tailroom = after > 0 ? after + (size >> 1) : Math.min(tail, size >> 1);
+        int capacity = headroom + size + tailroom;
+
+        byte[] bodies = capacity > mBodies.length ? new byte[capacity] : mBodies;
+        System.arraycopy(mBodies, mBodiesStart, bodies, headroom, size);
+        mBodies = bodies;
+
+        int shift = headroom - mBodiesStart;
+        for (int i = mStart; i < mStart + mSize; i++) mBodyOffsets[i] += shift;
+        mBodiesStart += shift;
+        mBodiesEnd += shift;
+    }
+
+    /**
+     * Moves the elements to the given index of arrays of the given capacity. The arrays are only reallocated if the
+     * capacity is larger than the current one.
+     */
+    private void relocate(int headroom, int capacity) {
+        mIds = move(mIds, headroom, capacity);
+        mUserIds = move(mUserIds, headroom, capacity);
+        mBottags = move(mBottags, headroom, capacity);
+        mNames = move(mNames, headroom, capacity);
+        mUserNames = move(mUserNames, headroom, capacity);
+        mColors = move(mColors, headroom, capacity);
+        mChannels = move(mChannels, headroom, capacity);
+        mDays = move(mDays, headroom, capacity);
+        mTimes = move(mTimes, headroom, capacity);
+        mBodyOffsets = move(mBodyOffsets, headroom, capacity);
+        mStart = headroom;
+    }
+
+    @NonNull
+    private long[] move(@NonNull long[] array, int headroom, int capacity) {
+        long[] out = capacity > array.length ? new long[capacity] : array;
+        System.arraycopy(array, mStart, out, headroom, mSize);
+        return out;
+    }
+
+    @NonNull
+    private int[] move(@NonNull int[] array, int headroom, int capacity) {
+        int[] out = capacity > array.length ? new int[capacity] : array;
+        System.arraycopy(array, mStart, out, headroom, mSize);
+        return out;
+    }
+
+    private void allocate(int capacity) {
+        mIds = new long[capacity];
+        mUserIds = new int[capacity];
+        mBottags = new int[capacity];
+        mNames = new int[capacity];
+        mUserNames = new int[capacity];
+        mColors = new int[capacity];
+        mChannels = new int[capacity];
+        mDays = new int[capacity];
+        mTimes = new int[capacity];
+        mBodyOffsets = new int[capacity];
+    }
+
+    /**
+     * A dictionary mapping strings to consecutive integer codes. {@code null} is encoded as {@code -1}.
+     */
+    private static class Pool {
+        private final HashMap<String, Integer> mCodes = new HashMap<>();
+        private final List<String> mValues = new ArrayList<>();
+
+        int put(@Nullable String value) {
+            if (value == null) return -1;
+
+            Integer code = mCodes.get(value);
+            if (code == null) {
+                code = mValues.size();
+                mValues.add(value);
+                mCodes.put(value, code);
+            }
+            return code;
+        }
+
+        @Nullable
+        String get(int code) {
+            return code == -1 ? null : mValues.get(code);
+        }
+
+        void clear() {
+            mCodes.clear();
+            mValues.clear();
+        }
+    }
+}
@@ -7,6 +7,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.os.AsyncTask;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.jonahbauer.qed.chat.Message;
 
@@ -30,16 +31,15 @@ public class ChatDatabase {
     private List<ChatDatabaseAsync> mAsyncTasks;
 
     public void init(Context context, ChatDatabaseReceiver receiver) {
-        mChatDatabaseHelper = new ChatDatabaseHelper(context);
+        mChatDatabaseHelper = ChatDatabaseHelper.getInstance(context);
         mAsyncTasks = new ArrayList<>();
         this.mReceiver = receiver;
     }
 
+    /**
+     * Cancels all running tasks. The underlying database stays open for use by other components.
+     */
     public void close() {
-        mChatDatabaseHelper.getWritableDatabase().close();
-        mChatDatabaseHelper.getReadableDatabase().close();
-
-        if (mChatDatabaseHelper != null) mChatDatabaseHelper.close();
         mAsyncTasks.forEach(async -> {
             if (!async.isCancelled()) async.cancel(true);
         });
@@ -54,37 +54,84 @@ public class ChatDatabase {
         value.put(COLUMN_NAME_BOTTAG,message.bottag);
         value.put(COLUMN_NAME_COLOR,message.color);
         value.put(COLUMN_NAME_MESSAGE,message.message);
-        value.put(COLUMN_NAME_DATE,message.date);
+        value.put(COLUMN_NAME_DATE,ChatDatabaseHelper.toEpoch(message.date));
         value.put(COLUMN_NAME_NAME,message.name);
         value.put(COLUMN_NAME_CHANNEL,message.channel);
 
         long row = -1;
 
-        try (SQLiteDatabase chatLogWritable = mChatDatabaseHelper.getWritableDatabase()) {
-            try {
-                row = chatLogWritable.insertOrThrow(TABLE_NAME, null, value);
-            } catch (SQLiteConstraintException ignored) {}
-        }
+        SQLiteDatabase chatLogWritable = mChatDatabaseHelper.getWritableDatabase();
+        try {
+            row = chatLogWritable.insertOrThrow(TABLE_NAME, null, value);
+        } catch (SQLiteConstraintException ignored) {}
 
         return row;
     }
 
     public void insertAll(List<Message> messages) {
-        ChatDatabaseAsync async = new ChatDatabaseAsync(mChatDatabaseHelper, mReceiver, messages);
-        mAsyncTasks.add(async);
-        async.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        execute(new ChatDatabaseAsync(mChatDatabaseHelper, mReceiver, messages));
+    }
+
+    /**
+     * Queries one page of messages matching the given selection in ascending id order.
+     * @param afterId the id of the last message of the previous page or {@link Long#MIN_VALUE} for the first page
+     * @param limit the maximum number of messages in the page
+     */
+    public void query(@Nullable String selection, @Nullable String[] selectionArgs, long afterId, int limit) {
+        execute(new ChatDatabaseAsync(mChatDatabaseHelper, mReceiver, selection, selectionArgs, afterId, false, limit));
+    }
+
+    /**
+     * Queries the page of messages matching the given selection that precedes the message with the given id. The
+     * messages are delivered in ascending id order as well.
+     * @param beforeId the id of the first message of the following page
+     * @param limit the maximum number of messages in the page
+     */
+    public void queryBefore(@Nullable String selection, @Nullable String[] selectionArgs, long beforeId, int limit) {
+        execute(new ChatDatabaseAsync(mChatDatabaseHelper, mReceiver, selection, selectionArgs, beforeId, true, limit));
+    }
+
+    /**
+     * Queries the messages with the given ids. The messages are delivered in the order of the given ids.
+     */
+    public void query(@NonNull long[] ids) {
+        execute(new ChatDatabaseAsync(mChatDatabaseHelper, mReceiver, ids));
+    }
+
+    /**
+     * Ranks the messages matching the given full text query by relevance.
+     * @see ChatDatabaseReceiver#onReceiveRanking(long[])
+     */
+    public void rank(@NonNull String match) {
+        execute(new ChatDatabaseAsync(mChatDatabaseHelper, mReceiver, match));
+    }
+
+    /**
+     * Counts the messages matching the given selection.
+     * @see ChatDatabaseReceiver#onReceiveCount(long)
+     */
+    public void count(@Nullable String selection, @Nullable String[] selectionArgs) {
+        execute(new ChatDatabaseAsync(mChatDatabaseHelper, mReceiver, selection, selectionArgs));
+    }
+
+    /**
+     * Cancels all running queries. Their results will not be delivered.
+     */
+    public void cancelQueries() {
+        mAsyncTasks.forEach(async -> {
+            if (async.getMode() != ChatDatabaseAsync.Mode.INSERT_ALL) async.cancel(false);
+        });
     }
 
-    public void query(String sql, String[] selectionArgs) {
-        ChatDatabaseAsync async = new ChatDatabaseAsync(mChatDatabaseHelper, mReceiver, sql, selectionArgs);
+    private void execute(ChatDatabaseAsync async) {
+        mAsyncTasks.removeIf(task -> task.getStatus() == AsyncTask.Status.FINISHED);
         mAsyncTasks.add(async);
         async.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
     public void clear() {
-        try (SQLiteDatabase writableDatabase = mChatDatabaseHelper.getWritableDatabase()) {
-            mChatDatabaseHelper.clear(writableDatabase);
-        }
+        SQLiteDatabase writableDatabase = mChatDatabaseHelper.getWritableDatabase();
+        mChatDatabaseHelper.clear(writableDatabase);
     }
 }
 
@@ -1,16 +1,29 @@
 package com.jonahbauer.qed.database;
 
-import android.content.ContentValues;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteConstraintException;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.util.Log;
 
+import com.jonahbauer.qed.Application;
+import com.jonahbauer.qed.BuildConfig;
+import com.jonahbauer.qed.chat.ChatDate;
 import com.jonahbauer.qed.chat.Message;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
 
 import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_BOTTAG;
 import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_CHANNEL;
@@ -22,106 +35,366 @@ import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_
 import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_USERID;
 import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_USERNAME;
 import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.TABLE_NAME;
+import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatFtsEntry;
 
 public class ChatDatabaseAsync extends AsyncTask<Object, Integer, Boolean> {
+    private static final int INSERT_CHUNK_SIZE = 5000;
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
+    /**
+     * The number of best matches kept when ranking messages by relevance
+     */
+    static final int MAX_RANKED = 5000;
+
     private final Mode mMode;
     private final ChatDatabaseReceiver mReceiver;
     private final ChatDatabaseHelper mDatabaseHelper;
 
-    private String mQuery;
-    private String[] mQueryArgs;
+    private String mSelection;
+    private String[] mSelectionArgs;
+    private long mFromId;
+    private boolean mBefore;
+    private int mLimit;
+    private long[] mIds;
+    private String mMatch;
 
     private List<Message> mInsertAll;
+    private int mInsertCount;
+
+    private List<Message> mResult;
+    private long mCount;
+    private long[] mRanking;
 
-    ChatDatabaseAsync(ChatDatabaseHelper databaseHelper, ChatDatabaseReceiver receiver, String query, String[] queryArgs) {
+    /**
+     * Queries at most {@code limit} messages matching the given selection with an id greater than {@code fromId}, or
+     * less than {@code fromId} if {@code before} is set. The messages closest to {@code fromId} are returned, always
+     * in ascending id order.
+     */
+    ChatDatabaseAsync(ChatDatabaseHelper databaseHelper, ChatDatabaseReceiver receiver, String selection, String[] selectionArgs, long fromId, boolean before, int limit) {
         this.mMode = Mode.QUERY;
         this.mDatabaseHelper = databaseHelper;
         this.mReceiver = receiver;
-        this.mQuery = query;
-        this.mQueryArgs = queryArgs;
+        this.mSelection = selection;
+        this.mSelectionArgs = selectionArgs;
+        this.mFromId = fromId;
+        this.mBefore = before;
+        this.mLimit = limit;
     }
 
+    /**
+     * Queries the messages with the given ids in the order of the given ids.
+     */
+    ChatDatabaseAsync(ChatDatabaseHelper databaseHelper, ChatDatabaseReceiver receiver, long[] ids) {
+        this.mMode = Mode.QUERY;
+        this.mDatabaseHelper = databaseHelper;
+        this.mReceiver = receiver;
+        this.mIds = ids;
+    }
+
+    /**
+     * Ranks the messages matching the given full text query by relevance.
+     */
+    ChatDatabaseAsync(ChatDatabaseHelper databaseHelper, ChatDatabaseReceiver receiver, String match) {
+        this.mMode = Mode.RANK;
+        this.mDatabaseHelper = databaseHelper;
+        this.mReceiver = receiver;
+        this.mMatch = match;
+    }
+
+    /**
+     * Counts the messages matching the given selection.
+     */
+    ChatDatabaseAsync(ChatDatabaseHelper databaseHelper, ChatDatabaseReceiver receiver, String selection, String[] selectionArgs) {
+        this.mMode = Mode.COUNT;
+        this.mDatabaseHelper = databaseHelper;
+        this.mReceiver = receiver;
+        this.mSelection = selection;
+        this.mSelectionArgs = selectionArgs;
+    }
+
+    /**
+     * Inserts the given messages. The list is read on a background thread without being copied, only the messages
+     * it holds at this point are inserted.
+     */
     ChatDatabaseAsync(ChatDatabaseHelper databaseHelper, ChatDatabaseReceiver receiver, List<Message> messages) {
         this.mMode = Mode.INSERT_ALL;
         this.mDatabaseHelper = databaseHelper;
         this.mReceiver = receiver;
         this.mInsertAll = messages;
+        this.mInsertCount = messages.size();
     }
 
     @Override
     protected Boolean doInBackground(Object... objects) {
-        switch (mMode) {
-            case QUERY:
-                query(mReceiver, mQuery, mQueryArgs);
-                break;
-            case INSERT_ALL:
-                insertAll(mInsertAll);
-                break;
+        try {
+            switch (mMode) {
+                case QUERY:
+                    if (mIds != null) mResult = query(mIds);
+                    else mResult = query(mSelection, mSelectionArgs, mFromId, mBefore, mLimit);
+                    break;
+                case RANK:
+                    mRanking = rank(mMatch);
+                    break;
+                case COUNT:
+                    mCount = count(mSelection, mSelectionArgs);
+                    break;
+                case INSERT_ALL:
+                    insertAll(mInsertAll, mInsertCount);
+                    break;
+            }
+        } catch (SQLiteException e) {
+            Log.e(Application.LOG_TAG_ERROR, e.getMessage(), e);
+            return false;
         }
         return true;
     }
 
-    private void query(ChatDatabaseReceiver receiver, String query, String[] args) {
-        try (SQLiteDatabase chatReadable = mDatabaseHelper.getReadableDatabase()) {
-            try (Cursor cursor = chatReadable.rawQuery(query, args)) {
-                List<Message> messages = new ArrayList<>();
-
-                while (cursor.moveToNext()) {
-                    messages.add(new Message(
-                            cursor.getString(cursor.getColumnIndex(COLUMN_NAME_NAME)),
-                            cursor.getString(cursor.getColumnIndex(COLUMN_NAME_MESSAGE)),
-                            cursor.getString(cursor.getColumnIndex(COLUMN_NAME_DATE)),
-                            cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_USERID)),
-                            cursor.getString(cursor.getColumnIndex(COLUMN_NAME_USERNAME)),
-                            cursor.getString(cursor.getColumnIndex(COLUMN_NAME_COLOR)),
-                            cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_ID)),
-                            cursor.getInt(cursor.getColumnIndex(COLUMN_NAME_BOTTAG)),
-                            cursor.getString(cursor.getColumnIndex(COLUMN_NAME_CHANNEL))
-                    ));
-                }
+    /**
+     * Reads one page of messages. Pages are addressed by the last id of the adjacent page, so that the database
+     * can seek via the primary key instead of skipping rows like {@code OFFSET} would.
+     */
+    private List<Message> query(String selection, String[] selectionArgs, long fromId, boolean before, int limit) {
+        String sql = "SELECT * FROM " + TABLE_NAME
+                + " WHERE " + (selection != null ? "(" + selection + ") AND " : "") + COLUMN_NAME_ID + (before ? " < ?" : " > ?")
+                + " ORDER BY " + COLUMN_NAME_ID + (before ? " DESC" : " ASC") + " LIMIT " + limit;
 
-                receiver.onReceiveResult(messages);
-            }
+        String[] args;
+        if (selectionArgs != null) {
+            args = Arrays.copyOf(selectionArgs, selectionArgs.length + 1);
+        } else {
+            args = new String[1];
+        }
+        args[args.length - 1] = String.valueOf(fromId);
+
+        SQLiteDatabase chatReadable = mDatabaseHelper.getReadableDatabase();
+        try (Cursor cursor = chatReadable.rawQuery(sql, args)) {
+            List<Message> messages = read(cursor, this::isCancelled);
+            if (before) Collections.reverse(messages);
+            return messages;
+        }
+    }
+
+    private List<Message> query(long[] ids) {
+        if (ids.length == 0) return new ArrayList<>();
+
+        StringBuilder sql = new StringBuilder("SELECT * FROM ").append(TABLE_NAME)
+                .append(" WHERE ").append(COLUMN_NAME_ID).append(" IN (?");
+        for (int i = 1; i < ids.length; i++) sql.append(",?");
+        sql.append(")");
+
+        String[] args = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) args[i] = String.valueOf(ids[i]);
+
+        Map<Long, Message> byId = new HashMap<>();
+        SQLiteDatabase chatReadable = mDatabaseHelper.getReadableDatabase();
+        try (Cursor cursor = chatReadable.rawQuery(sql.toString(), args)) {
+            for (Message message : read(cursor, this::isCancelled)) byId.put(message.id, message);
+        }
+
+        List<Message> messages = new ArrayList<>(byId.size());
+        for (long id : ids) {
+            Message message = byId.get(id);
+            if (message != null) messages.add(message);
         }
+        return messages;
     }
 
-    private void insertAll(List<Message> messages) {
-        try (SQLiteDatabase chatWriteable = mDatabaseHelper.getWritableDatabase()) {
-            chatWriteable.beginTransaction();
-            try {
+    /**
+     * Reads all rows of the given cursor over the chat log table. Column indices are resolved once.
+     * @param cancelled stops reading when it returns true
+     */
+    static List<Message> read(Cursor cursor, BooleanSupplier cancelled) {
+        int nameColumn = cursor.getColumnIndexOrThrow(COLUMN_NAME_NAME);
+        int messageColumn = cursor.getColumnIndexOrThrow(COLUMN_NAME_MESSAGE);
+        int dateColumn = cursor.getColumnIndexOrThrow(COLUMN_NAME_DATE);
+        int userIdColumn = cursor.getColumnIndexOrThrow(COLUMN_NAME_USERID);
+        int userNameColumn = cursor.getColumnIndexOrThrow(COLUMN_NAME_USERNAME);
+        int colorColumn = cursor.getColumnIndexOrThrow(COLUMN_NAME_COLOR);
+        int idColumn = cursor.getColumnIndexOrThrow(COLUMN_NAME_ID);
+        int bottagColumn = cursor.getColumnIndexOrThrow(COLUMN_NAME_BOTTAG);
+        int channelColumn = cursor.getColumnIndexOrThrow(COLUMN_NAME_CHANNEL);
 
-                AtomicInteger i = new AtomicInteger();
-                int j = messages.size();
+        List<Message> messages = new ArrayList<>(cursor.getCount());
+
+        while (cursor.moveToNext() && !cancelled.getAsBoolean()) {
+            messages.add(new Message(
+                    cursor.getString(nameColumn),
+                    cursor.getString(messageColumn),
+                    ChatDate.format(cursor.getLong(dateColumn)),
+                    cursor.getInt(userIdColumn),
+                    cursor.getString(userNameColumn),
+                    cursor.getString(colorColumn),
+                    cursor.getLong(idColumn),
+                    cursor.getInt(bottagColumn),
+                    cursor.getString(channelColumn)
+            ));
+        }
+
+        return messages;
+    }
 
-                for (Message message : messages) {
-                    ContentValues value = new ContentValues();
-                    value.put(COLUMN_NAME_ID, message.id);
-                    value.put(COLUMN_NAME_USERID, message.userId);
-                    value.put(COLUMN_NAME_USERNAME, message.userName);
-                    value.put(COLUMN_NAME_BOTTAG, message.bottag);
-                    value.put(COLUMN_NAME_COLOR, message.color);
-                    value.put(COLUMN_NAME_MESSAGE, message.message);
-                    value.put(COLUMN_NAME_DATE, message.date);
-                    value.put(COLUMN_NAME_NAME, message.name);
-                    value.put(COLUMN_NAME_CHANNEL, message.channel);
+    /**
+     * Ranks the messages matching the given full text query. The score of a message adds up, for every term and
+     * column, the hits in the message relative to the hits in all messages, so that rare terms weigh more. Only the
+     * best {@value #MAX_RANKED} matches are kept in a heap while the matches are read, the messages themselves are
+     * queried page by page afterwards.
+     * @return the ids of the best matching messages, best match first, equal scores newest first
+     */
+    private long[] rank(String match) {
+        String sql = "SELECT " + ChatFtsEntry.COLUMN_NAME_DOCID + ", matchinfo(" + ChatFtsEntry.TABLE_NAME + ", 'pcx')"
+                + " FROM " + ChatFtsEntry.TABLE_NAME + " WHERE " + ChatFtsEntry.TABLE_NAME + " MATCH ?";
 
-                    try {
-                        chatWriteable.insertOrThrow(TABLE_NAME, null, value);
-                    } catch (SQLiteConstraintException ignored) {}
+        // min-heap of score and id packed into a long, see pack(double, long)
+        long[] heap = new long[MAX_RANKED];
+        int size = 0;
 
-                    publishProgress(i.incrementAndGet(), j);
+        SQLiteDatabase chatReadable = mDatabaseHelper.getReadableDatabase();
+        try (Cursor cursor = chatReadable.rawQuery(sql, new String[] {match})) {
+            while (cursor.moveToNext() && !isCancelled()) {
+                long packed = pack(score(cursor.getBlob(1)), cursor.getLong(0));
+                if (size < heap.length) {
+                    siftUp(heap, size++, packed);
+                } else if (packed > heap[0]) {
+                    siftDown(heap, size, packed);
                 }
+            }
+        }
+
+        Arrays.sort(heap, 0, size);
+
+        long[] ranking = new long[size];
+        for (int i = 0; i < size; i++) ranking[i] = heap[size - 1 - i] & 0xFFFFFFFFL;
+        return ranking;
+    }
+
+    /**
+     * Packs a score and an id into a long whose natural order is the order of the scores and then the ids. The bits of
+     * a non-negative float are ordered like the float itself, message ids fit into 32 bits.
+     */
+    private static long pack(double score, long id) {
+        return (long) Float.floatToIntBits((float) score) << 32 | (id & 0xFFFFFFFFL);
+    }
+
+    private static void siftUp(long[] heap, int index, long value) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap[parent] <= value) break;
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = value;
+    }
+
+    /**
+     * Replaces the smallest element of the heap with the given value
+     */
+    private static void siftDown(long[] heap, int size, long value) {
+        int index = 0;
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < size && heap[child + 1] < heap[child]) child++;
+            if (value <= heap[child]) break;
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = value;
+    }
+
+    /**
+     * @param matchinfo the result of {@code matchinfo(..., 'pcx')}, i.e. the number of phrases and columns followed by
+     *                  the hits in this row, the hits in all rows and the number of rows with hits for every phrase
+     *                  and column
+     */
+    private static double score(byte[] matchinfo) {
+        IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = info.get(0);
+        int columns = info.get(1);
+
+        double score = 0;
+        for (int i = 0; i < phrases * columns; i++) {
+            int hitsThisRow = info.get(2 + 3 * i);
+            int hitsAllRows = info.get(3 + 3 * i);
+            if (hitsThisRow > 0) score += (double) hitsThisRow / hitsAllRows;
+        }
+        return score;
+    }
 
-                chatWriteable.setTransactionSuccessful();
-            } finally {
-                chatWriteable.endTransaction();
+    private long count(String selection, String[] selectionArgs) {
+        String sql = "SELECT COUNT(*) FROM " + TABLE_NAME + (selection != null ? " WHERE " + selection : "");
+
+        SQLiteDatabase chatReadable = mDatabaseHelper.getReadableDatabase();
+        return DatabaseUtils.longForQuery(chatReadable, sql, selectionArgs);
+    }
+
+    private void insertAll(List<Message> messages, int total) {
+        int done = 0;
+        int inserted = 0;
+
+        long startTime = SystemClock.elapsedRealtime();
+        long lastProgress = startTime;
+
+        SQLiteDatabase chatWriteable = mDatabaseHelper.getWritableDatabase();
+        try (SQLiteStatement statement = chatWriteable.compileStatement(ChatDatabaseHelper.SQL_INSERT_OR_IGNORE)) {
+            while (done < total && !isCancelled()) {
+                chatWriteable.beginTransactionNonExclusive();
+                try {
+                    for (int i = 0; i < INSERT_CHUNK_SIZE && done < total; i++) {
+                        Message message;
+                        try {
+                            message = messages.get(done);
+                        } catch (IndexOutOfBoundsException e) {
+                            // the list has been cleared in the meantime
+                            total = done;
+                            break;
+                        }
+
+                        ChatDatabaseHelper.bindMessage(statement, message);
+                        if (statement.executeInsert() != -1) inserted++;
+                        done++;
+
+                        if ((done & 0xFF) == 0) {
+                            long now = SystemClock.elapsedRealtime();
+                            if (now - lastProgress >= PROGRESS_INTERVAL_MS) {
+                                lastProgress = now;
+                                publishProgress(done, total);
+                            }
+                        }
+                    }
+
+                    chatWriteable.setTransactionSuccessful();
+                } finally {
+                    chatWriteable.endTransaction();
+                }
             }
         }
+
+        if (BuildConfig.DEBUG) {
+            long duration = Math.max(1, SystemClock.elapsedRealtime() - startTime);
+            Log.d(Application.LOG_TAG_DEBUG, "Chat database: inserted " + inserted + " of " + done + " messages in "
+                    + duration + " ms (" + done * 1000L / duration + " rows/s)");
+        }
+
+        if (!isCancelled()) publishProgress(total, total);
+    }
+
+    Mode getMode() {
+        return mMode;
     }
 
     @Override
     protected void onPostExecute(Boolean success) {
-        if (!success && (mMode == Mode.QUERY) && (mReceiver != null)) mReceiver.onDatabaseError();
+        if (mReceiver == null) return;
+
+        if (!success) {
+            if (mMode != Mode.INSERT_ALL) mReceiver.onDatabaseError();
+        } else if (mMode == Mode.QUERY) {
+            mReceiver.onReceiveResult(mResult);
+        } else if (mMode == Mode.COUNT) {
+            mReceiver.onReceiveCount(mCount);
+        } else if (mMode == Mode.RANK) {
+            mReceiver.onReceiveRanking(mRanking);
+        }
     }
 
     @Override
@@ -130,6 +403,6 @@ public class ChatDatabaseAsync extends AsyncTask<Object, Integer, Boolean> {
     }
 
     enum Mode {
-        QUERY, INSERT_ALL
+        QUERY, COUNT, RANK, INSERT_ALL
     }
 }
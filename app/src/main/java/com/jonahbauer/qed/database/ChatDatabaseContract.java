@@ -13,8 +13,26 @@ public final class ChatDatabaseContract {
         public static final String COLUMN_NAME_USERID = "userid";
         public static final String COLUMN_NAME_COLOR = "color";
         public static final String COLUMN_NAME_MESSAGE = "message";
+        /**
+         * The date in seconds since the epoch, see {@link com.jonahbauer.qed.chat.ChatDate}
+         */
         public static final String COLUMN_NAME_DATE = "date";
         public static final String COLUMN_NAME_BOTTAG = "bottag";
         public static final String COLUMN_NAME_CHANNEL = "channel";
+
+        static final String INDEX_CHANNEL_DATE = "chatlog_channel_date";
+        static final String INDEX_DATE = "chatlog_date";
+        static final String INDEX_USERID = "chatlog_userid";
+    }
+
+    /**
+     * A full text index over {@link ChatEntry#COLUMN_NAME_NAME} and {@link ChatEntry#COLUMN_NAME_MESSAGE}.
+     * The docid of every row equals the {@link ChatEntry#COLUMN_NAME_ID} of the indexed message.
+     */
+    public static class ChatFtsEntry {
+        public static final String TABLE_NAME = "chatlog_fts";
+        public static final String COLUMN_NAME_DOCID = "docid";
+        public static final String COLUMN_NAME_NAME = ChatEntry.COLUMN_NAME_NAME;
+        public static final String COLUMN_NAME_MESSAGE = ChatEntry.COLUMN_NAME_MESSAGE;
     }
 }
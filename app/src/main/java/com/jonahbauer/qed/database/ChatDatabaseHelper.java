@@ -3,44 +3,235 @@ package com.jonahbauer.qed.database;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.jonahbauer.qed.Application;
+import com.jonahbauer.qed.BuildConfig;
+import com.jonahbauer.qed.chat.ChatDate;
+import com.jonahbauer.qed.chat.Message;
 
 import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry;
+import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatFtsEntry;
 
 class ChatDatabaseHelper extends SQLiteOpenHelper {
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 8;
+    private static final int DATABASE_VERSION = 10;
+    // Databases older than this are recreated instead of migrated.
+    private static final int FIRST_MIGRATABLE_VERSION = 8;
     private static final String DATABASE_NAME = "chatLog.db";
 
-    private static final String SQL_CREATE_ENTRIES =
-            "CREATE TABLE " + ChatEntry.TABLE_NAME + " (" +
-                    ChatEntry.COLUMN_NAME_ID + " INTEGER PRIMARY KEY," +
-                    ChatEntry.COLUMN_NAME_USERNAME + " TEXT," +
-                    ChatEntry.COLUMN_NAME_NAME + " TEXT," +
-                    ChatEntry.COLUMN_NAME_USERID + " INTEGER," +
-                    ChatEntry.COLUMN_NAME_COLOR + " TEXT," +
-                    ChatEntry.COLUMN_NAME_MESSAGE + " TEXT," +
-                    ChatEntry.COLUMN_NAME_DATE + " DATETIME," +
-                    ChatEntry.COLUMN_NAME_CHANNEL + " TEXT," +
-                    ChatEntry.COLUMN_NAME_BOTTAG + " INTEGER)";
+    private static final String SQL_CREATE_ENTRIES = createEntries(ChatEntry.TABLE_NAME);
+
+    private static final String[] SQL_CREATE_INDICES = {
+            "CREATE INDEX IF NOT EXISTS " + ChatEntry.INDEX_CHANNEL_DATE + " ON " + ChatEntry.TABLE_NAME +
+                    "(" + ChatEntry.COLUMN_NAME_CHANNEL + "," + ChatEntry.COLUMN_NAME_DATE + ")",
+            "CREATE INDEX IF NOT EXISTS " + ChatEntry.INDEX_DATE + " ON " + ChatEntry.TABLE_NAME +
+                    "(" + ChatEntry.COLUMN_NAME_DATE + ")",
+            "CREATE INDEX IF NOT EXISTS " + ChatEntry.INDEX_USERID + " ON " + ChatEntry.TABLE_NAME +
+                    "(" + ChatEntry.COLUMN_NAME_USERID + ")"
+    };
+
+    private static final String SQL_CREATE_FTS =
+            "CREATE VIRTUAL TABLE " + ChatFtsEntry.TABLE_NAME + " USING fts4(" +
+                    "content=\"" + ChatEntry.TABLE_NAME + "\"," +
+                    ChatFtsEntry.COLUMN_NAME_NAME + "," +
+                    ChatFtsEntry.COLUMN_NAME_MESSAGE + "," +
+                    "tokenize=unicode61)";
+
+    private static final String SQL_REBUILD_FTS =
+            "INSERT INTO " + ChatFtsEntry.TABLE_NAME + "(" + ChatFtsEntry.TABLE_NAME + ") VALUES('rebuild')";
+
+    private static final String[] SQL_CREATE_FTS_TRIGGERS = {
+            "CREATE TRIGGER chatlog_fts_insert AFTER INSERT ON " + ChatEntry.TABLE_NAME + " BEGIN " +
+                    "INSERT INTO " + ChatFtsEntry.TABLE_NAME + "(" + ChatFtsEntry.COLUMN_NAME_DOCID + "," + ChatFtsEntry.COLUMN_NAME_NAME + "," + ChatFtsEntry.COLUMN_NAME_MESSAGE + ") " +
+                    "VALUES (new." + ChatEntry.COLUMN_NAME_ID + ", new." + ChatEntry.COLUMN_NAME_NAME + ", new." + ChatEntry.COLUMN_NAME_MESSAGE + "); END",
+            "CREATE TRIGGER chatlog_fts_delete BEFORE DELETE ON " + ChatEntry.TABLE_NAME + " BEGIN " +
+                    "DELETE FROM " + ChatFtsEntry.TABLE_NAME + " WHERE " + ChatFtsEntry.COLUMN_NAME_DOCID + " = old." + ChatEntry.COLUMN_NAME_ID + "; END",
+            "CREATE TRIGGER chatlog_fts_before_update BEFORE UPDATE ON " + ChatEntry.TABLE_NAME + " BEGIN " +
+                    "DELETE FROM " + ChatFtsEntry.TABLE_NAME + " WHERE " + ChatFtsEntry.COLUMN_NAME_DOCID + " = old." + ChatEntry.COLUMN_NAME_ID + "; END",
+            "CREATE TRIGGER chatlog_fts_after_update AFTER UPDATE ON " + ChatEntry.TABLE_NAME + " BEGIN " +
+                    "INSERT INTO " + ChatFtsEntry.TABLE_NAME + "(" + ChatFtsEntry.COLUMN_NAME_DOCID + "," + ChatFtsEntry.COLUMN_NAME_NAME + "," + ChatFtsEntry.COLUMN_NAME_MESSAGE + ") " +
+                    "VALUES (new." + ChatEntry.COLUMN_NAME_ID + ", new." + ChatEntry.COLUMN_NAME_NAME + ", new." + ChatEntry.COLUMN_NAME_MESSAGE + "); END"
+    };
+
+    private static final String SQL_DELETE_FTS =
+            "DROP TABLE IF EXISTS " + ChatFtsEntry.TABLE_NAME;
+
+    static final String SQL_INSERT_OR_IGNORE =
+            "INSERT OR IGNORE INTO " + ChatEntry.TABLE_NAME + " (" +
+                    ChatEntry.COLUMN_NAME_ID + "," +
+                    ChatEntry.COLUMN_NAME_USERNAME + "," +
+                    ChatEntry.COLUMN_NAME_NAME + "," +
+                    ChatEntry.COLUMN_NAME_USERID + "," +
+                    ChatEntry.COLUMN_NAME_COLOR + "," +
+                    ChatEntry.COLUMN_NAME_MESSAGE + "," +
+                    ChatEntry.COLUMN_NAME_DATE + "," +
+                    ChatEntry.COLUMN_NAME_CHANNEL + "," +
+                    ChatEntry.COLUMN_NAME_BOTTAG + ") VALUES (?,?,?,?,?,?,?,?,?)";
 
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + ChatEntry.TABLE_NAME;
 
-    ChatDatabaseHelper(Context context) {
+    /**
+     * Upgrades the database from {@code version} to {@code version + 1}. Migrations run inside the transaction
+     * opened by {@link SQLiteOpenHelper} and must keep existing messages.
+     */
+    private interface Migration {
+        void migrate(SQLiteDatabase db);
+    }
+
+    /**
+     * The migration at index {@code i} upgrades from version {@code FIRST_MIGRATABLE_VERSION + i}.
+     */
+    private static final Migration[] MIGRATIONS = {
+            // 8 -> 9: full text index
+            db -> {
+                createFts(db);
+                db.execSQL(SQL_REBUILD_FTS);
+            },
+            // 9 -> 10: dates as seconds since the epoch, secondary indices
+            ChatDatabaseHelper::migrateToEpochDates
+    };
+
+    private static ChatDatabaseHelper sInstance;
+
+    private ChatDatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    /**
+     * Returns the process wide helper. The database is kept open for the lifetime of the app, so it must not be
+     * closed by its users.
+     */
+    static synchronized ChatDatabaseHelper getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new ChatDatabaseHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Enables write-ahead logging, which allows reads on multiple connections concurrently to a single writer.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.enableWriteAheadLogging();
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
+        createSchema(db);
+    }
+
+    /**
+     * Creates the chat log table with its indices and full text index in the given database.
+     */
+    static void createSchema(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        createIndices(db);
+        createFts(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        clear(db);
+        if (oldVersion < FIRST_MIGRATABLE_VERSION || newVersion - FIRST_MIGRATABLE_VERSION > MIGRATIONS.length) {
+            clear(db);
+            return;
+        }
+
+        for (int version = oldVersion; version < newVersion; version++) {
+            if (BuildConfig.DEBUG) Log.d(Application.LOG_TAG_DEBUG, "Chat database: migrating from version " + version + " to " + (version + 1));
+            MIGRATIONS[version - FIRST_MIGRATABLE_VERSION].migrate(db);
+        }
+    }
+
+    /**
+     * Copies the chat log into a table with an integer date column. The full text index is keyed on the message
+     * id and therefore stays valid, only its triggers have to be recreated.
+     */
+    private static void migrateToEpochDates(SQLiteDatabase db) {
+        String tmpTable = ChatEntry.TABLE_NAME + "_tmp";
+
+        db.execSQL("DROP TABLE IF EXISTS " + tmpTable);
+        db.execSQL(createEntries(tmpTable));
+        db.execSQL("INSERT INTO " + tmpTable + " SELECT " +
+                ChatEntry.COLUMN_NAME_ID + "," +
+                ChatEntry.COLUMN_NAME_USERNAME + "," +
+                ChatEntry.COLUMN_NAME_NAME + "," +
+                ChatEntry.COLUMN_NAME_USERID + "," +
+                ChatEntry.COLUMN_NAME_COLOR + "," +
+                ChatEntry.COLUMN_NAME_MESSAGE + "," +
+                // strftime interprets the date as utc just like ChatDate
+                "COALESCE(CAST(strftime('%s', " + ChatEntry.COLUMN_NAME_DATE + ") AS INTEGER), 0)," +
+                ChatEntry.COLUMN_NAME_CHANNEL + "," +
+                ChatEntry.COLUMN_NAME_BOTTAG +
+                " FROM " + ChatEntry.TABLE_NAME);
+        db.execSQL(SQL_DELETE_ENTRIES);
+        db.execSQL("ALTER TABLE " + tmpTable + " RENAME TO " + ChatEntry.TABLE_NAME);
+
+        createIndices(db);
+        createFtsTriggers(db);
+    }
+
+    private static String createEntries(String tableName) {
+        return "CREATE TABLE " + tableName + " (" +
+                ChatEntry.COLUMN_NAME_ID + " INTEGER PRIMARY KEY," +
+                ChatEntry.COLUMN_NAME_USERNAME + " TEXT," +
+                ChatEntry.COLUMN_NAME_NAME + " TEXT," +
+                ChatEntry.COLUMN_NAME_USERID + " INTEGER," +
+                ChatEntry.COLUMN_NAME_COLOR + " TEXT," +
+                ChatEntry.COLUMN_NAME_MESSAGE + " TEXT," +
+                ChatEntry.COLUMN_NAME_DATE + " INTEGER," +
+                ChatEntry.COLUMN_NAME_CHANNEL + " TEXT," +
+                ChatEntry.COLUMN_NAME_BOTTAG + " INTEGER)";
+    }
+
+    private static void createIndices(SQLiteDatabase db) {
+        for (String index : SQL_CREATE_INDICES) {
+            db.execSQL(index);
+        }
+    }
+
+    private static void createFts(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_FTS);
+        createFtsTriggers(db);
+    }
+
+    private static void createFtsTriggers(SQLiteDatabase db) {
+        for (String trigger : SQL_CREATE_FTS_TRIGGERS) {
+            db.execSQL(trigger);
+        }
+    }
+
+    /**
+     * Binds the fields of the given message to a statement compiled from {@link #SQL_INSERT_OR_IGNORE}.
+     */
+    static void bindMessage(@NonNull SQLiteStatement statement, @NonNull Message message) {
+        statement.bindLong(1, message.id);
+        if (message.userName != null) statement.bindString(2, message.userName);
+        else statement.bindNull(2);
+        statement.bindString(3, message.name);
+        statement.bindLong(4, message.userId);
+        statement.bindString(5, message.color);
+        statement.bindString(6, message.message);
+        statement.bindLong(7, toEpoch(message.date));
+        statement.bindString(8, message.channel);
+        statement.bindLong(9, message.bottag);
+    }
+
+    /**
+     * @return the value stored in {@link ChatEntry#COLUMN_NAME_DATE} for the given date
+     */
+    static long toEpoch(@NonNull String date) {
+        long epoch = ChatDate.parse(date);
+        return epoch != Long.MIN_VALUE ? epoch : 0;
     }
 
     public void clear(SQLiteDatabase db) {
+        db.execSQL(SQL_DELETE_FTS);
         db.execSQL(SQL_DELETE_ENTRIES);
         onCreate(db);
     }
@@ -4,8 +4,13 @@ import com.jonahbauer.qed.chat.Message;
 
 import java.util.List;
 
+/**
+ * Results of {@link ChatDatabase} queries are delivered on the main thread.
+ */
 public interface ChatDatabaseReceiver {
     void onReceiveResult(List<Message> messages);
+    default void onReceiveCount(long count) {}
+    default void onReceiveRanking(long[] ids) {}
     void onDatabaseError();
 
     void onInsertAllUpdate(int done, int total);
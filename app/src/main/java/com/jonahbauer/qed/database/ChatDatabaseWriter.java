@@ -0,0 +1,111 @@
+package com.jonahbauer.qed.database;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.jonahbauer.qed.Application;
+import com.jonahbauer.qed.BuildConfig;
+import com.jonahbauer.qed.chat.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A write-behind queue for messages received live from the chat.
+ *
+ * Messages are buffered and written in a single transaction once {@link #FLUSH_SIZE} messages have accumulated or
+ * {@link #FLUSH_DELAY_MS} milliseconds have passed since the first buffered message. The writer is owned by the
+ * process and outlives the fragments using it, call {@link #flush()} when a component stops to write out pending
+ * messages immediately.
+ */
+public class ChatDatabaseWriter {
+    private static final int FLUSH_SIZE = 50;
+    private static final long FLUSH_DELAY_MS = 1000;
+
+    private static ChatDatabaseWriter sInstance;
+
+    private final ChatDatabaseHelper mDatabaseHelper;
+    private final Handler mHandler;
+    private final Runnable mFlush = this::write;
+
+    private final Object mLock = new Object();
+    private List<Message> mPending = new ArrayList<>();
+
+    private ChatDatabaseWriter(@NonNull Context context) {
+        mDatabaseHelper = ChatDatabaseHelper.getInstance(context);
+
+        HandlerThread thread = new HandlerThread("ChatDatabaseWriter", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    @NonNull
+    public static synchronized ChatDatabaseWriter getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new ChatDatabaseWriter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queues the given message for insertion into the chat database
+     */
+    public void enqueue(@NonNull Message message) {
+        int pending;
+        synchronized (mLock) {
+            mPending.add(message);
+            pending = mPending.size();
+        }
+
+        if (pending >= FLUSH_SIZE) {
+            flush();
+        } else if (pending == 1) {
+            mHandler.postDelayed(mFlush, FLUSH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Writes all pending messages as soon as possible
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlush);
+        mHandler.postAtFrontOfQueue(mFlush);
+    }
+
+    private void write() {
+        List<Message> messages;
+        synchronized (mLock) {
+            if (mPending.isEmpty()) return;
+            messages = mPending;
+            mPending = new ArrayList<>();
+        }
+
+        try {
+            SQLiteDatabase chatWriteable = mDatabaseHelper.getWritableDatabase();
+            try (SQLiteStatement statement = chatWriteable.compileStatement(ChatDatabaseHelper.SQL_INSERT_OR_IGNORE)) {
+                chatWriteable.beginTransactionNonExclusive();
+                try {
+                    for (Message message : messages) {
+                        ChatDatabaseHelper.bindMessage(statement, message);
+                        statement.executeInsert();
+                    }
+                    chatWriteable.setTransactionSuccessful();
+                } finally {
+                    chatWriteable.endTransaction();
+                }
+            }
+
+            if (BuildConfig.DEBUG) Log.d(Application.LOG_TAG_DEBUG, "Chat database: wrote " + messages.size() + " queued messages");
+        } catch (SQLiteException e) {
+            Log.e(Application.LOG_TAG_ERROR, "Could not write " + messages.size() + " messages to the chat database.", e);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.jonahbauer.qed.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.jonahbauer.qed.chat.Message;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_BOTTAG;
+import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_CHANNEL;
+import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_COLOR;
+import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_DATE;
+import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_ID;
+import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_MESSAGE;
+import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_NAME;
+import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_USERID;
+import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.COLUMN_NAME_USERNAME;
+import static com.jonahbauer.qed.database.ChatDatabaseContract.ChatEntry.TABLE_NAME;
+
+/**
+ * Compares inserting messages with {@link ContentValues} and {@link SQLiteDatabase#insertOrThrow}, like the chat
+ * database did before, with the compiled {@link ChatDatabaseHelper#SQL_INSERT_OR_IGNORE} statement used by
+ * {@link ChatDatabaseAsync} now. Both insert the same messages, taken from the chat database, into a scratch database
+ * with the same schema, first into the empty table and then again when every message is a duplicate. Both commit
+ * in chunks of the same size so that only the way rows are inserted differs. Only meant for debug builds.
+ */
+public final class ChatInsertBenchmark {
+    private static final String DATABASE_NAME = "chatLogBenchmark.db";
+    private static final int DATASET_SIZE = 20_000;
+    private static final int CHUNK_SIZE = 5000;
+    private static final int WARMUP_ITERATIONS = 1;
+    private static final int MEASUREMENT_ITERATIONS = 5;
+
+    private ChatInsertBenchmark() {}
+
+    /**
+     * Runs the benchmark on the newest messages of the chat database. Takes a few seconds.
+     * @return a summary of the results or null if the chat database is empty
+     */
+    @Nullable
+    @WorkerThread
+    public static String run(@NonNull Context context) {
+        List<Message> messages = loadMessages(context);
+        if (messages.isEmpty()) return null;
+
+        File file = context.getDatabasePath(DATABASE_NAME);
+        try {
+            Result contentValues = measure(file, messages, ChatInsertBenchmark::insertContentValues);
+            Result statement = measure(file, messages, ChatInsertBenchmark::insertStatement);
+
+            return String.format(Locale.ROOT, "%d messages\nContentValues: %s\nINSERT OR IGNORE: %s",
+                    messages.size(), contentValues, statement);
+        } finally {
+            SQLiteDatabase.deleteDatabase(file);
+        }
+    }
+
+    /**
+     * @return the newest messages of the chat database, the data set of the chat benchmarks
+     */
+    @NonNull
+    @WorkerThread
+    public static List<Message> loadMessages(@NonNull Context context) {
+        SQLiteDatabase chatReadable = ChatDatabaseHelper.getInstance(context).getReadableDatabase();
+        try (Cursor cursor = chatReadable.query(TABLE_NAME, null, null, null, null, null,
+                COLUMN_NAME_ID + " DESC", String.valueOf(DATASET_SIZE))) {
+            return ChatDatabaseAsync.read(cursor, () -> false);
+        }
+    }
+
+    @NonNull
+    private static Result measure(@NonNull File file, @NonNull List<Message> messages, @NonNull Inserter inserter) {
+        long[] fresh = new long[MEASUREMENT_ITERATIONS];
+        long[] duplicates = new long[MEASUREMENT_ITERATIONS];
+
+        for (int i = -WARMUP_ITERATIONS; i < MEASUREMENT_ITERATIONS; i++) {
+            SQLiteDatabase.deleteDatabase(file);
+            SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+            try {
+                db.enableWriteAheadLogging();
+                ChatDatabaseHelper.createSchema(db);
+
+                long freshTime = time(db, messages, inserter);
+                long duplicatesTime = time(db, messages, inserter);
+                if (i >= 0) {
+                    fresh[i] = freshTime;
+                    duplicates[i] = duplicatesTime;
+                }
+            } finally {
+                db.close();
+            }
+        }
+
+        return new Result(
+                rowsPerSecond(messages.size(), fresh),
+                rowsPerSecond(messages.size(), duplicates)
+        );
+    }
+
+    private static long time(@NonNull SQLiteDatabase db, @NonNull List<Message> messages, @NonNull Inserter inserter) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int from = 0; from < messages.size(); from += CHUNK_SIZE) {
+            db.beginTransactionNonExclusive();
+            try {
+                inserter.insert(db, messages.subList(from, Math.min(from + CHUNK_SIZE, messages.size())));
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    /**
+     * @return the rows per second of the median run
+     */
+    private static long rowsPerSecond(int rows, @NonNull long[] times) {
+        Arrays.sort(times);
+        return rows * 1_000_000_000L / Math.max(1, times[times.length / 2]);
+    }
+
+    private static void insertContentValues(@NonNull SQLiteDatabase db, @NonNull List<Message> messages) {
+        for (Message message : messages) {
+            ContentValues value = new ContentValues();
+            value.put(COLUMN_NAME_ID, message.id);
+            value.put(COLUMN_NAME_USERID, message.userId);
+            value.put(COLUMN_NAME_USERNAME, message.userName);
+            value.put(COLUMN_NAME_BOTTAG, message.bottag);
+            value.put(COLUMN_NAME_COLOR, message.color);
+            value.put(COLUMN_NAME_MESSAGE, message.message);
+            value.put(COLUMN_NAME_DATE, ChatDatabaseHelper.toEpoch(message.date));
+            value.put(COLUMN_NAME_NAME, message.name);
+            value.put(COLUMN_NAME_CHANNEL, message.channel);
+
+            try {
+                db.insertOrThrow(TABLE_NAME, null, value);
+            } catch (SQLiteConstraintException ignored) {}
+        }
+    }
+
+    private static void insertStatement(@NonNull SQLiteDatabase db, @NonNull List<Message> messages) {
+        try (SQLiteStatement statement = db.compileStatement(ChatDatabaseHelper.SQL_INSERT_OR_IGNORE)) {
+            for (Message message : messages) {
+                ChatDatabaseHelper.bindMessage(statement, message);
+                statement.executeInsert();
+            }
+        }
+    }
+
+    private interface Inserter {
+        void insert(@NonNull SQLiteDatabase db, @NonNull List<Message> messages);
+    }
+
+    private static class Result {
+        private final long mFreshRowsPerSecond;
+        private final long mDuplicateRowsPerSecond;
+
+        private Result(long freshRowsPerSecond, long duplicateRowsPerSecond) {
+            mFreshRowsPerSecond = freshRowsPerSecond;
+            mDuplicateRowsPerSecond = duplicateRowsPerSecond;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d rows/s (%d rows/s for duplicates)",
+                    mFreshRowsPerSecond, mDuplicateRowsPerSecond);
+        }
+    }
+}
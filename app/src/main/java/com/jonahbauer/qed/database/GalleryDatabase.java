@@ -7,16 +7,24 @@ import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
+import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
+import com.jonahbauer.qed.Application;
+import com.jonahbauer.qed.R;
 import com.jonahbauer.qed.qedgallery.album.Album;
+import com.jonahbauer.qed.qedgallery.image.BitmapPool;
 import com.jonahbauer.qed.qedgallery.image.Image;
 import com.x5.util.Base64;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
@@ -33,15 +41,19 @@ public class GalleryDatabase {
     private GalleryDatabaseHelper mGalleryDatabaseHelper;
     private List<GalleryDatabaseAsync> mAsyncTasks;
     private GalleryDatabaseReceiver mReceiver;
+    private File mThumbnailDirectory;
 
     public void init(Context context, GalleryDatabaseReceiver receiver) {
-        mGalleryDatabaseHelper = new GalleryDatabaseHelper(context);
+        mGalleryDatabaseHelper = GalleryDatabaseHelper.getInstance(context);
+        mThumbnailDirectory = getThumbnailDirectory(context);
         mAsyncTasks = new ArrayList<>();
         this.mReceiver = receiver;
     }
 
+    /**
+     * Cancels all running tasks. The underlying database stays open for use by other components.
+     */
     public void close() {
-        if (mGalleryDatabaseHelper != null) mGalleryDatabaseHelper.close();
         mAsyncTasks.forEach(async -> {
             if (!async.isCancelled()) async.cancel(true);
         });
@@ -62,11 +74,10 @@ public class GalleryDatabase {
 
         long row;
 
-        try (SQLiteDatabase galleryWritable = mGalleryDatabaseHelper.getWritableDatabase()) {
-            row = galleryWritable.insertWithOnConflict(AlbumEntry.TABLE_NAME, null, value, insertOrUpdate ? SQLiteDatabase.CONFLICT_REPLACE : SQLiteDatabase.CONFLICT_IGNORE);
+        SQLiteDatabase galleryWritable = mGalleryDatabaseHelper.getWritableDatabase();
+        row = galleryWritable.insertWithOnConflict(AlbumEntry.TABLE_NAME, null, value, insertOrUpdate ? SQLiteDatabase.CONFLICT_REPLACE : SQLiteDatabase.CONFLICT_IGNORE);
 //            if (insertOrUpdate || row == -1)
 //                galleryWritable.update(AlbumEntry.TABLE_NAME, value, AlbumEntry.COLUMN_NAME_ID + "=" + album.id, null);
-        }
 
         return row;
     }
@@ -88,11 +99,10 @@ public class GalleryDatabase {
 
         long row;
 
-        try (SQLiteDatabase galleryWritable = mGalleryDatabaseHelper.getWritableDatabase()) {
-            row = galleryWritable.insertWithOnConflict(ImageEntry.TABLE_NAME, null, value, insertOrUpdate ? SQLiteDatabase.CONFLICT_REPLACE : SQLiteDatabase.CONFLICT_IGNORE);
+        SQLiteDatabase galleryWritable = mGalleryDatabaseHelper.getWritableDatabase();
+        row = galleryWritable.insertWithOnConflict(ImageEntry.TABLE_NAME, null, value, insertOrUpdate ? SQLiteDatabase.CONFLICT_REPLACE : SQLiteDatabase.CONFLICT_IGNORE);
 //            if (insertOrUpdate && row == -1)
 //                galleryWritable.update(ImageEntry.TABLE_NAME, value, ImageEntry.COLUMN_NAME_ID + "=" + image.id, null);
-        }
 
         return row;
     }
@@ -110,36 +120,116 @@ public class GalleryDatabase {
     }
 
     public Bitmap getThumbnail(@NonNull Image image) {
-        try (SQLiteDatabase galleryReadable = mGalleryDatabaseHelper.getReadableDatabase()) {
-            try (Cursor cursor = galleryReadable.query(
-                    ThumbEntry.TABLE_NAME,
-                    new String[]{ThumbEntry.COLUMN_NAME_THUMBNAIL},
-                    ThumbEntry.COLUMN_NAME_ID + "=?",
-                    new String[]{String.valueOf(image.id)},
-                    null, null, null)) {
-                if (cursor.moveToFirst()) {
-                    byte[] encodedThumbnail = cursor.getBlob(0);
-                    return loadImage(encodedThumbnail);
-                }
-            }
+        return getThumbnail(image, 0);
+    }
+
+    /**
+     * Reads the thumbnail of the given image, downsampling it by a power of two while it stays at least as large as
+     * the requested size. Performs disk access and should not be called on the main thread.
+     * @param size the target width and height in pixels or 0 for the full thumbnail
+     */
+    public Bitmap getThumbnail(@NonNull Image image, int size) {
+        return getThumbnail(image, size, null);
+    }
+
+    /**
+     * Reads the thumbnail of the given image like {@link #getThumbnail(Image, int)}. The thumbnail is decoded as a
+     * mutable bitmap, reusing a bitmap from the given pool if possible.
+     */
+    public Bitmap getThumbnail(@NonNull Image image, int size, @Nullable BitmapPool pool) {
+        SQLiteDatabase galleryReadable = mGalleryDatabaseHelper.getReadableDatabase();
+
+        String fileName;
+        int width, height;
+        try (Cursor cursor = galleryReadable.query(
+                ThumbEntry.TABLE_NAME,
+                new String[]{ThumbEntry.COLUMN_NAME_FILE, ThumbEntry.COLUMN_NAME_WIDTH, ThumbEntry.COLUMN_NAME_HEIGHT},
+                ThumbEntry.COLUMN_NAME_ID + "=?",
+                new String[]{String.valueOf(image.id)},
+                null, null, null)) {
+            if (!cursor.moveToFirst()) return null;
+
+            fileName = cursor.getString(0);
+            width = cursor.getInt(1);
+            height = cursor.getInt(2);
+        }
+
+        File file = new File(mThumbnailDirectory, fileName);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = getSampleSize(width, height, size);
+
+        Bitmap bitmap;
+        if (pool != null) {
+            bitmap = pool.decode(opts -> BitmapFactory.decodeFile(file.getPath(), opts), options, width, height);
+        } else {
+            options.inMutable = true;
+            bitmap = BitmapFactory.decodeFile(file.getPath(), options);
         }
 
-        return null;
+        // the file has been deleted, e.g. by clearing the cache
+        if (bitmap == null) deleteThumbnail(image);
+
+        return bitmap;
     }
 
-    public void insertThumbnail(@NonNull Image image, @NonNull Bitmap bitmap) {
-        try (SQLiteDatabase galleryWritable = mGalleryDatabaseHelper.getWritableDatabase()) {
-            ContentValues values = new ContentValues();
-            values.put(ThumbEntry.COLUMN_NAME_ID, image.id);
-            values.put(ThumbEntry.COLUMN_NAME_THUMBNAIL, storeImage(bitmap));
+    /**
+     * Stores the thumbnail of the given image as downloaded from the server. The encoded bytes are written to a file
+     * unchanged, only their metadata is written to the database. Performs disk access and should not be called on the
+     * main thread.
+     * @param length the number of valid bytes in {@code encoded}
+     */
+    public void insertThumbnail(@NonNull Image image, @NonNull byte[] encoded, int length, int width, int height) {
+        if (!mThumbnailDirectory.exists() && !mThumbnailDirectory.mkdirs()) {
+            Log.e(Application.LOG_TAG_ERROR, "Could not create " + mThumbnailDirectory);
+            return;
+        }
 
-            galleryWritable.insert(ThumbEntry.TABLE_NAME, null, values);
+        String fileName = String.valueOf(image.id);
+        File file = new File(mThumbnailDirectory, fileName);
+        File tmpFile = new File(mThumbnailDirectory, fileName + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmpFile)) {
+            out.write(encoded, 0, length);
+        } catch (IOException e) {
+            Log.e(Application.LOG_TAG_ERROR, "Could not write thumbnail to " + file, e);
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
         }
+
+        if (!tmpFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            return;
+        }
+
+        SQLiteDatabase galleryWritable = mGalleryDatabaseHelper.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(ThumbEntry.COLUMN_NAME_ID, image.id);
+        values.put(ThumbEntry.COLUMN_NAME_FILE, fileName);
+        values.put(ThumbEntry.COLUMN_NAME_WIDTH, width);
+        values.put(ThumbEntry.COLUMN_NAME_HEIGHT, height);
+        values.put(ThumbEntry.COLUMN_NAME_LENGTH, length);
+
+        galleryWritable.insertWithOnConflict(ThumbEntry.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    private void deleteThumbnail(@NonNull Image image) {
+        SQLiteDatabase galleryWritable = mGalleryDatabaseHelper.getWritableDatabase();
+        galleryWritable.delete(ThumbEntry.TABLE_NAME, ThumbEntry.COLUMN_NAME_ID + "=?", new String[]{String.valueOf(image.id)});
+    }
+
+    /**
+     * @return the directory containing the thumbnail files
+     */
+    @NonNull
+    public static File getThumbnailDirectory(@NonNull Context context) {
+        File cacheDir = context.getExternalCacheDir();
+        if (cacheDir == null) cacheDir = context.getCacheDir();
+        return new File(cacheDir, context.getString(R.string.gallery_folder_thumbnails));
     }
 
     public String getImagePath(@NonNull Image image) {
         SQLiteDatabase galleryReadable = mGalleryDatabaseHelper.getReadableDatabase();
-        galleryReadable.beginTransaction();
         Cursor cursor = galleryReadable.query(ImageEntry.TABLE_NAME, new String[] {ImageEntry.COLUMN_NAME_PATH}, ImageEntry.COLUMN_NAME_ID + "=?", new String[] {String.valueOf(image.id)}, null, null, null);
 
         String imagePath = null;
@@ -148,16 +238,12 @@ public class GalleryDatabase {
         }
 
         cursor.close();
-        galleryReadable.setTransactionSuccessful();
-        galleryReadable.endTransaction();
-        galleryReadable.close();
 
         return imagePath;
     }
 
     public Image getImageData(@NonNull Image image) {
         SQLiteDatabase galleryReadable = mGalleryDatabaseHelper.getReadableDatabase();
-        galleryReadable.beginTransaction();
         Cursor cursor = galleryReadable.query(ImageEntry.TABLE_NAME, new String[] {ImageEntry.COLUMN_NAME_PATH, ImageEntry.COLUMN_NAME_UPLOAD_DATE, ImageEntry.COLUMN_NAME_FORMAT, ImageEntry.COLUMN_NAME_NAME, ImageEntry.COLUMN_NAME_OWNER, ImageEntry.COLUMN_NAME_IS_ORIGINAL, ImageEntry.COLUMN_NAME_CREATION_DATE, ImageEntry.COLUMN_NAME_ALBUM_NAME, ImageEntry.COLUMN_NAME_DATA}, ImageEntry.COLUMN_NAME_ID + "=?", new String[] {String.valueOf(image.id)}, null, null, null);
 
         if (cursor.moveToFirst()) {
@@ -174,16 +260,12 @@ public class GalleryDatabase {
         }
 
         cursor.close();
-        galleryReadable.setTransactionSuccessful();
-        galleryReadable.endTransaction();
-        galleryReadable.close();
 
         return image;
     }
 
     public List<Album> getAlbums() {
         SQLiteDatabase galleryReadable = mGalleryDatabaseHelper.getReadableDatabase();
-        galleryReadable.beginTransaction();
 
         List<Album> out = new ArrayList<>(30);
 
@@ -202,8 +284,6 @@ public class GalleryDatabase {
             out.add(album);
         }
 
-        galleryReadable.setTransactionSuccessful();
-        galleryReadable.endTransaction();
         cursor.close();
 
         return out;
@@ -211,7 +291,6 @@ public class GalleryDatabase {
 
     public List<Image> getImageList(@NonNull Album album) {
         SQLiteDatabase galleryReadable = mGalleryDatabaseHelper.getReadableDatabase();
-        galleryReadable.beginTransaction();
 
         List<Image> out = new ArrayList<>(50);
 
@@ -228,8 +307,6 @@ public class GalleryDatabase {
             out.add(image);
         }
 
-        galleryReadable.setTransactionSuccessful();
-        galleryReadable.endTransaction();
         cursor.close();
 
         return out;
@@ -250,7 +327,6 @@ public class GalleryDatabase {
             }
         }
 
-        galleryReadable.close();
     }
 
     public void clear() {
@@ -259,6 +335,14 @@ public class GalleryDatabase {
         mGalleryDatabaseHelper.clear(writableDatabase);
         writableDatabase.setTransactionSuccessful();
         writableDatabase.endTransaction();
+
+        File[] thumbnails = mThumbnailDirectory.listFiles();
+        if (thumbnails != null) {
+            for (File thumbnail : thumbnails) {
+                //noinspection ResultOfMethodCallIgnored
+                thumbnail.delete();
+            }
+        }
     }
 
     private static String mapToString(@NotNull Map<String,String> map) {
@@ -278,15 +362,18 @@ public class GalleryDatabase {
                 .collect(Collectors.toMap(entry -> Base64.decodeToString(entry[0].trim()), entry -> Base64.decodeToString(entry[1].trim())));
     }
 
-    private static Bitmap loadImage(byte[] encoded) {
-        return BitmapFactory.decodeByteArray(encoded, 0, encoded.length);
-    }
+    /**
+     * @return the largest power of two by which an image of the given dimensions can be downsampled while staying at
+     * least as large as the requested size
+     */
+    public static int getSampleSize(int width, int height, int size) {
+        int sampleSize = 1;
+        if (size <= 0) return sampleSize;
 
-    @NonNull
-    private static byte[] storeImage(@NonNull Bitmap bitmap) {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 100, stream);
-        return stream.toByteArray();
+        while (width / (sampleSize * 2) >= size && height / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
     }
 }
 
@@ -34,9 +34,15 @@ final class GalleryDatabaseContract {
         static final String COLUMN_NAME_DATA = "imageData";
     }
 
+    /**
+     * Index of the thumbnail files, the encoded thumbnails are stored in the file system
+     */
     static class ThumbEntry implements BaseColumns {
         static final String TABLE_NAME = "thumbs";
         static final String COLUMN_NAME_ID = "imageId";
-        static final String COLUMN_NAME_THUMBNAIL = "thumbnail";
+        static final String COLUMN_NAME_FILE = "thumbnailFile";
+        static final String COLUMN_NAME_WIDTH = "thumbnailWidth";
+        static final String COLUMN_NAME_HEIGHT = "thumbnailHeight";
+        static final String COLUMN_NAME_LENGTH = "thumbnailLength";
     }
 }
@@ -12,7 +12,7 @@ import static com.jonahbauer.qed.database.GalleryDatabaseContract.ThumbEntry;
 
 class GalleryDatabaseHelper extends SQLiteOpenHelper {
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 12;
+    private static final int DATABASE_VERSION = 13;
     private static final String DATABASE_NAME = "gallery.db";
 
     private static final String SQL_CREATE_ENTRIES_ALBUM = "CREATE TABLE " + AlbumEntry.TABLE_NAME + " (" +
@@ -42,7 +42,10 @@ class GalleryDatabaseHelper extends SQLiteOpenHelper {
 
     private static final String SQL_CREATE_ENTRIES_THUMBS = "CREATE TABLE " + ThumbEntry.TABLE_NAME + " (" +
             ThumbEntry.COLUMN_NAME_ID + " INTEGER PRIMARY KEY," +
-            ThumbEntry.COLUMN_NAME_THUMBNAIL + " BLOB," +
+            ThumbEntry.COLUMN_NAME_FILE + " TEXT," +
+            ThumbEntry.COLUMN_NAME_WIDTH + " INTEGER," +
+            ThumbEntry.COLUMN_NAME_HEIGHT + " INTEGER," +
+            ThumbEntry.COLUMN_NAME_LENGTH + " INTEGER," +
             "FOREIGN KEY(" + ThumbEntry.COLUMN_NAME_ID + ") REFERENCES " + ImageEntry.TABLE_NAME + "(" + ImageEntry.COLUMN_NAME_ID + "))";
 
     private static final String SQL_DELETE_ENTRIES_ALBUM =
@@ -52,10 +55,45 @@ class GalleryDatabaseHelper extends SQLiteOpenHelper {
     private static final String SQL_DELETE_ENTRIES_THUMBS =
             "DROP TABLE IF EXISTS " + ThumbEntry.TABLE_NAME;
 
-    GalleryDatabaseHelper(Context context) {
+    private static GalleryDatabaseHelper sInstance;
+
+    /**
+     * Whether the space of the dropped thumbnail blobs should be reclaimed once the database is opened
+     */
+    private boolean mVacuum;
+
+    private GalleryDatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    /**
+     * Returns the process wide helper. The database is kept open for the lifetime of the app, so it must not be
+     * closed by its users.
+     */
+    static synchronized GalleryDatabaseHelper getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new GalleryDatabaseHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Enables write-ahead logging, which allows reads on multiple connections concurrently to a single writer.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.enableWriteAheadLogging();
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        // vacuum cannot run inside the transaction of onUpgrade
+        if (mVacuum) {
+            mVacuum = false;
+            db.execSQL("VACUUM");
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES_ALBUM);
@@ -65,7 +103,14 @@ class GalleryDatabaseHelper extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        clear(db);
+        if (oldVersion == 12) {
+            // only the thumbnails moved from blobs to files
+            db.execSQL(SQL_DELETE_ENTRIES_THUMBS);
+            db.execSQL(SQL_CREATE_ENTRIES_THUMBS);
+            mVacuum = true;
+        } else {
+            clear(db);
+        }
     }
 
     public void clear(@NonNull SQLiteDatabase db) {
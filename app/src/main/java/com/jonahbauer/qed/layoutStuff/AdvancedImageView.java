@@ -1,11 +1,26 @@
 package com.jonahbauer.qed.layoutStuff;
 
 import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.PointF;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.util.LruCache;
 import android.view.MotionEvent;
 import android.view.animation.AccelerateDecelerateInterpolator;
 import android.view.animation.Interpolator;
@@ -14,11 +29,18 @@ import androidx.annotation.DrawableRes;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.jonahbauer.qed.Application;
+import com.jonahbauer.qed.BuildConfig;
+
 import org.jetbrains.annotations.Contract;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static com.jonahbauer.qed.layoutStuff.AdvancedImageView.Mode.DRAG;
 import static com.jonahbauer.qed.layoutStuff.AdvancedImageView.Mode.NONE;
@@ -32,8 +54,22 @@ import static com.jonahbauer.qed.layoutStuff.AdvancedImageView.Mode.ZOOM;
  *     This version of the {@link androidx.appcompat.widget.AppCompatImageView} enables use of common
  *     gestures like pinch to zoom, dragging and double tap to fit size.
  * </p>
+ * <p>
+ *     Large image files can be shown via {@link #setImageFile(String)}. A preview downsampled to the size of the
+ *     screen is decoded first, when zooming in the visible parts of the image are decoded in tiles at the resolution
+ *     required by the current zoom level using a {@link BitmapRegionDecoder}. Decoding happens on a background
+ *     thread, decoded tiles are kept in a {@link LruCache} limited by their size in bytes.
+ * </p>
  */
 public class AdvancedImageView extends androidx.appcompat.widget.AppCompatImageView {
+    /**
+     * Width and height of a decoded tile in pixels
+     */
+    private static final int TILE_SIZE = 512;
+    private static final int MAX_TILE_CACHE_BYTES = 32 * 1024 * 1024;
+
+    private static Handler sDecodeHandler;
+
     private Mode mMode = NONE;
     private boolean mDragging;
 
@@ -58,6 +94,31 @@ public class AdvancedImageView extends androidx.appcompat.widget.AppCompatImageV
 
     private Animator mAnimator;
 
+    // tiled decoding of image files
+    private final Paint mTilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final LruCache<Long, Bitmap> mTiles = new LruCache<Long, Bitmap>(
+            (int) Math.min(MAX_TILE_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 8)) {
+        @Override
+        protected int sizeOf(Long key, Bitmap value) {
+            return value.getAllocationByteCount();
+        }
+    };
+    private final Set<Long> mPendingTiles = Collections.synchronizedSet(new HashSet<>());
+    private final Matrix mInverseMatrix = new Matrix();
+    private final float[] mMatrixValues = new float[9];
+    private final RectF mVisibleRect = new RectF();
+    private final RectF mTileRect = new RectF();
+    private BitmapRegionDecoder mDecoder;
+    private int mPreviewSampleSize;
+    private int mGeneration;
+    private boolean mSettingPreview;
+
+    /**
+     * The tiles currently needed, written on the main thread and read when a tile is about to be decoded
+     */
+    private volatile Rect mWantedTiles = new Rect();
+    private volatile int mWantedSampleSize;
+
     public AdvancedImageView(Context context) {
         super(context);
     }
@@ -82,6 +143,7 @@ public class AdvancedImageView extends androidx.appcompat.widget.AppCompatImageV
 
     @Override
     public void setImageBitmap(Bitmap bm) {
+        releaseDecoder();
         super.setImageBitmap(bm);
 
         Drawable source = getDrawable();
@@ -96,6 +158,7 @@ public class AdvancedImageView extends androidx.appcompat.widget.AppCompatImageV
 
     @Override
     public void setImageDrawable(@Nullable Drawable drawable) {
+        if (!mSettingPreview) releaseDecoder();
         super.setImageDrawable(drawable);
 
         Drawable source = getDrawable();
@@ -110,6 +173,7 @@ public class AdvancedImageView extends androidx.appcompat.widget.AppCompatImageV
 
     @Override
     public void setImageResource(@DrawableRes int resId) {
+        releaseDecoder();
         super.setImageResource(resId);
 
         Drawable source = getDrawable();
@@ -122,6 +186,227 @@ public class AdvancedImageView extends androidx.appcompat.widget.AppCompatImageV
         init();
     }
 
+    /**
+     * Shows the image file at the given path. The file is decoded in the background, until then the view is empty.
+     */
+    public void setImageFile(@NonNull String path) {
+        setImageFile(path, null);
+    }
+
+    /**
+     * Shows the image file at the given path. The file is decoded in the background, until then the view is empty.
+     * @param onError invoked on the main thread if the file could not be decoded, the view stays empty then
+     */
+    public void setImageFile(@NonNull String path, @Nullable Runnable onError) {
+        setImageDrawable(null);
+
+        int generation = mGeneration;
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        int maxWidth = mViewWidth > 0 ? mViewWidth : metrics.widthPixels;
+        int maxHeight = mViewHeight > 0 ? mViewHeight : metrics.heightPixels;
+
+        getDecodeHandler().post(() -> {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(path, options);
+            int width = options.outWidth;
+            int height = options.outHeight;
+
+            Bitmap preview = null;
+            BitmapRegionDecoder decoder = null;
+            int sampleSize = 1;
+            if (width > 0 && height > 0) {
+                sampleSize = getSampleSize(Math.max((float) width / maxWidth, (float) height / maxHeight));
+
+                options.inJustDecodeBounds = false;
+                options.inSampleSize = sampleSize;
+                try {
+                    preview = BitmapFactory.decodeFile(path, options);
+                } catch (OutOfMemoryError e) {
+                    Log.e(Application.LOG_TAG_ERROR, "Could not allocate preview of " + path, e);
+                }
+
+                // only large images need to be decoded in tiles
+                if (sampleSize > 1) {
+                    try {
+                        decoder = BitmapRegionDecoder.newInstance(path, false);
+                    } catch (IOException e) {
+                        Log.e(Application.LOG_TAG_ERROR, "Could not create region decoder for " + path, e);
+                    }
+                }
+            }
+
+            if (preview == null) Log.e(Application.LOG_TAG_ERROR, "Could not decode " + path);
+            if (BuildConfig.DEBUG) Log.d(Application.LOG_TAG_DEBUG, "Decoded preview of " + path + " (" + width + "x" + height + ", sample size " + sampleSize + ")");
+
+            Bitmap result = preview;
+            BitmapRegionDecoder resultDecoder = decoder;
+            int resultSampleSize = sampleSize;
+            post(() -> {
+                if (generation != mGeneration || result == null) {
+                    if (resultDecoder != null) resultDecoder.recycle();
+                    if (generation == mGeneration && onError != null) onError.run();
+                    return;
+                }
+
+                mSettingPreview = true;
+                setImageDrawable(new PreviewDrawable(getResources(), result, width, height));
+                mSettingPreview = false;
+
+                mDecoder = resultDecoder;
+                mPreviewSampleSize = resultSampleSize;
+            });
+        });
+    }
+
+    /**
+     * Drops the region decoder and all tiles of the current image file
+     */
+    private void releaseDecoder() {
+        mGeneration++;
+
+        BitmapRegionDecoder decoder = mDecoder;
+        mDecoder = null;
+        mWantedSampleSize = 0;
+
+        // called by the super constructor before the fields are initialized
+        if (mTiles != null) mTiles.evictAll();
+
+        // tiles of the previous image still being decoded must not block the same tiles of the new image
+        if (mPendingTiles != null) mPendingTiles.clear();
+
+        // pending tiles might still use the decoder
+        if (decoder != null) getDecodeHandler().post(decoder::recycle);
+    }
+
+    /**
+     * Releases the region decoder and the tiles, a view that is attached again only shows the preview
+     */
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        // tiles that have not been decoded yet are not needed anymore
+        getDecodeHandler().removeCallbacksAndMessages(this);
+        releaseDecoder();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (mDecoder != null) drawTiles(canvas);
+    }
+
+    /**
+     * Draws the visible tiles on top of the preview when the current zoom level exceeds its resolution
+     */
+    private void drawTiles(@NonNull Canvas canvas) {
+        Matrix matrix = getImageMatrix();
+        matrix.getValues(mMatrixValues);
+        float scale = Math.abs(mMatrixValues[Matrix.MSCALE_X]);
+        int sampleSize = scale > 0 ? getSampleSize(1 / scale) : mPreviewSampleSize;
+        if (sampleSize >= mPreviewSampleSize) {
+            mWantedSampleSize = 0;
+            return;
+        }
+
+        // the visible part of the image in image coordinates
+        mVisibleRect.set(0, 0, mViewWidth - getPaddingLeft() - getPaddingRight(), mViewHeight - getPaddingTop() - getPaddingBottom());
+        if (!matrix.invert(mInverseMatrix)) return;
+        mInverseMatrix.mapRect(mVisibleRect);
+        if (!mVisibleRect.intersect(0, 0, mSrcWidth, mSrcHeight)) return;
+
+        int tileSize = TILE_SIZE * sampleSize;
+        Rect wanted = new Rect(
+                (int) (mVisibleRect.left / tileSize),
+                (int) (mVisibleRect.top / tileSize),
+                (int) Math.ceil(mVisibleRect.right / tileSize),
+                (int) Math.ceil(mVisibleRect.bottom / tileSize)
+        );
+        mWantedTiles = wanted;
+        mWantedSampleSize = sampleSize;
+
+        int saveCount = canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        canvas.concat(matrix);
+        for (int row = wanted.top; row < wanted.bottom; row++) {
+            for (int col = wanted.left; col < wanted.right; col++) {
+                long key = getTileKey(sampleSize, col, row);
+                Bitmap tile = mTiles.get(key);
+                if (tile != null) {
+                    mTileRect.set(col * tileSize, row * tileSize, Math.min((col + 1) * tileSize, mSrcWidth), Math.min((row + 1) * tileSize, mSrcHeight));
+                    canvas.drawBitmap(tile, null, mTileRect, mTilePaint);
+                } else if (mPendingTiles.add(key)) {
+                    decodeTile(mDecoder, mGeneration, sampleSize, col, row);
+                }
+            }
+        }
+        canvas.restoreToCount(saveCount);
+    }
+
+    private void decodeTile(@NonNull BitmapRegionDecoder decoder, int generation, int sampleSize, int col, int row) {
+        long key = getTileKey(sampleSize, col, row);
+        int tileSize = TILE_SIZE * sampleSize;
+        int width = mSrcWidth;
+        int height = mSrcHeight;
+
+        // posted with this view as token so that pending tiles can be dropped when the view is detached
+        getDecodeHandler().postAtTime(() -> {
+            // skip tiles that have been scrolled out of view in the meantime
+            Rect wanted = mWantedTiles;
+            if (sampleSize != mWantedSampleSize || !wanted.contains(col, row)) {
+                mPendingTiles.remove(key);
+                return;
+            }
+
+            Bitmap tile = null;
+            if (!decoder.isRecycled()) {
+                Rect region = new Rect(col * tileSize, row * tileSize, Math.min((col + 1) * tileSize, width), Math.min((row + 1) * tileSize, height));
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = sampleSize;
+                try {
+                    tile = decoder.decodeRegion(region, options);
+                } catch (IllegalArgumentException | OutOfMemoryError e) {
+                    Log.e(Application.LOG_TAG_ERROR, "Could not decode tile " + region, e);
+                }
+            }
+
+            Bitmap result = tile;
+            post(() -> {
+                mPendingTiles.remove(key);
+                if (generation != mGeneration || result == null) return;
+
+                mTiles.put(key, result);
+                invalidate();
+            });
+        }, this, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * @return the largest power of two not greater than the given factor, at least 1
+     */
+    private static int getSampleSize(float factor) {
+        int sampleSize = 1;
+        while (sampleSize * 2 <= factor) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static long getTileKey(int sampleSize, int col, int row) {
+        return ((long) sampleSize << 48) | ((long) col << 24) | row;
+    }
+
+    @NonNull
+    private static synchronized Handler getDecodeHandler() {
+        if (sDecodeHandler == null) {
+            HandlerThread thread = new HandlerThread("AdvancedImageViewDecoder", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sDecodeHandler = new Handler(thread.getLooper());
+        }
+        return sDecodeHandler;
+    }
+
     private void init() {
         float scaleX = ((float) mViewWidth) / ((float) mSrcWidth);
         float scaleY = ((float) mViewHeight) / ((float) mSrcHeight);
@@ -471,6 +756,31 @@ public class AdvancedImageView extends androidx.appcompat.widget.AppCompatImageV
         }
     }
 
+    /**
+     * A downsampled preview drawn at the size of the original image, so that tiles and preview share one coordinate
+     * system.
+     */
+    private static class PreviewDrawable extends BitmapDrawable {
+        private final int mWidth;
+        private final int mHeight;
+
+        PreviewDrawable(@NonNull Resources resources, @NonNull Bitmap bitmap, int width, int height) {
+            super(resources, bitmap);
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return mHeight;
+        }
+    }
+
     enum Mode {
         ZOOM, DRAG, NONE
     }
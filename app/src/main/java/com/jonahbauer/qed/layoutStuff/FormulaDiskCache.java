@@ -0,0 +1,167 @@
+package com.jonahbauer.qed.layoutStuff;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.jonahbauer.qed.Application;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * A persistent cache of rendered formulas.
+ *
+ * Formulas are stored as png files named by a hash of their key and the {@link #RENDER_VERSION}. When the cache
+ * exceeds {@link #MAX_SIZE} bytes the least recently used files are deleted. All file access happens on a
+ * background thread, results are delivered on the main thread.
+ */
+class FormulaDiskCache {
+    private static final String CACHE_DIRECTORY = "formula_cache";
+    private static final long MAX_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Identifies the template and style used for rendering, has to be changed whenever the appearance of
+     * rendered formulas changes.
+     */
+    private static final String RENDER_VERSION = "katex-1";
+
+    private final File mDirectory;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The total size of the cached files in bytes, only accessed on the cache thread
+     */
+    private long mSize;
+
+    FormulaDiskCache(@NonNull Context context) {
+        mDirectory = new File(context.getCacheDir(), CACHE_DIRECTORY);
+
+        HandlerThread thread = new HandlerThread("FormulaDiskCache", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+
+        mHandler.post(() -> mSize = measure());
+    }
+
+    /**
+     * Loads the formula with the given key
+     * @param callback receives the formula or null if it is not cached
+     */
+    void load(@NonNull String key, @NonNull Consumer<Bitmap> callback) {
+        mHandler.post(() -> {
+            File file = getFile(key);
+            Bitmap bitmap = null;
+            if (file.exists()) {
+                bitmap = BitmapFactory.decodeFile(file.getPath());
+                //noinspection ResultOfMethodCallIgnored
+                file.setLastModified(System.currentTimeMillis());
+            }
+
+            Bitmap result = bitmap;
+            mMainHandler.post(() -> callback.accept(result));
+        });
+    }
+
+    void store(@NonNull String key, @NonNull Bitmap bitmap) {
+        mHandler.post(() -> {
+            if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+                Log.e(Application.LOG_TAG_ERROR, "Could not create " + mDirectory);
+                return;
+            }
+
+            File file = getFile(key);
+            long oldLength = file.length();
+            File tmpFile = new File(file.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmpFile)) {
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } catch (IOException e) {
+                Log.e(Application.LOG_TAG_ERROR, "Could not write formula to " + file, e);
+                //noinspection ResultOfMethodCallIgnored
+                tmpFile.delete();
+                return;
+            }
+
+            if (!tmpFile.renameTo(file)) {
+                //noinspection ResultOfMethodCallIgnored
+                tmpFile.delete();
+                return;
+            }
+
+            mSize += file.length() - oldLength;
+            if (mSize > MAX_SIZE) trim();
+        });
+    }
+
+    /**
+     * @return the total size of the cached files in bytes
+     */
+    private long measure() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return 0;
+
+        long size = 0;
+        for (File file : files) size += file.length();
+        return size;
+    }
+
+    /**
+     * Deletes the least recently used files until the cache fits into {@link #MAX_SIZE}. The directory is scanned
+     * again since the system may have deleted files in the meantime.
+     */
+    private void trim() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            mSize = 0;
+            return;
+        }
+
+        long size = 0;
+        for (File file : files) size += file.length();
+        mSize = size;
+        if (size <= MAX_SIZE) return;
+
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (int i = 0; i < files.length && size > MAX_SIZE; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) size -= length;
+        }
+        mSize = size;
+    }
+
+    @NonNull
+    private File getFile(@NonNull String key) {
+        return new File(mDirectory, hash(RENDER_VERSION + "\n" + key) + ".png");
+    }
+
+    @NonNull
+    private static String hash(@NonNull String string) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(string.getBytes(StandardCharsets.UTF_8));
+
+            StringBuilder out = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                out.append(Character.forDigit((b >> 4) & 0xF, 16));
+                out.append(Character.forDigit(b & 0xF, 16));
+            }
+            return out.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is not supported.", e);
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package com.jonahbauer.qed.layoutStuff;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+import android.view.ViewGroup;
+import android.webkit.WebSettings;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+import android.widget.FrameLayout;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jonahbauer.qed.Application;
+import com.jonahbauer.qed.BuildConfig;
+import com.x5.template.Chunk;
+import com.x5.template.Theme;
+import com.x5.template.providers.AndroidTemplates;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders LaTeX formulas to bitmaps.
+ *
+ * Formulas are drawn by a small pool of {@link WebView}s running KaTeX. A web view only draws reliably while it is
+ * attached to a visible window, so the pool is hosted in an offscreen container in the window of the views showing
+ * formulas, see {@link #attachTo(View)}. Rendering waits until such a window is available.
+ * The resulting bitmaps are kept in a {@link LruCache} limited by their size in bytes and persisted in a
+ * {@link FormulaDiskCache}, so that formulas only have to be rendered once. Formulas that could not be rendered are
+ * remembered as well. Requests for the same formula are coalesced, the most recent requests are served first so
+ * that formulas currently scrolled into view are not stuck behind a preload.
+ * All methods have to be called on the main thread, callbacks are invoked on the main thread.
+ */
+@MainThread
+public class MathRenderer {
+    private static final int POOL_SIZE = 2;
+    private static final int MAX_CACHE_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_FAILURES = 256;
+    private static final long RENDER_TIMEOUT_MS = 5000;
+
+    /**
+     * Returns the bounds of the rendered formula in css pixels as {@code "left,top,right,bottom"}
+     */
+    private static final String MEASURE_SCRIPT = "(function() {"
+            + "var e = document.querySelector('.katex') || document.body;"
+            + "var r = e.getBoundingClientRect();"
+            + "return r.left + ',' + r.top + ',' + r.right + ',' + r.bottom;"
+            + "})()";
+
+    private static MathRenderer sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final float mDensity;
+    private final int mRenderWidth;
+
+    private final LruCache<String, Bitmap> mCache;
+    private final LruCache<String, Boolean> mFailures = new LruCache<>(MAX_FAILURES);
+    private final FormulaDiskCache mDiskCache;
+    private final Map<String, List<Callback>> mPending = new HashMap<>();
+    private final Deque<Request> mQueue = new ArrayDeque<>();
+    private final List<Renderer> mIdle = new ArrayList<>(POOL_SIZE);
+    private int mRendererCount;
+
+    private final HostLayout mHost;
+
+    private MathRenderer(@NonNull Context context) {
+        mContext = context;
+        mDensity = context.getResources().getDisplayMetrics().density;
+        mRenderWidth = context.getResources().getDisplayMetrics().widthPixels;
+        mDiskCache = new FormulaDiskCache(context);
+        mHost = new HostLayout(context);
+
+        int budget = (int) Math.min(MAX_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 16);
+        mCache = new LruCache<String, Bitmap>(budget) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    @NonNull
+    public static MathRenderer getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new MathRenderer(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Moves the web views rendering formulas into the window of the given view and starts rendering pending formulas.
+     * Views showing formulas call this when they are attached to a window.
+     */
+    public void attachTo(@NonNull View view) {
+        View root = view.getRootView();
+        if (!(root instanceof ViewGroup) || !root.isAttachedToWindow() || mHost.getParent() == root) return;
+
+        if (mHost.getParent() != null) ((ViewGroup) mHost.getParent()).removeView(mHost);
+        ((ViewGroup) root).addView(mHost, new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+
+        schedule();
+    }
+
+    /**
+     * @return the key identifying a formula rendered at the given size
+     */
+    @NonNull
+    public static String getKey(@NonNull String laTeX, float size) {
+        return size + "\n" + laTeX;
+    }
+
+    /**
+     * @return the cached rendering of the formula or null if it has not been rendered yet
+     */
+    @Nullable
+    public Bitmap get(@NonNull String laTeX, float size) {
+        return mCache.get(getKey(laTeX, size));
+    }
+
+    /**
+     * Renders the given formula. When the formula is cached or is known not to render the callback is invoked
+     * immediately.
+     * @param laTeX a latex literal including its delimiters
+     * @param size the font size in pixels
+     * @param callback a callback receiving the result, may be null to just preload the formula
+     */
+    public void render(@NonNull String laTeX, float size, @Nullable Callback callback) {
+        String key = getKey(laTeX, size);
+
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap != null) {
+            if (callback != null) callback.onFormulaRendered(key, bitmap);
+            return;
+        }
+
+        if (mFailures.get(key) != null) {
+            if (callback != null) callback.onFormulaRendered(key, null);
+            return;
+        }
+
+        List<Callback> callbacks = mPending.get(key);
+        if (callbacks == null) {
+            callbacks = new ArrayList<>(1);
+            mPending.put(key, callbacks);
+            mDiskCache.load(key, cached -> {
+                if (cached != null) {
+                    deliver(key, cached);
+                } else {
+                    mQueue.addLast(new Request(key, laTeX, size));
+                    schedule();
+                }
+            });
+        } else if (callback != null) {
+            // serve the request next, someone is waiting for it
+            for (Iterator<Request> iterator = mQueue.iterator(); iterator.hasNext(); ) {
+                Request request = iterator.next();
+                if (request.key.equals(key)) {
+                    iterator.remove();
+                    mQueue.addLast(request);
+                    break;
+                }
+            }
+        }
+        if (callback != null) callbacks.add(callback);
+    }
+
+    /**
+     * Removes the given callback from all pending requests
+     */
+    public void cancel(@NonNull Callback callback) {
+        for (List<Callback> callbacks : mPending.values()) {
+            callbacks.remove(callback);
+        }
+    }
+
+    /**
+     * Clears the memory cache, formulas rendered before are still available from disk. Formulas that could not be
+     * rendered are tried again.
+     */
+    public void clearCache() {
+        mCache.evictAll();
+        mFailures.evictAll();
+    }
+
+    private void schedule() {
+        // web views do not draw without a window
+        if (!mHost.isAttachedToWindow()) return;
+
+        while (!mQueue.isEmpty()) {
+            Renderer renderer;
+            if (!mIdle.isEmpty()) {
+                renderer = mIdle.remove(mIdle.size() - 1);
+            } else if (mRendererCount < POOL_SIZE) {
+                renderer = new Renderer();
+                mRendererCount++;
+            } else {
+                return;
+            }
+
+            renderer.render(mQueue.pollLast());
+        }
+    }
+
+    private void finish(@NonNull Renderer renderer, @NonNull Request request, @Nullable Bitmap bitmap) {
+        if (bitmap != null) mDiskCache.store(request.key, bitmap);
+        else mFailures.put(request.key, Boolean.TRUE);
+        deliver(request.key, bitmap);
+
+        mIdle.add(renderer);
+        schedule();
+    }
+
+    private void deliver(@NonNull String key, @Nullable Bitmap bitmap) {
+        if (bitmap != null) mCache.put(key, bitmap);
+
+        List<Callback> callbacks = mPending.remove(key);
+        if (callbacks != null) {
+            for (Callback callback : callbacks) {
+                callback.onFormulaRendered(key, bitmap);
+            }
+        }
+    }
+
+    public interface Callback {
+        /**
+         * @param key the key of the formula as returned by {@link #getKey(String, float)}
+         * @param bitmap the rendered formula or null if it could not be rendered
+         */
+        void onFormulaRendered(@NonNull String key, @Nullable Bitmap bitmap);
+    }
+
+    private static class Request {
+        final String key;
+        final String laTeX;
+        final float size;
+
+        Request(String key, String laTeX, float size) {
+            this.key = key;
+            this.laTeX = laTeX;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Hosts the web views of the renderers offscreen. The web views are measured and laid out by their renderers.
+     */
+    private class HostLayout extends FrameLayout {
+        HostLayout(@NonNull Context context) {
+            super(context);
+            setTranslationX(-Math.max(mRenderWidth, 1) * 4);
+            setClickable(false);
+            setFocusable(false);
+            setImportantForAccessibility(IMPORTANT_FOR_ACCESSIBILITY_NO_HIDE_DESCENDANTS);
+        }
+
+        @Override
+        protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+            setMeasuredDimension(MeasureSpec.getSize(widthMeasureSpec), MeasureSpec.getSize(heightMeasureSpec));
+        }
+
+        @Override
+        protected void onLayout(boolean changed, int left, int top, int right, int bottom) {}
+
+        @Override
+        protected void onDetachedFromWindow() {
+            super.onDetachedFromWindow();
+
+            // do not keep the old window alive, views cannot be removed while they are being detached
+            mHandler.post(() -> {
+                if (!isAttachedToWindow() && getParent() instanceof ViewGroup) ((ViewGroup) getParent()).removeView(this);
+            });
+        }
+    }
+
+    /**
+     * An offscreen web view rendering one formula at a time
+     */
+    private class Renderer extends WebViewClient {
+        private final WebView mWebView;
+        private final Runnable mTimeout = this::onTimeout;
+
+        private Request mRequest;
+        private long mVisualStateRequest;
+
+        @SuppressLint("SetJavaScriptEnabled")
+        Renderer() {
+            mWebView = new WebView(mContext);
+            mWebView.setWebViewClient(this);
+            mWebView.setLayerType(View.LAYER_TYPE_SOFTWARE, null);
+            mWebView.setBackgroundColor(Color.TRANSPARENT);
+            mWebView.setVerticalScrollBarEnabled(false);
+            mWebView.setHorizontalScrollBarEnabled(false);
+            mWebView.getSettings().setJavaScriptEnabled(true);
+            mWebView.getSettings().setCacheMode(WebSettings.LOAD_NO_CACHE);
+            mHost.addView(mWebView);
+        }
+
+        void render(@NonNull Request request) {
+            mRequest = request;
+
+            mWebView.getSettings().setDefaultFontSize((int) (request.size * 0.5f));
+            layout(mRenderWidth, (int) (request.size * 4));
+
+            Chunk chunk = new Theme(new AndroidTemplates(mContext)).makeChunk("katex");
+            chunk.set("formula", request.laTeX);
+            mWebView.loadDataWithBaseURL(null, chunk.toString(), "text/html", "utf-8", "about:blank");
+
+            mHandler.postDelayed(mTimeout, RENDER_TIMEOUT_MS);
+        }
+
+        @Override
+        public void onPageFinished(WebView view, String url) {
+            if (mRequest == null) return;
+            view.evaluateJavascript(MEASURE_SCRIPT, this::onMeasured);
+        }
+
+        private void onMeasured(@Nullable String result) {
+            if (mRequest == null) return;
+
+            int left, top, right, bottom;
+            try {
+                String[] bounds = result.replace("\"", "").split(",");
+                left = (int) Math.floor(Float.parseFloat(bounds[0]) * mDensity);
+                top = (int) Math.floor(Float.parseFloat(bounds[1]) * mDensity);
+                right = (int) Math.ceil(Float.parseFloat(bounds[2]) * mDensity);
+                bottom = (int) Math.ceil(Float.parseFloat(bounds[3]) * mDensity);
+            } catch (RuntimeException e) {
+                Log.e(Application.LOG_TAG_ERROR, "Could not measure formula " + mRequest.laTeX + ": " + result, e);
+                done(null);
+                return;
+            }
+
+            if (right <= left || bottom <= top) {
+                done(null);
+                return;
+            }
+
+            // grow the view to the size of the formula and wait for it to be redrawn
+            layout(Math.max(mRenderWidth, right), Math.max(mWebView.getHeight(), bottom));
+            long visualStateRequest = ++mVisualStateRequest;
+            mWebView.postVisualStateCallback(visualStateRequest, new WebView.VisualStateCallback() {
+                @Override
+                public void onComplete(long requestId) {
+                    if (mRequest == null || requestId != mVisualStateRequest) return;
+                    draw(left, top, right, bottom);
+                }
+            });
+        }
+
+        private void draw(int left, int top, int right, int bottom) {
+            Bitmap bitmap;
+            try {
+                bitmap = Bitmap.createBitmap(right - left, bottom - top, Bitmap.Config.ARGB_8888);
+            } catch (OutOfMemoryError e) {
+                Log.e(Application.LOG_TAG_ERROR, "Could not allocate bitmap for formula " + mRequest.laTeX, e);
+                done(null);
+                return;
+            }
+
+            Canvas canvas = new Canvas(bitmap);
+            canvas.translate(-left, -top);
+            mWebView.draw(canvas);
+
+            if (BuildConfig.DEBUG) Log.d(Application.LOG_TAG_DEBUG, "Rendered formula " + mRequest.laTeX + " (" + bitmap.getWidth() + "x" + bitmap.getHeight() + ")");
+            done(bitmap);
+        }
+
+        private void layout(int width, int height) {
+            mWebView.measure(
+                    View.MeasureSpec.makeMeasureSpec(width, View.MeasureSpec.EXACTLY),
+                    View.MeasureSpec.makeMeasureSpec(height, View.MeasureSpec.EXACTLY)
+            );
+            mWebView.layout(0, 0, width, height);
+        }
+
+        private void onTimeout() {
+            Request request = mRequest;
+            if (request == null) return;
+
+            if (mWebView.isAttachedToWindow()) {
+                done(null);
+                return;
+            }
+
+            // the window went away while rendering, the formula is rendered again once there is a window
+            mRequest = null;
+            mWebView.stopLoading();
+            mQueue.addLast(request);
+            mIdle.add(this);
+        }
+
+        private void done(@Nullable Bitmap bitmap) {
+            Request request = mRequest;
+            if (request == null) return;
+
+            mRequest = null;
+            mHandler.removeCallbacks(mTimeout);
+            mWebView.stopLoading();
+
+            finish(this, request, bitmap);
+        }
+    }
+}
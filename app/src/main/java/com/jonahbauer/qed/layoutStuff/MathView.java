@@ -3,18 +3,16 @@
  */
 package com.jonahbauer.qed.layoutStuff;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.TypedArray;
-import android.graphics.Color;
+import android.graphics.Bitmap;
 import android.util.AttributeSet;
-import android.util.SparseArray;
 import android.util.TypedValue;
-import android.view.MotionEvent;
+import android.view.Gravity;
 import android.view.ViewGroup;
-import android.view.ViewParent;
-import android.webkit.WebSettings;
-import android.webkit.WebView;
+import android.widget.FrameLayout;
+import android.widget.HorizontalScrollView;
+import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
@@ -26,12 +24,7 @@ import androidx.annotation.Px;
 import androidx.annotation.StyleRes;
 
 import com.jonahbauer.qed.R;
-import com.jonahbauer.qed.util.Triple;
-import com.x5.template.Chunk;
-import com.x5.template.Theme;
-import com.x5.template.providers.AndroidTemplates;
 
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -44,7 +37,7 @@ public class MathView extends LinearLayout {
     private final Context mContext;
 
     private final List<TextView> mTextViews = new LinkedList<>();
-    private final List<Triple<String, Integer, Long>> mInternalMathViews = new LinkedList<>();
+    private final List<FormulaView> mFormulaViews = new LinkedList<>();
 
     private String mText;
     private int mTextStyle;
@@ -99,16 +92,13 @@ public class MathView extends LinearLayout {
     }
 
     public void setText(@Nullable String text) {
-        this.setText(text, -1);
-    }
-    public void setText(@Nullable String text, long id) {
         if (Objects.equals(text, mText)) return;
 
         release();
 
         this.removeAllViews();
         mTextViews.clear();
-        mInternalMathViews.clear();
+        mFormulaViews.clear();
         mText = text;
         if (text == null) return;
 
@@ -119,13 +109,24 @@ public class MathView extends LinearLayout {
             boolean inline = str.startsWith("\\(") && str.endsWith("\\)");
             boolean displayed = str.startsWith("\\[") && str.endsWith("\\]");
             if (displayed || inline) {
-                // add as math view
+                // add as formula
                 str = "\\[" + str.substring(2, str.length() - 2) + "\\]";
-                InternalMathView mathView = InternalMathView.getInternalMathView(mContext, null, str, inline, mTextSize, i, id,this);
-
-                mInternalMathViews.add(new Triple<>(str, i, id));
-
-                this.addView(mathView);
+                FormulaView formulaView = new FormulaView(mContext);
+                formulaView.setFormula(str, mTextSize);
+                mFormulaViews.add(formulaView);
+
+                if (inline) {
+                    this.addView(formulaView, new LinearLayout.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+                } else {
+                    // wide formulas can be scrolled horizontally
+                    HorizontalScrollView scrollView = new HorizontalScrollView(mContext);
+                    scrollView.setHorizontalScrollBarEnabled(false);
+                    scrollView.setFillViewport(true);
+                    scrollView.setPadding(0, (int) (mTextSize / 2), 0, (int) (mTextSize / 2));
+                    scrollView.addView(formulaView, new FrameLayout.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT, Gravity.CENTER_HORIZONTAL));
+
+                    this.addView(scrollView, new LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+                }
             } else {
                 // add as text view
                 TextView textView = new TextView(mContext);
@@ -200,215 +201,77 @@ public class MathView extends LinearLayout {
     }
 
     /**
-     * Release all {@code InternalMathView}s associated with this view
-     * so that they can be claimed by other {@code MathView}s.
+     * Cancels the pending renderings of this view's formulas.
      */
     public void release() {
-        for (Triple<String, Integer, Long> internalMathView : mInternalMathViews) {
-            InternalMathView.release(internalMathView.first, internalMathView.second, internalMathView.third, this);
+        for (FormulaView formulaView : mFormulaViews) {
+            formulaView.release();
         }
     }
 
     /**
-     * Clear {@code InternalMathView} cache.
+     * Clear the cache of rendered formulas.
      */
-    public static void clearCache() {
-        InternalMathView.cache.clear();
+    public static void clearCache(@NonNull Context context) {
+        MathRenderer.getInstance(context).clearCache();
     }
 
     /**
-     * Extract all latex components of the given text, create {@code InternalMathView}s for them and preload them.
-     * @param context a context for view creation
+     * Extract all latex components of the given text and render them in the background.
+     * @param context a context
      * @param text a text possibly containing latex
      * @param size font size
-     * @param id message id (used for caching)
-     * @param preloadLayout a layout for the view to preload
      */
-    public static void extractAndPreload(Context context, String text, float size, long id, @Nullable LinearLayout preloadLayout) {
-        String[] split = getLaTeX(text);
-        for (int i = 0; i < split.length; i++) {
-            boolean inline = split[i].startsWith("\\(") && split[i].endsWith("\\)");
-            boolean displayed = split[i].startsWith("\\[") && split[i].endsWith("\\]");
-
-            if (inline) InternalMathView.preload(context, "\\[" + split[i].substring(2, split[i].length() - 2) + "\\]", true, size, preloadLayout, i, id);
-            else if (displayed) InternalMathView.preload(context, split[i], false, size, preloadLayout, i, id);
+    public static void extractAndPreload(@NonNull Context context, @NonNull String text, float size) {
+        MathRenderer renderer = MathRenderer.getInstance(context);
+        for (String str : getLaTeX(text)) {
+            boolean inline = str.startsWith("\\(") && str.endsWith("\\)");
+            boolean displayed = str.startsWith("\\[") && str.endsWith("\\]");
+
+            if (inline || displayed) renderer.render("\\[" + str.substring(2, str.length() - 2) + "\\]", size, null);
         }
     }
 
-    private static class InternalMathView extends WebView {
-        /**
-         * Owned InternalMathView:      Objects.hash(laTeX, index, id, owner)
-         * Unowned InternalMathView:    Objects.hash(laTeX, index, id)
-         *
-         * laTeX: displayed LaTeX literal
-         * index: part index of complete message
-         * id:    message id
-         * owner: displaying MathView
-         */
-        private static final SparseArray<SoftReference<InternalMathView>> cache = new SparseArray<>();
-
-        /**
-         * @param context a context for view creation
-         * @param attrs a attribute set used for creating a new InternalMathView
-         * @param laTeX the latex literal to be displayed
-         * @param inline inline or displayed latex
-         * @param size font size
-         * @param index part index as part of whole message (used for caching)
-         * @param id message id (used for caching)
-         * @param owner displaying MathView
-         */
-        public static InternalMathView getInternalMathView(Context context, AttributeSet attrs, String laTeX, boolean inline, float size, int index, long id, MathView owner) {
-            int cachePos = Objects.hash(laTeX, index, id, owner);
-
-            // load owned math view
-            SoftReference<InternalMathView> ref = cache.get(cachePos);
-            if (ref != null) {
-                InternalMathView mathView = ref.get();
-                if (mathView != null) {
-                    ViewParent parent = mathView.getParent();
-                    if (parent != null) ((ViewGroup)parent).removeView(mathView);
-
-                    return mathView;
-                }
-            }
-
-            // load unowned math view
-            int preloadedCachePos = Objects.hash(laTeX, index, id);
-            SoftReference<InternalMathView> preloadedRef = cache.get(preloadedCachePos);
-            if (preloadedRef != null) {
-                InternalMathView mathView = preloadedRef.get();
-                if (mathView != null) {
-                    ViewParent parent = mathView.getParent();
-                    if (parent != null) ((ViewGroup)parent).removeView(mathView);
-
-                    // take ownership
-                    cache.remove(preloadedCachePos);
-                    cache.put(cachePos, preloadedRef);
-
-                    return mathView;
-                }
-            }
+    /**
+     * Shows a formula rendered by the {@link MathRenderer}
+     */
+    private static class FormulaView extends ImageView implements MathRenderer.Callback {
+        private String mKey;
 
-            InternalMathView internalMathView = new InternalMathView(context, attrs, laTeX, inline, size);
-            cache.put(cachePos, new SoftReference<>(internalMathView));
-            return internalMathView;
+        FormulaView(Context context) {
+            super(context);
+            setAdjustViewBounds(true);
+            setScaleType(ScaleType.FIT_START);
         }
 
-        /**
-         * @param context a context for view creation
-         * @param laTeX a latex literal to be displayed
-         * @param inline inline or displayed latex
-         * @param size font size
-         * @param preloadLayout a layout for the view to preload
-         * @param index part index as part of whole message (used for caching)
-         * @param id message id (used for caching)
-         */
-        public static void preload(Context context, String laTeX, boolean inline, float size, @Nullable LinearLayout preloadLayout, int index, long id) {
-            InternalMathView mathView = new InternalMathView(context, null, laTeX, inline, size);
-            if (preloadLayout != null) {
-                preloadLayout.addView(mathView);
-            }
-
-            cache.put(Objects.hash(laTeX, index, id), new SoftReference<>(mathView));
-        }
+        void setFormula(@NonNull String laTeX, float size) {
+            mKey = MathRenderer.getKey(laTeX, size);
+            setImageDrawable(null);
+            setMinimumHeight((int) size);
 
-        /**
-         * Give up ownership for a {@code InternalMathView} so that it can be claimed by other {@code MathView}s.
-         * @param laTeX a latex literal to be displayed
-         * @param index part index as part of whole message (used for caching)
-         * @param id message id (used for caching)
-         * @param owner the current owner of the {@code InternalMathView}
-         */
-        public static void release(String laTeX, int index, long id, MathView owner) {
-            int ownedPos = Objects.hash(laTeX, index, id, owner);
-
-            SoftReference<InternalMathView> ref = cache.get(ownedPos);
-            if (ref != null && ref.get() != null) {
-                int unownedPos = Objects.hash(laTeX, index, id);
-                cache.remove(ownedPos);
-                cache.put(unownedPos, ref);
-            }
+            MathRenderer.getInstance(getContext()).render(laTeX, size, this);
         }
 
-
-        private String laTeX;
-        private final boolean inline;
-        private float startX;
-        private int scrollStartX;
-        private int maxScrollX;
-
-
-        @SuppressLint("SetJavaScriptEnabled")
-        public InternalMathView(Context context, AttributeSet attrs, String laTeX, boolean inline, float size) {
-            super(context, attrs);
-
-            this.inline = inline;
-
-            if (inline) setScrollBarSize(0);
-
-            LinearLayout.LayoutParams layoutParams = new LinearLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT);
-            if (inline) {
-                layoutParams.setMargins(0, - (int) size, 0, - (int) size);
-            }
-            setLayoutParams(layoutParams);
-
-            getSettings().setJavaScriptEnabled(true);
-            getSettings().setCacheMode(WebSettings.LOAD_NO_CACHE);
-            getSettings().setDefaultFontSize((int)(size * 0.5f));
-            setBackgroundColor(Color.TRANSPARENT);
-
-            setVerticalScrollBarEnabled(false);
-            setScrollContainer(false);
-
-            setText(laTeX);
+        void release() {
+            MathRenderer.getInstance(getContext()).cancel(this);
         }
 
-
         @Override
-        @SuppressLint("ClickableViewAccessibility")
-        public boolean onTouchEvent(MotionEvent event) {
-            if (inline) return false;
-            int action = event.getAction();
-
-            switch (action) {
-                case MotionEvent.ACTION_DOWN:
-                    startX = event.getX();
-                    scrollStartX = getScrollX();
-                    maxScrollX = computeHorizontalScrollRange() - getMeasuredWidth();
-
-                    return true;
-                case MotionEvent.ACTION_MOVE:
-                    float dx = event.getX() - startX;
-                    int scrollX = scrollStartX - (int) dx;
-                    if (scrollX < 0) scrollX = 0;
-                    else if (scrollX > maxScrollX) scrollX = maxScrollX;
-
-                    setScrollX(scrollX);
-                    return true;
-                case MotionEvent.ACTION_UP:
-                    setTouchDelegate(null);
-                    return true;
-            }
-
-            return false;
-        }
+        protected void onAttachedToWindow() {
+            super.onAttachedToWindow();
 
-        private Chunk getChunk() {
-            AndroidTemplates loader = new AndroidTemplates(getContext());
-            return new Theme(loader).makeChunk("katex");
+            // the window's view hierarchy must not be changed while views are being attached
+            post(() -> {
+                if (isAttachedToWindow()) MathRenderer.getInstance(getContext()).attachTo(this);
+            });
         }
 
-        public void setText(String laTeX) {
-            this.laTeX = laTeX;
-
-            Chunk chunk = getChunk();
-            chunk.set("formula", laTeX);
-
-            this.loadDataWithBaseURL(null, chunk.toString(), "text/html", "utf-8", "about:blank");
-        }
+        @Override
+        public void onFormulaRendered(@NonNull String key, @Nullable Bitmap bitmap) {
+            if (!key.equals(mKey)) return;
 
-        public String getText() {
-            return laTeX;
+            setMinimumHeight(0);
+            setImageBitmap(bitmap);
         }
     }
 }
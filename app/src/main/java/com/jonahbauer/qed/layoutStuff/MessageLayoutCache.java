@@ -0,0 +1,184 @@
+package com.jonahbauer.qed.layoutStuff;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.text.SpannableString;
+import android.text.TextPaint;
+import android.text.util.Linkify;
+import android.util.LruCache;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
+
+import com.jonahbauer.qed.chat.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A cache of precomputed message texts.
+ *
+ * Measuring the text of a message is the most expensive part of binding a {@link MessageView}. Adapters prefetch
+ * the messages around the visible ones, their texts are padded for the time stamp and measured on a background
+ * thread, so that binding only has to hand the result to the text view. Measurements do not depend on the available
+ * width, entries are identified by the message id, text and date and the {@link TextSettings} of the view, which
+ * include whether links are shown. The text and date are part of the key because synthetic messages, e.g. error
+ * messages, share one id.
+ */
+public class MessageLayoutCache {
+    private static final int MAX_ENTRIES = 512;
+
+    private static MessageLayoutCache sInstance;
+
+    private final LruCache<Key, PrecomputedTextCompat> mCache = new LruCache<>(MAX_ENTRIES);
+    private final Set<Key> mPending = Collections.synchronizedSet(new HashSet<>());
+    private final Handler mHandler;
+
+    private MessageLayoutCache() {
+        HandlerThread thread = new HandlerThread("MessageLayoutCache", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    @NonNull
+    public static synchronized MessageLayoutCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new MessageLayoutCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the precomputed text of the given message or null if it has not been precomputed yet
+     */
+    @Nullable
+    public PrecomputedTextCompat get(@NonNull Message message, @NonNull TextSettings settings) {
+        return mCache.get(new Key(message, settings));
+    }
+
+    /**
+     * Precomputes the texts of the messages in the given range in the background.
+     * @param from the first index, inclusive
+     * @param to the last index, exclusive
+     */
+    public void prefetch(@NonNull List<Message> messages, int from, int to, @NonNull TextSettings settings) {
+        from = Math.max(0, from);
+        to = Math.min(messages.size(), to);
+
+        List<Message> missing = null;
+        for (int i = from; i < to; i++) {
+            Message message = messages.get(i);
+            Key key = new Key(message, settings);
+            if (mCache.get(key) == null && mPending.add(key)) {
+                if (missing == null) missing = new ArrayList<>(to - i);
+                missing.add(message);
+            }
+        }
+        if (missing == null) return;
+
+        List<Message> batch = missing;
+        mHandler.post(() -> {
+            for (Message message : batch) {
+                Key key = new Key(message, settings);
+
+                CharSequence text = message.message;
+                if (!settings.mExtended) {
+                    text = MessageView.padForTime(message.message, MessageView.getTime(message.date),
+                            settings.mMessagePaint, settings.mDatePaint, settings.mDatePadding);
+                }
+
+                // cached texts are shared between views, so links have to be added before caching
+                if (settings.mLinkify) {
+                    SpannableString linkified = new SpannableString(text);
+                    if (Linkify.addLinks(linkified, Linkify.WEB_URLS)) text = linkified;
+                }
+
+                mCache.put(key, PrecomputedTextCompat.create(text, settings.mParams));
+                mPending.remove(key);
+            }
+        });
+    }
+
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Everything that influences the measurement of a message text. The paints are copies owned by the background
+     * thread and must not be modified.
+     */
+    public static final class TextSettings {
+        private final PrecomputedTextCompat.Params mParams;
+        private final TextPaint mMessagePaint;
+        private final TextPaint mDatePaint;
+        private final float mDatePadding;
+        private final boolean mExtended;
+        private final boolean mLinkify;
+
+        TextSettings(@NonNull TextView messageTextView, @NonNull TextView dateTextView, float datePadding, boolean extended, boolean linkify) {
+            mParams = TextViewCompat.getTextMetricsParams(messageTextView);
+            mMessagePaint = new TextPaint(messageTextView.getPaint());
+            mDatePaint = new TextPaint(dateTextView.getPaint());
+            mDatePadding = datePadding;
+            mExtended = extended;
+            mLinkify = linkify;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            TextSettings that = (TextSettings) o;
+            return mExtended == that.mExtended
+                    && mLinkify == that.mLinkify
+                    && mDatePadding == that.mDatePadding
+                    && mParams.equals(that.mParams)
+                    && mDatePaint.getTextSize() == that.mDatePaint.getTextSize()
+                    && mDatePaint.getTextScaleX() == that.mDatePaint.getTextScaleX()
+                    && mDatePaint.getLetterSpacing() == that.mDatePaint.getLetterSpacing()
+                    && Objects.equals(mDatePaint.getTypeface(), that.mDatePaint.getTypeface());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mParams, mDatePaint.getTextSize(), mDatePadding, mExtended, mLinkify);
+        }
+    }
+
+    private static final class Key {
+        private final long mId;
+        private final String mMessage;
+        private final String mDate;
+        private final TextSettings mSettings;
+
+        Key(Message message, TextSettings settings) {
+            mId = message.id;
+            mMessage = message.message;
+            mDate = message.date;
+            mSettings = settings;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return mId == key.mId && mMessage.equals(key.mMessage) && mDate.equals(key.mDate)
+                    && mSettings.equals(key.mSettings);
+        }
+
+        @Override
+        public int hashCode() {
+            // ids are distinct enough, the text is only compared on collisions
+            return 31 * Long.hashCode(mId) + mSettings.hashCode();
+        }
+    }
+}
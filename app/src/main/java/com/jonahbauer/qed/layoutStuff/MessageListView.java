@@ -0,0 +1,131 @@
+package com.jonahbauer.qed.layoutStuff;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.recyclerview.widget.SimpleItemAnimator;
+
+import com.jonahbauer.qed.R;
+import com.jonahbauer.qed.chat.MessageAdapter;
+
+/**
+ * A {@link RecyclerView} showing the messages of a {@link MessageAdapter} in a vertical list.
+ *
+ * Provides the subset of the {@link android.widget.ListView} api used by the chat fragments. Recycled views are
+ * pooled per view type so that normal, KaTeX and extended message views are never rebuilt into one another.
+ * Like {@link android.widget.ListView} the list supports {@code android:dividerHeight} to space its items.
+ */
+public class MessageListView extends RecyclerView {
+    private static final int MAX_RECYCLED_VIEWS = 20;
+
+    private final LinearLayoutManager mLayoutManager;
+
+    private boolean mAutoScroll;
+    private final AdapterDataObserver mAutoScrollObserver = new AdapterDataObserver() {
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            Adapter<?> adapter = getAdapter();
+            if (!mAutoScroll || adapter == null) return;
+
+            // the layout still reflects the state before the insertion
+            int last = adapter.getItemCount() - 1;
+            if (positionStart + itemCount - 1 == last && getLastVisiblePosition() >= positionStart - 1) {
+                scrollToPosition(last);
+            }
+        }
+    };
+
+    public MessageListView(@NonNull Context context) {
+        this(context, null);
+    }
+
+    public MessageListView(@NonNull Context context, @Nullable AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public MessageListView(@NonNull Context context, @Nullable AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+
+        mLayoutManager = new LinearLayoutManager(context);
+        mLayoutManager.setItemPrefetchEnabled(true);
+        setLayoutManager(mLayoutManager);
+        setHasFixedSize(true);
+
+        // only the activation state changes when an item is checked, cross-fading the whole view is not necessary
+        ItemAnimator animator = getItemAnimator();
+        if (animator instanceof SimpleItemAnimator) ((SimpleItemAnimator) animator).setSupportsChangeAnimations(false);
+
+        RecycledViewPool pool = getRecycledViewPool();
+        pool.setMaxRecycledViews(MessageAdapter.VIEW_TYPE_NORMAL, MAX_RECYCLED_VIEWS);
+        pool.setMaxRecycledViews(MessageAdapter.VIEW_TYPE_KATEX, MAX_RECYCLED_VIEWS);
+        pool.setMaxRecycledViews(MessageAdapter.VIEW_TYPE_EXTENDED, MAX_RECYCLED_VIEWS);
+
+        TypedArray typedArray = context.obtainStyledAttributes(attrs, R.styleable.MessageListView, defStyle, 0);
+        int dividerHeight = typedArray.getDimensionPixelSize(R.styleable.MessageListView_android_dividerHeight, 0);
+        typedArray.recycle();
+
+        if (dividerHeight > 0) addItemDecoration(new SpacingDecoration(dividerHeight));
+    }
+
+    @Override
+    public void setAdapter(@Nullable Adapter adapter) {
+        Adapter<?> old = getAdapter();
+        if (old != null) old.unregisterAdapterDataObserver(mAutoScrollObserver);
+
+        super.setAdapter(adapter);
+
+        if (adapter != null) adapter.registerAdapterDataObserver(mAutoScrollObserver);
+    }
+
+    /**
+     * When enabled, the list scrolls to messages appended while the last message is visible, similar to
+     * {@link android.widget.AbsListView#TRANSCRIPT_MODE_NORMAL}.
+     */
+    public void setAutoScroll(boolean autoScroll) {
+        mAutoScroll = autoScroll;
+    }
+
+    /**
+     * Scrolls to the given position without animation, showing the item at the top of the list if possible.
+     */
+    public void setSelection(int position) {
+        mLayoutManager.scrollToPositionWithOffset(position, 0);
+    }
+
+    public int getFirstVisiblePosition() {
+        return mLayoutManager.findFirstVisibleItemPosition();
+    }
+
+    public int getLastVisiblePosition() {
+        return mLayoutManager.findLastVisibleItemPosition();
+    }
+
+    /**
+     * Leaves space between items. The space is put above each item but the first, so that appending items does not
+     * change the offsets of the items already shown.
+     */
+    private static class SpacingDecoration extends ItemDecoration {
+        private final int mSpacing;
+
+        SpacingDecoration(int spacing) {
+            mSpacing = spacing;
+        }
+
+        @Override
+        public void getItemOffsets(@NonNull Rect outRect, @NonNull View view, @NonNull RecyclerView parent, @NonNull State state) {
+            int position = parent.getChildAdapterPosition(view);
+            if (position > 0) {
+                outRect.set(0, mSpacing, 0, 0);
+            } else {
+                outRect.setEmpty();
+            }
+        }
+    }
+}
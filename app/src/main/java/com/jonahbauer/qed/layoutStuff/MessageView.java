@@ -14,8 +14,10 @@ import android.os.Looper;
 import android.text.Layout;
 import android.text.Selection;
 import android.text.Spannable;
+import android.text.Spanned;
 import android.text.method.LinkMovementMethod;
 import android.text.style.ClickableSpan;
+import android.text.style.URLSpan;
 import android.text.util.Linkify;
 import android.util.AttributeSet;
 import android.util.TypedValue;
@@ -35,16 +37,18 @@ import android.widget.TextView;
 import androidx.annotation.ColorInt;
 import androidx.annotation.Dimension;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.Px;
 import androidx.annotation.StyleRes;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
 
 import com.jonahbauer.qed.R;
 import com.jonahbauer.qed.chat.Message;
 
 @SuppressWarnings({"unused"})
 public class MessageView extends RelativeLayout {
-    private static final String TRIM = "(^[\\s\\u200B]*|[\\s\\u200B]*$)";
-    private static final String TRIM_END = "[\\s\\u200B]*$";
+    private static final String ELLIPSIS = " \u2026";
     private static float dp = 0;
 
     private TextView mNameTextView;
@@ -68,6 +72,7 @@ public class MessageView extends RelativeLayout {
 
     private String mName;
     private String mMessage;
+    private CharSequence mMessageText;
     private String mDate;
     private String mDateBanner;
     private String mChannel;
@@ -119,7 +124,8 @@ public class MessageView extends RelativeLayout {
     private boolean mColorPressedHighlightSet;
 
     private int mWidth;
-    private long mMessageId = -1;
+
+    private MessageLayoutCache.TextSettings mTextSettings;
 
     public MessageView(Context context) {
         this(context, (Boolean) null);
@@ -271,6 +277,8 @@ public class MessageView extends RelativeLayout {
         mChannelTextView = findViewById(R.id.message_channel);
         mIdTextView = findViewById(R.id.message_id);
 
+        mTextSettings = null;
+
         setupElevation();
 
         setupTime();
@@ -281,12 +289,12 @@ public class MessageView extends RelativeLayout {
     private void applyValues() {
         mNameTextView.setText(mName);
         mDateTextView.setText(mDate);
-        mMessageTextView.setText(mMessage);
+        applyMessageText();
         if (mExtended) {
             mChannelTextView.setText(mChannel);
             mIdTextView.setText(mId);
         }
-        if (mKatex) mMessageMathView.setText(mMessage, mMessageId);
+        if (mKatex) mMessageMathView.setText(mMessage);
 
         if (!mExtended) {
             mDateBannerTextView.setText(mDateBanner);
@@ -372,20 +380,84 @@ public class MessageView extends RelativeLayout {
 
     private void setupTime() {
         if (!mExtended && mMessage != null) {
-            StringBuilder messageText = new StringBuilder(mMessage);
+            mMessage = padForTime(mMessage, mDate, mMessageTextView.getPaint(), mDateTextView.getPaint(), 5 * dp);
+        }
+        mMessageText = mMessage;
+    }
 
-            float dateWidth = mDateTextView.getPaint().measureText(mDate) + 5 * dp;
-            float spaceWidth = mMessageTextView.getPaint().measureText("\u0020");
+    /**
+     * Sets up the message text using the precomputed text from the {@link MessageLayoutCache} if available.
+     */
+    private void setupTime(@NonNull Message message) {
+        PrecomputedTextCompat precomputed = MessageLayoutCache.getInstance().get(message, getTextSettings());
+        if (precomputed != null) {
+            mMessage = precomputed.toString();
+            mMessageText = precomputed;
+        } else {
+            setupTime();
+        }
+    }
 
-            int spaceCount = (int) Math.ceil(dateWidth / spaceWidth);
+    private void applyMessageText() {
+        if (mMessageText instanceof PrecomputedTextCompat) {
+            try {
+                TextViewCompat.setPrecomputedText(mMessageTextView, (PrecomputedTextCompat) mMessageText);
+                applyLinks();
+                return;
+            } catch (IllegalArgumentException e) {
+                // the text appearance changed since the text was precomputed
+                mMessageText = mMessage;
+            }
+        }
+        mMessageTextView.setText(mMessage);
+        applyLinks();
+    }
 
-            for (int i = 0; i < spaceCount; i++)
-                messageText.append('\u0020');
+    /**
+     * @return the settings used to precompute message texts for this view
+     */
+    @NonNull
+    public MessageLayoutCache.TextSettings getTextSettings() {
+        if (mTextSettings == null) {
+            mTextSettings = new MessageLayoutCache.TextSettings(mMessageTextView, mDateTextView, 5 * dp, mExtended, mLinkify);
+        }
+        return mTextSettings;
+    }
 
-            messageText.append('\u200B');
+    /**
+     * Pads the message with spaces such that the time fits into the last line next to the message.
+     */
+    @NonNull
+    static String padForTime(@NonNull String message, @NonNull String time, @NonNull Paint messagePaint, @NonNull Paint timePaint, float timePadding) {
+        float timeWidth = timePaint.measureText(time) + timePadding;
+        float spaceWidth = messagePaint.measureText("\u0020");
+
+        int spaceCount = (int) Math.ceil(timeWidth / spaceWidth);
+
+        StringBuilder messageText = new StringBuilder(message.length() + spaceCount + 1);
+        messageText.append(message);
+        for (int i = 0; i < spaceCount; i++)
+            messageText.append('\u0020');
+
+        // adding a zero-width whitespace makes android not remove trailing spaces
+        messageText.append('\u200B');
 
-            mMessage = messageText.toString();
+        return messageText.toString();
+    }
+
+    /**
+     * Extracts the time {@code HH:mm} from a date of the format {@code yyyy-MM-dd HH:mm:ss}.
+     */
+    @NonNull
+    static String getTime(@NonNull String date) {
+        int space = date.indexOf(' ');
+        int colon = date.indexOf(':', space + 1);
+        int end = colon != -1 ? date.indexOf(':', colon + 1) : -1;
+        if (space == -1 || end == -1) {
+            String[] dates = date.split("(:|\\s)");
+            return dates[1] + ":" + dates[2];
         }
+        return date.substring(space + 1, end);
     }
 
     /**
@@ -425,53 +497,41 @@ public class MessageView extends RelativeLayout {
         }
 
         // remove tailing whitespaces
-        text = text.trim();
-        text = text.replaceAll(TRIM, "");
+        text = trim(text, true);
 
         int lineStart = layout.getLineStart(maxLineCount - 1);
         // if the last line is no longer existing the complete string will fit into the text view
         if (lineStart <= text.length()) {
-            StringBuilder line = new StringBuilder(text.substring(lineStart).replaceAll(TRIM_END, ""));
+            StringBuilder line = new StringBuilder(trim(text.substring(lineStart), false));
 
             Paint paint = textView.getPaint();
 
-            float lineWidth = paint.measureText(line.toString());
-            float ellipsisWidth = paint.measureText(" \u2026");
+            float lineWidth = paint.measureText(line, 0, line.length());
+            float ellipsisWidth = paint.measureText(ELLIPSIS);
 
             if (lineWidth > maxWidth - (out.length() > 0 ? ellipsisWidth : 0)) { // text does not fit in the line
                 // since there will be an ellipsis character the maxWidth needs to be reduced
                 maxWidth -= ellipsisWidth;
                 if (maxWidth < 0f) maxWidth = 0f;
 
-                // remove words until the last line's width is below maxWidth
-                while (lineWidth > maxWidth) {
-                    // (non whitespace) (zero width match) (group of whitespace) (non whitespace) (end of string)
-                    String[] split = line.toString().split("(?<!\\s)(?=\\s+\\S*$)");
-                    if (split.length > 1) {
-                        out.insert(0, split[1]);
-                    } else {
-                        break; // no more spaces in string --> cant delete words
-                    }
-                    line.setLength(split[0].length());
-                    lineWidth = paint.measureText(line.toString());
-                }
+                int length = fitWords(line, paint, maxWidth);
 
                 // remove chars until the last line's width is below maxWidth
-                while (lineWidth > maxWidth) {
-                    int length = line.length();
-                    out.insert(0, line.charAt(length - 1));
-                    line.setLength(length - 1);
-                    lineWidth = paint.measureText(line.toString());
+                if (paint.measureText(line, 0, length) > maxWidth) {
+                    length = paint.breakText(line, 0, length, true, maxWidth, null);
                 }
 
+                out.insert(0, line, length, line.length());
+                line.setLength(length);
+
                 // add ellipsis character
-                line.append(" \u2026");
+                line.append(ELLIPSIS);
             } else if (out.length() > 0) {
-                line.append(" \u2026");
+                line.append(ELLIPSIS);
             }
 
             // fill with spaces to target width
-            lineWidth = paint.measureText(line.toString());
+            lineWidth = paint.measureText(line, 0, line.length());
             float spaceWidth = paint.measureText(" ");
             int spaceCount = (int) ((targetWidth - lineWidth) / spaceWidth - 1);
 
@@ -482,7 +542,7 @@ public class MessageView extends RelativeLayout {
             text = text.substring(0, lineStart) + line;
         } else if (out.length() > 0) {
             // if last line should not be changed, but other lines were removed, just add an ellipsis character
-            text += " \u2026";
+            text += ELLIPSIS;
         }
 
         if (out.length() > 0) {
@@ -513,6 +573,55 @@ public class MessageView extends RelativeLayout {
         return out.toString();
     }
 
+    /**
+     * Finds the longest prefix of the line ending at a word boundary that is not wider than {@code maxWidth} by
+     * binary search over the word boundaries. The width of a prefix grows with its length.
+     *
+     * @return the length of the prefix or the length of the first word if even that does not fit
+     */
+    private static int fitWords(CharSequence line, Paint paint, float maxWidth) {
+        // word boundaries are the starts of whitespace runs following a non whitespace character
+        int[] boundaries = new int[line.length()];
+        int count = 0;
+        for (int i = 1; i < line.length(); i++) {
+            if (Character.isWhitespace(line.charAt(i)) && !Character.isWhitespace(line.charAt(i - 1))) {
+                boundaries[count++] = i;
+            }
+        }
+
+        if (count == 0) return line.length();
+
+        int low = 0;
+        int high = count - 1;
+        int fit = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (paint.measureText(line, 0, boundaries[mid]) <= maxWidth) {
+                fit = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return boundaries[fit != -1 ? fit : 0];
+    }
+
+    /**
+     * Removes whitespaces and zero-width spaces from the end and optionally from the start of the string.
+     */
+    private static String trim(String string, boolean start) {
+        int from = 0;
+        int to = string.length();
+        while (to > 0 && isTrimmed(string.charAt(to - 1))) to--;
+        while (start && from < to && isTrimmed(string.charAt(from))) from++;
+        return string.substring(from, to);
+    }
+
+    private static boolean isTrimmed(char c) {
+        return c <= '\u0020' || c == '\u200B' || Character.isWhitespace(c);
+    }
+
     /**
      * Ellipsizes this views messageTextView in a way such that the date is still visible
      */
@@ -526,7 +635,8 @@ public class MessageView extends RelativeLayout {
         String str = ellipsize(mMessageTextView, maxLineCount, maxWidth, targetWidth);
         if (str.length() > 0) {
             mMessage = mMessageTextView.getText().toString();
-            setLinkify(mLinkify);
+            mMessageText = mMessage;
+            applyLinks();
         }
 
     }
@@ -578,24 +688,21 @@ public class MessageView extends RelativeLayout {
         if (mExtended) {
             mDate = message.date;
         } else {
-            String[] dates = message.date.split("(:|\\s)");
-            mDate = dates[1] + ":" + dates[2];
+            mDate = getTime(message.date);
         }
 
         if (mName != null && !mName.matches("[\\s\\n\\r]*")) {
             mNameTextView.setVisibility(VISIBLE);
-            mNameTextColor = message.transformedColor;
+            mNameTextColor = message.getTransformedColor();
             mNameTextColorSet = true;
 
             mMessageTextColor = 0;
             mMessageTextColorSet = false;
         } else {
             mNameTextView.setVisibility(GONE);
-            mNameTextColor    = mMessageTextColor    = message.transformedColor;
+            mNameTextColor    = mMessageTextColor    = message.getTransformedColor();
             mNameTextColorSet = mMessageTextColorSet = true;
         }
-
-        this.mMessageId = message.id;
     }
 
     /**
@@ -605,7 +712,7 @@ public class MessageView extends RelativeLayout {
      */
     public void setMessage(Message message) {
         setMessageInternal(message);
-        setupTime();
+        setupTime(message);
         applyValues();
     }
 
@@ -615,8 +722,9 @@ public class MessageView extends RelativeLayout {
 
     public void setMessage(String message) {
         mMessage = message;
+        mMessageText = message;
         mMessageTextView.setText(mMessage);
-        if (mKatex) mMessageMathView.setText(mMessage, mMessageId = -1);
+        if (mKatex) mMessageMathView.setText(mMessage);
     }
 
     public String getMessage() {
@@ -724,12 +832,14 @@ public class MessageView extends RelativeLayout {
     }
 
     public void setDateTextSize(@Dimension(unit = Dimension.SP) int size) {
+        mTextSettings = null;
         mDateTextSizeSet = true;
         mDateTextSize = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, size, getResources().getDisplayMetrics());
         mDateTextView.setTextSize(size);
     }
 
     public void setDataTextSize(@Dimension(unit = Dimension.SP) int size) {
+        mTextSettings = null;
         mDataTextSizeSet = true;
         mDataTextSize = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, size, getResources().getDisplayMetrics());
 
@@ -750,6 +860,7 @@ public class MessageView extends RelativeLayout {
     }
 
     public void setMessageTextSize(@Dimension(unit = Dimension.SP) int size) {
+        mTextSettings = null;
         mMessageTextSizeSet = true;
         mMessageTextSize = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, size, getResources().getDisplayMetrics());
         mMessageTextView.setTextSize(size);
@@ -763,12 +874,14 @@ public class MessageView extends RelativeLayout {
     }
 
     public void setDateTextAppearance(@StyleRes int resId) {
+        mTextSettings = null;
         mDateTextAppearanceSet = true;
         mDateTextAppearance = resId;
         mDateTextView.setTextAppearance(resId);
     }
 
     public void setDataTextAppearance(@StyleRes int resId) {
+        mTextSettings = null;
         mDataTextAppearanceSet = true;
         mDataTextAppearance = resId;
 
@@ -788,6 +901,7 @@ public class MessageView extends RelativeLayout {
     }
     
     public void setMessageTextAppearance(@StyleRes int resId) {
+        mTextSettings = null;
         mMessageTextAppearanceSet = true;
         mMessageTextAppearance = resId;
         mMessageTextView.setTextAppearance(resId);
@@ -978,78 +1092,100 @@ public class MessageView extends RelativeLayout {
     /*
      *  Stuff making text click through apart from links
      */
-    @SuppressLint("ClickableViewAccessibility")
     public void setLinkify(boolean linkify) {
+        if (mLinkify == linkify) return;
         mLinkify = linkify;
-        if (linkify) {
-            if (Linkify.addLinks(mMessageTextView, Linkify.WEB_URLS)) {
-                mMessageTextView.setOnTouchListener(linkifiedMessageOnTouchListener);
-            } else {
-                mMessageTextView.setOnTouchListener(null);
-            }
-        } else {
-            mMessageTextView.setOnTouchListener(null);
+        mTextSettings = null;
+
+        // precomputed texts have been linkified according to the previous setting
+        if (mMessageText instanceof PrecomputedTextCompat) {
+            mMessageText = mMessage;
+            mMessageTextView.setText(mMessage);
+        }
+        applyLinks();
+    }
+
+    /**
+     * Adds links to the message text if enabled. Precomputed texts are shared between views and already carry their
+     * links, they are never modified.
+     */
+    @SuppressLint("ClickableViewAccessibility")
+    private void applyLinks() {
+        boolean links = false;
+        if (mMessageText instanceof PrecomputedTextCompat) {
+            Spannable text = (PrecomputedTextCompat) mMessageText;
+            links = mLinkify && text.getSpans(0, text.length(), URLSpan.class).length > 0;
+        } else if (mLinkify) {
+            links = Linkify.addLinks(mMessageTextView, Linkify.WEB_URLS);
         }
 
+        mMessageTextView.setOnTouchListener(links ? mLinkifiedMessageOnTouchListener : null);
         mMessageTextView.setMovementMethod(null);
     }
+
     public boolean isLinkify() {
         return mLinkify;
     }
 
-    private static LinkifiedMessageOnTouchListener linkifiedMessageOnTouchListener = new LinkifiedMessageOnTouchListener();
-    private static class LinkifiedMessageOnTouchListener implements OnTouchListener {
-        private static LinkMovementMethod2 movementMethod = new LinkMovementMethod2();
-
+    private final OnTouchListener mLinkifiedMessageOnTouchListener = new LinkifiedMessageOnTouchListener();
+    private class LinkifiedMessageOnTouchListener implements OnTouchListener {
         @SuppressLint("ClickableViewAccessibility")
         @Override
         public boolean onTouch(View v, MotionEvent event) {
             if (!(v instanceof TextView)) return false;
             TextView textView = (TextView) v;
-            if (!(textView.getText() instanceof Spannable)) return false;
+            if (!(textView.getText() instanceof Spanned)) return false;
+
+            // precomputed texts are shared between views, the touched link is not selected in them
+            Spanned text = (Spanned) textView.getText();
+            Spannable selectable = text instanceof Spannable && !(mMessageText instanceof PrecomputedTextCompat)
+                    ? (Spannable) text : null;
 
-            return movementMethod.onTouchEvent(textView, (Spannable) textView.getText(), event);
+            return onLinkTouch(textView, text, selectable, event);
         }
     }
-    private static class LinkMovementMethod2 extends LinkMovementMethod {
-        @Override
-        public boolean onTouchEvent(TextView widget, Spannable buffer, MotionEvent event) {
-            int action = event.getAction();
 
-            if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_DOWN) {
-                int x = (int) event.getX();
-                int y = (int) event.getY();
+    /**
+     * Like {@link LinkMovementMethod#onTouchEvent(TextView, Spannable, MotionEvent)} but without any other touch
+     * handling, so that touches apart from links go through to the message.
+     * @param selectable the text if the touched link may be selected in it, otherwise null
+     */
+    private static boolean onLinkTouch(TextView widget, Spanned buffer, @Nullable Spannable selectable, MotionEvent event) {
+        int action = event.getAction();
 
-                x -= widget.getTotalPaddingLeft();
-                y -= widget.getTotalPaddingTop();
+        if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_DOWN) {
+            int x = (int) event.getX();
+            int y = (int) event.getY();
 
-                x += widget.getScrollX();
-                y += widget.getScrollY();
+            x -= widget.getTotalPaddingLeft();
+            y -= widget.getTotalPaddingTop();
 
-                Layout layout = widget.getLayout();
-                int line = layout.getLineForVertical(y);
-                int off = layout.getOffsetForHorizontal(line, x);
+            x += widget.getScrollX();
+            y += widget.getScrollY();
 
-                ClickableSpan[] links = buffer.getSpans(off, off, ClickableSpan.class);
+            Layout layout = widget.getLayout();
+            int line = layout.getLineForVertical(y);
+            int off = layout.getOffsetForHorizontal(line, x);
 
-                if (links.length != 0) {
-                    ClickableSpan link = links[0];
-                    if (action == MotionEvent.ACTION_UP) {
-                        link.onClick(widget);
-                    } else {
-                        Selection.setSelection(buffer,
-                                buffer.getSpanStart(link),
-                                buffer.getSpanEnd(link));
-                    }
+            ClickableSpan[] links = buffer.getSpans(off, off, ClickableSpan.class);
 
-                    return true;
-                } else {
-                    Selection.removeSelection(buffer);
+            if (links.length != 0) {
+                ClickableSpan link = links[0];
+                if (action == MotionEvent.ACTION_UP) {
+                    link.onClick(widget);
+                } else if (selectable != null) {
+                    Selection.setSelection(selectable,
+                            buffer.getSpanStart(link),
+                            buffer.getSpanEnd(link));
                 }
-            }
 
-            return false;
+                return true;
+            } else if (selectable != null) {
+                Selection.removeSelection(selectable);
+            }
         }
+
+        return false;
     }
 }
 
@@ -10,16 +10,15 @@ import com.jonahbauer.qed.Application;
 import com.jonahbauer.qed.networking.login.InvalidCredentialsException;
 import com.jonahbauer.qed.networking.login.QEDLogin;
 
-import org.jetbrains.annotations.NotNull;
-
 import java.io.IOException;
 import java.lang.ref.SoftReference;
-import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.function.Function;
 
-import javax.net.ssl.HttpsURLConnection;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
 
 /**
  * Asynchronously loads a web page from the qed servers.
@@ -71,43 +70,37 @@ public class AsyncLoadQEDPage<T> extends AsyncTask<Void, Void, String> {
         try {
             QEDLogin.ensureDataAvailable(mFeature);
 
-            HttpsURLConnection httpsURLConnection = createConnection();
-            httpsURLConnection.connect();
+            Response response = QEDHttpClient.get().newCall(createRequest()).execute();
 
             String out = null;
-            String location = httpsURLConnection.getHeaderField("Location");
+            String location = response.header("Location");
             boolean loginError = false;
             if (mFeature == Feature.CHAT || mFeature == Feature.GALLERY) loginError = location != null && location.startsWith("account");
             else if (mFeature == Feature.DATABASE) {
-                out = NetworkUtils.readPage(httpsURLConnection);
+                out = NetworkUtils.readPage(response);
                 loginError = out.contains("nicht eingeloggt");
             }
             if (loginError) {
-                httpsURLConnection.disconnect();
+                response.close();
 
                 QEDLogin.login(mFeature);
 
-                httpsURLConnection = createConnection();
-                httpsURLConnection.connect();
+                response = QEDHttpClient.get().newCall(createRequest()).execute();
 
-                location = httpsURLConnection.getHeaderField("Location");
+                location = response.header("Location");
                 loginError = false;
                 if (mFeature == Feature.CHAT || mFeature == Feature.GALLERY) loginError = location != null && location.startsWith("account");
                 else if (mFeature == Feature.DATABASE) {
-                    out = NetworkUtils.readPage(httpsURLConnection);
+                    out = NetworkUtils.readPage(response);
                     loginError = out.contains("nicht eingeloggt");
                 }
-                if (loginError)
+                if (loginError) {
+                    response.close();
                     throw new InvalidCredentialsException(null);
-
-                if (mFeature != Feature.DATABASE) out = NetworkUtils.readPage(httpsURLConnection);
-                httpsURLConnection.disconnect();
-
-                return out;
+                }
             }
 
-            if (mFeature != Feature.DATABASE) out = NetworkUtils.readPage(httpsURLConnection);
-            httpsURLConnection.disconnect();
+            if (mFeature != Feature.DATABASE) out = NetworkUtils.readPage(response);
 
             return out;
         } catch (IOException | NoNetworkException e) {
@@ -127,16 +120,12 @@ public class AsyncLoadQEDPage<T> extends AsyncTask<Void, Void, String> {
             mReceiver.onPageReceived(mTag, mPostExecute.apply(s));
     }
 
-    @NotNull
-    private HttpsURLConnection createConnection() throws IOException {
-        HttpsURLConnection httpsURLConnection = (HttpsURLConnection) (new URL(QEDLogin.formatString(mFeature, mUrl)).openConnection());
-        httpsURLConnection.setRequestMethod("POST");
-        httpsURLConnection.setInstanceFollowRedirects(false);
-        httpsURLConnection.setUseCaches(false);
-
-        String cookie = QEDLogin.loadCookies(mFeature, mCookies);
-        httpsURLConnection.setRequestProperty("Cookie", cookie);
-
-        return httpsURLConnection;
+    @NonNull
+    private Request createRequest() {
+        return new Request.Builder()
+                .url(QEDLogin.formatString(mFeature, mUrl))
+                .post(RequestBody.create(new byte[0], null))
+                .header("Cookie", QEDLogin.loadCookies(mFeature, mCookies))
+                .build();
     }
 }
@@ -12,13 +12,16 @@ import com.jonahbauer.qed.networking.login.QEDLogin;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.net.ssl.HttpsURLConnection;
+import okhttp3.Call;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
 
 public class AsyncLoadQEDPageToStream extends AsyncTask<Void, Long, Boolean> {
+    private volatile Call mCall;
     private InputStream mIn;
 
     private final Feature mFeature;
@@ -58,40 +61,48 @@ public class AsyncLoadQEDPageToStream extends AsyncTask<Void, Long, Boolean> {
         try {
             QEDLogin.ensureDataAvailable(mFeature);
 
-            HttpsURLConnection httpsURLConnection = createConnection();
             if (isCancelled()) return false;
-            httpsURLConnection.connect();
+            Response response = execute();
 
-            String location = httpsURLConnection.getHeaderField("Location");
+            String location = response.header("Location");
             boolean loginError = location != null && location.startsWith("account");
             if (loginError) {
-                httpsURLConnection.disconnect();
+                response.close();
 
                 QEDLogin.login(mFeature);
-                httpsURLConnection = createConnection();
                 if (isCancelled()) return false;
-                httpsURLConnection.connect();
+                response = execute();
 
-                location = httpsURLConnection.getHeaderField("Location");
+                location = response.header("Location");
                 loginError = location != null && location.startsWith("account");
-                if (loginError)
+                if (loginError) {
+                    response.close();
                     throw new InvalidCredentialsException(null);
+                }
             }
 
-            mIn = httpsURLConnection.getInputStream();
+            ResponseBody body = response.body();
+            if (body == null) {
+                response.close();
+                throw new IOException("Response has no body.");
+            }
+
+            mIn = body.byteStream();
             try {
-                copyStream(mIn, mOutputStream, httpsURLConnection.getContentLength());
+                copyStream(mIn, mOutputStream, body.contentLength());
             } catch (IOException e) {
-                mReceiver.onError(mTag, null, e);
+                if (!isCancelled()) mReceiver.onError(mTag, null, e);
                 return false;
+            } finally {
+                response.close();
             }
-            mIn.close();
             mOutputStream.close();
 
-            httpsURLConnection.disconnect();
-
             return true;
         } catch (IOException | NoNetworkException e) {
+            // aborted transfers fail with an exception as well
+            if (isCancelled()) return false;
+
             Log.e(Application.LOG_TAG_ERROR, e.getMessage(), e);
             mReceiver.onError(mTag, QEDPageReceiver.REASON_NETWORK, e);
             return false;
@@ -113,16 +124,27 @@ public class AsyncLoadQEDPageToStream extends AsyncTask<Void, Long, Boolean> {
         mReceiver.onProgressUpdate(mTag, values[0], values[1]);
     }
 
+    /**
+     * Cancels this task and aborts a running transfer immediately. Unlike {@link #cancel(boolean)} this does not
+     * wait for the next chunk of the response to arrive, no error is reported to the receiver.
+     */
+    public void abort() {
+        cancel(false);
+
+        Call call = mCall;
+        if (call != null) call.cancel();
+    }
+
     @NonNull
-    private HttpsURLConnection createConnection() throws IOException {
-        HttpsURLConnection httpsURLConnection = (HttpsURLConnection) (new URL(QEDLogin.formatString(mFeature, mUrl)).openConnection());
-        httpsURLConnection.setRequestMethod("GET");
-        httpsURLConnection.setDoInput(true);
-        httpsURLConnection.setInstanceFollowRedirects(false);
-        httpsURLConnection.setUseCaches(false);
-        httpsURLConnection.setRequestProperty("Cookie", QEDLogin.loadCookies(mFeature, mCookies));
-
-        return httpsURLConnection;
+    private Response execute() throws IOException {
+        Request request = new Request.Builder()
+                .url(QEDLogin.formatString(mFeature, mUrl))
+                .get()
+                .header("Cookie", QEDLogin.loadCookies(mFeature, mCookies))
+                .build();
+
+        mCall = QEDHttpClient.get().newCall(request);
+        return mCall.execute();
     }
 
     private void copyStream(@NonNull InputStream in, @NonNull OutputStream out, long contentLength) throws IOException {
@@ -143,6 +165,9 @@ public class AsyncLoadQEDPageToStream extends AsyncTask<Void, Long, Boolean> {
 
     @Override
     protected void onCancelled() {
+        Call call = mCall;
+        if (call != null) call.cancel();
+
         try {
             if (mOutputStream != null)
                 mOutputStream.close();
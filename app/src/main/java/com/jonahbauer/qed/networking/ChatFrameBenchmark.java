@@ -0,0 +1,188 @@
+package com.jonahbauer.qed.networking;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.jonahbauer.qed.Application;
+import com.jonahbauer.qed.chat.Message;
+import com.jonahbauer.qed.chat.MessageParser;
+import com.jonahbauer.qed.database.ChatInsertBenchmark;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares the decoding of chat web socket frames via {@link MessageParser} with the {@link JSONObject} based decoding
+ * it replaced. The frames are built from the newest messages of the chat database, so that the receive path of
+ * {@link ChatWebSocket} does not have to record any traffic, and are then decoded repeatedly by both decoders. Like
+ * with JMH there are warmup iterations whose timings are discarded, followed by measured iterations. Only meant for
+ * debug builds.
+ */
+public final class ChatFrameBenchmark {
+    private static final int MAX_FRAMES = 1000;
+    private static final int WARMUP_ITERATIONS = 10;
+    private static final int MEASUREMENT_ITERATIONS = 20;
+
+    /**
+     * Consumes decoding results, so that decoding cannot be optimized away
+     */
+    private static volatile int sSink;
+
+    private ChatFrameBenchmark() {}
+
+    /**
+     * Runs the benchmark on frames of the newest {@value #MAX_FRAMES} messages of the chat database. Takes a few
+     * seconds.
+     * @return a summary of the results or null if the chat database is empty
+     */
+    @Nullable
+    @WorkerThread
+    public static String run(@NonNull Context context) {
+        List<Message> messages = ChatInsertBenchmark.loadMessages(context);
+        List<String> frames = new ArrayList<>(MAX_FRAMES);
+        for (Message message : messages.subList(0, Math.min(MAX_FRAMES, messages.size()))) {
+            try {
+                frames.add(encodeJson(message));
+            } catch (JSONException e) {
+                Log.e(Application.LOG_TAG_ERROR, e.getMessage(), e);
+            }
+        }
+        if (frames.isEmpty()) return null;
+
+        MessageParser parser = new MessageParser();
+        Result streaming = measure(frames, frame -> {
+            Message message = parser.parse(frame);
+            String type = parser.getType();
+            return message != null ? message : type;
+        });
+        Result json = measure(frames, ChatFrameBenchmark::decodeJson);
+
+        return String.format(Locale.ROOT, "%d frames\nMessageParser: %s\nJSONObject: %s", frames.size(), streaming, json);
+    }
+
+    @NonNull
+    private static Result measure(@NonNull List<String> frames, @NonNull Decoder decoder) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            decodeAll(frames, decoder);
+        }
+
+        long[] times = new long[MEASUREMENT_ITERATIONS];
+        long gcCount = getGcCount();
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            decodeAll(frames, decoder);
+            times[i] = SystemClock.elapsedRealtimeNanos() - start;
+        }
+        gcCount = getGcCount() - gcCount;
+
+        Arrays.sort(times);
+        return new Result(
+                times[0] / frames.size(),
+                times[MEASUREMENT_ITERATIONS / 2] / frames.size(),
+                gcCount
+        );
+    }
+
+    private static void decodeAll(@NonNull List<String> frames, @NonNull Decoder decoder) {
+        int sink = 0;
+        for (String frame : frames) {
+            Object result = decoder.decode(frame);
+            if (result != null) sink += result.hashCode();
+        }
+        sSink = sink;
+    }
+
+    /**
+     * @return a post frame as sent by the chat server for the given message
+     */
+    @NonNull
+    private static String encodeJson(@NonNull Message message) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("type", "post");
+        json.put("id", message.id);
+        json.put("name", message.name);
+        json.put("message", message.message);
+        json.put("username", message.userName != null ? message.userName : JSONObject.NULL);
+        json.put("color", message.color);
+        json.put("date", message.date);
+        json.put("channel", message.channel);
+        json.put("user_id", message.userId);
+        json.put("bottag", message.bottag);
+        return json.toString();
+    }
+
+    /**
+     * Decodes a frame like {@link ChatWebSocket} did before it used {@link MessageParser}
+     * @return the message for post frames, the type for all other frames
+     */
+    @Nullable
+    private static Object decodeJson(@NonNull String frame) {
+        try {
+            JSONObject json = new JSONObject(frame);
+            String type = json.getString("type");
+            if (!"post".equals(type)) return type;
+
+            int id = json.getInt("id");
+            String name = json.getString("name");
+            String messageStr = json.getString("message");
+            String username = json.getString("username");
+            String color = json.getString("color");
+            String date = json.getString("date");
+            String channel = json.getString("channel");
+            int userid = json.optInt("user_id", -1);
+            int bot = json.getInt("bottag");
+            name = name.trim();
+            if ("null".equals(username)) username = null;
+
+            return new Message(name, messageStr, date, userid, username, color, id, bot, channel);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of garbage collections so far or -1 if it is not available
+     */
+    private static long getGcCount() {
+        try {
+            String count = Debug.getRuntimeStat("art.gc.gc-count");
+            return count != null ? Long.parseLong(count) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private interface Decoder {
+        @Nullable
+        Object decode(@NonNull String frame);
+    }
+
+    private static class Result {
+        private final long mMinNanos;
+        private final long mMedianNanos;
+        private final long mGcCount;
+
+        private Result(long minNanos, long medianNanos, long gcCount) {
+            mMinNanos = minNanos;
+            mMedianNanos = medianNanos;
+            mGcCount = gcCount;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%d ns/frame (min %d ns/frame), %d GCs", mMedianNanos, mMinNanos, mGcCount);
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.jonahbauer.qed.networking;
 
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -11,6 +13,7 @@ import com.jonahbauer.qed.BuildConfig;
 import com.jonahbauer.qed.Pref;
 import com.jonahbauer.qed.R;
 import com.jonahbauer.qed.chat.Message;
+import com.jonahbauer.qed.chat.MessageParser;
 import com.jonahbauer.qed.networking.login.InvalidCredentialsException;
 import com.jonahbauer.qed.networking.login.QEDLogin;
 
@@ -20,6 +23,7 @@ import org.json.JSONObject;
 import java.lang.ref.SoftReference;
 import java.net.UnknownHostException;
 import java.util.HashMap;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLException;
@@ -31,14 +35,26 @@ import okhttp3.WebSocket;
 import okhttp3.WebSocketListener;
 
 public class ChatWebSocket extends WebSocketListener {
+    private static final long INITIAL_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60 * 1000;
+    private static final int MAX_RECONNECT_ATTEMPTS = 10;
+
     private final Application mApplication;
     private final SharedPreferences mSharedPreferences;
     private final ChatWebSocketListener mListener;
 
-    private WebSocket mWebSocket;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom = new Random();
+    private final MessageParser mParser = new MessageParser();
+    private final Runnable mReconnect = () -> new Thread(this::connect).start();
+
+    private volatile WebSocket mWebSocket;
 
-    private int mPosition = -100;
-    private boolean mSending;
+    private volatile int mPosition = -100;
+    private volatile boolean mSending;
+
+    private boolean mClosed;
+    private int mReconnectAttempts;
 
     public ChatWebSocket(@NonNull ChatWebSocketListener listener) {
         this.mListener = listener;
@@ -60,13 +76,52 @@ public class ChatWebSocket extends WebSocketListener {
         mSending = true;
     }
 
-    public void openSocket() {
+    /**
+     * Connects to the chat and requests the most recent posts of the channel
+     */
+    public synchronized void openSocket() {
         mPosition = -100;
+        resumeSocket();
+    }
+
+    /**
+     * Connects to the chat and only requests posts newer than the last post received. Before the first post has been
+     * received this is the same as {@link #openSocket()}.
+     */
+    public synchronized void resumeSocket() {
+        mClosed = false;
+        mReconnectAttempts = 0;
+        mHandler.removeCallbacks(mReconnect);
+        connect();
+    }
+
+    /**
+     * Connects to the chat and only requests posts newer than the given post.
+     * @param lastId the id of the last post already known
+     */
+    public synchronized void resumeSocket(long lastId) {
+        mPosition = (int) lastId + 1;
+        resumeSocket();
+    }
+
+    public synchronized void closeSocket() {
+        mClosed = true;
+        mHandler.removeCallbacks(mReconnect);
+        if (mWebSocket != null) {
+            mWebSocket.close(1001, "");
+            mWebSocket = null;
+        }
+    }
 
-        if (mWebSocket != null)
+    private synchronized void connect() {
+        if (mClosed) return;
+
+        if (mWebSocket != null) {
             mWebSocket.close(1001,null);
+            mWebSocket = null;
+        }
 
-        OkHttpClient client = new OkHttpClient.Builder()
+        OkHttpClient client = QEDHttpClient.get().newBuilder()
                 .pingInterval(30, TimeUnit.SECONDS)
                 .connectTimeout(5, TimeUnit.SECONDS).build();
 
@@ -92,15 +147,36 @@ public class ChatWebSocket extends WebSocketListener {
             if (mListener != null) mListener.onError(ChatWebSocketListener.REASON_INVALID_CREDENTIALS, e);
         } catch (NoNetworkException e) {
             Log.e(Application.LOG_TAG_ERROR, e.getMessage(), e);
-            if (mListener != null) mListener.onError(ChatWebSocketListener.REASON_NETWORK, e);
+            scheduleReconnect(ChatWebSocketListener.REASON_NETWORK, e);
         }
     }
 
-    public void closeSocket() {
-        if (mWebSocket != null) mWebSocket.close(1001, "");
+    /**
+     * Schedules a reconnect after a randomized, exponentially growing delay. After {@link #MAX_RECONNECT_ATTEMPTS}
+     * failed attempts the error is passed on to the listener.
+     */
+    private synchronized void scheduleReconnect(String reason, Throwable cause) {
+        if (mClosed) return;
+
+        if (mReconnectAttempts >= MAX_RECONNECT_ATTEMPTS) {
+            mClosed = true;
+            if (mListener != null) mListener.onError(reason, cause);
+            return;
+        }
+
+        long backoff = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << mReconnectAttempts);
+        long delay = backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+        mReconnectAttempts++;
+
+        if (BuildConfig.DEBUG) Log.d(Application.LOG_TAG_DEBUG, "Chat WebSocket: reconnecting in " + delay + "ms from position " + mPosition);
+        if (mListener != null) mListener.onReconnecting(delay);
+        mHandler.postDelayed(mReconnect, delay);
     }
 
     public boolean send(@NonNull String message) {
+        WebSocket webSocket = mWebSocket;
+        if (webSocket == null) return false;
+
         if (!mSending) try {
             mSending = true;
 
@@ -110,7 +186,7 @@ public class ChatWebSocket extends WebSocketListener {
             json.put("message", message);
             json.put("delay", Long.toString(mPosition));
             json.put("publicid", mSharedPreferences.getBoolean(Pref.Chat.PUBLIC_ID, false) ? 1 : 0);
-            return mWebSocket.send(json.toString());
+            return webSocket.send(json.toString());
         } catch (JSONException e) {
             mSending = false;
             Log.e(Application.LOG_TAG_ERROR, "Chat WebSocket: Unable to create JSON message!", e);
@@ -124,40 +200,37 @@ public class ChatWebSocket extends WebSocketListener {
 
     @Override
     public void onMessage(@NonNull WebSocket webSocket, @NonNull String text) {
-        if (BuildConfig.DEBUG) Log.d(Application.LOG_TAG_DEBUG, text);
-        try {
-            JSONObject json = new JSONObject(text);
-            switch (json.getString("type")) {
-                case "ping":
-                    webSocket.send("{\"type\":\"pong\"}");
-                    break;
-                case "pong":
-                    if (mListener != null) mListener.onMessage(Message.PONG);
-                case "ack":
-                    mSending = false;
-                    break;
-                case "post":
-                    int id = json.getInt("id");
-                    if (id < mPosition) break;
-                    mPosition = id + 1;
-                    String name = json.getString("name");
-                    String messageStr = json.getString("message");
-                    String username = json.getString("username");
-                    String color = json.getString("color");
-                    String date = json.getString("date");
-                    String channel = json.getString("channel");
-                    int userid = json.optInt("user_id", -1);
-                    int bot = json.getInt("bottag");
-                    name = name.trim();
-                    if ("null".equals(username)) username = null;
-
-                    Message message = new Message(name, messageStr, date, userid, username, color, id, bot, channel);
-
-                    if (mListener != null) mListener.onMessage(message);
+        if (webSocket != mWebSocket) return;
+
+        Message message;
+        String type;
+        synchronized (mParser) {
+            message = mParser.parse(text);
+            type = mParser.getType();
+        }
+        if (type == null) return;
+
+        switch (type) {
+            case MessageParser.TYPE_PING:
+                webSocket.send("{\"type\":\"pong\"}");
+                break;
+            case MessageParser.TYPE_PONG:
+                mReconnectAttempts = 0;
+                if (mListener != null) mListener.onMessage(Message.PONG);
+            case MessageParser.TYPE_ACK:
+                mSending = false;
+                break;
+            case MessageParser.TYPE_POST:
+                if (message == null) {
+                    Log.e(Application.LOG_TAG_ERROR, "Chat WebSocket: Unable to parse message!");
                     break;
-            }
-        } catch (JSONException e) {
-            Log.e(Application.LOG_TAG_ERROR, "Chat WebSocket: Unable to parse message!", e);
+                }
+
+                if (message.id < mPosition) break;
+                mPosition = (int) message.id + 1;
+
+                if (mListener != null) mListener.onMessage(message);
+                break;
         }
     }
 
@@ -168,31 +241,37 @@ public class ChatWebSocket extends WebSocketListener {
 
     @Override
     public void onClosed(@NonNull WebSocket webSocket, int code, @NonNull String reason) {
+        if (webSocket != mWebSocket) return;
+
         if (code == 4000 && reason.contains("Ungültige Anmeldedaten")) {
             try {
                 QEDLogin.login(Feature.CHAT);
-                openSocket();
+                connect();
             } catch (InvalidCredentialsException e) {
                 Log.e(Application.LOG_TAG_ERROR, e.getMessage(), e);
                 if (mListener != null) mListener.onError(ChatWebSocketListener.REASON_INVALID_CREDENTIALS, e);
             } catch (NoNetworkException e) {
                 Log.e(Application.LOG_TAG_ERROR, e.getMessage(), e);
-                if (mListener != null) mListener.onError(ChatWebSocketListener.REASON_NETWORK, e);
+                scheduleReconnect(ChatWebSocketListener.REASON_NETWORK, e);
             }
+        } else {
+            scheduleReconnect(null, null);
         }
     }
 
     @Override
     public void onFailure(@NonNull WebSocket webSocket, @NonNull Throwable t, Response response) {
+        if (webSocket != mWebSocket) return;
+
         try {
             mSending = false;
             throw (Exception) t;
         } catch (UnknownHostException | SSLException e) {
             Log.e(Application.LOG_TAG_DEBUG, "Chat WebSocket " + webSocket.toString() + " no network!", e);
-            if (mListener != null) mListener.onError(ChatWebSocketListener.REASON_NETWORK, t);
+            scheduleReconnect(ChatWebSocketListener.REASON_NETWORK, t);
         } catch (Exception e) {
             Log.e(Application.LOG_TAG_DEBUG, "Chat WebSocket failed! " + e.getClass().toString(), e);
-            if (mListener != null) mListener.onError(null, t);
+            scheduleReconnect(null, t);
         }
     }
 }
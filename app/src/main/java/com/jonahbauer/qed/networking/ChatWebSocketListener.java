@@ -13,6 +13,12 @@ public interface ChatWebSocketListener {
 
     void onMessage(@NonNull Message message);
 
+    /**
+     * Called when the connection has been lost and will be reestablished after the given delay. Once reconnected,
+     * the chat resumes after the last received post and {@link Message#PONG} is received again.
+     */
+    default void onReconnecting(long delay) {}
+
     default void onError(String reason, Throwable cause) {
         Log.e(Application.LOG_TAG_ERROR, reason != null ? reason : "", cause);
     }
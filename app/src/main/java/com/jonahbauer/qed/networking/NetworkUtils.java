@@ -5,12 +5,14 @@ import androidx.annotation.NonNull;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
-import java.net.HttpURLConnection;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
 
 public class NetworkUtils {
     private static final int DEFAULT_BUFFER_SIZE = 8192;
@@ -90,12 +92,12 @@ public class NetworkUtils {
     }
 
     /**
-     * Reads the {@code InputStream} of the given connection to a string.
+     * Reads the body of the given response to a string.
      */
     @NonNull
-    public static String readPage(@NonNull HttpURLConnection connection) throws IOException {
-        try (InputStream in = connection.getInputStream()) {
-            return new String(readAllBytes(in), StandardCharsets.UTF_8);
+    public static String readPage(@NonNull Response response) throws IOException {
+        try (ResponseBody body = response.body()) {
+            return body != null ? new String(body.bytes(), StandardCharsets.UTF_8) : "";
         }
     }
 
@@ -6,6 +6,8 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
 import androidx.annotation.IntDef;
@@ -14,28 +16,26 @@ import androidx.annotation.Nullable;
 
 import com.jonahbauer.qed.Application;
 import com.jonahbauer.qed.R;
+import com.jonahbauer.qed.chat.ChatLogIndex;
+import com.jonahbauer.qed.chat.ChatLogReader;
+import com.jonahbauer.qed.chat.MappedChatLog;
 import com.jonahbauer.qed.chat.Message;
 import com.jonahbauer.qed.chat.MessageAdapter;
+import com.jonahbauer.qed.chat.MessageParser;
 import com.jonahbauer.qed.networking.downloadManager.Download;
 import com.jonahbauer.qed.networking.downloadManager.DownloadListener;
 
-import java.io.BufferedReader;
-import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Semaphore;
 
 public abstract class QEDChatPages {
     private static final Map<String, ParseThread> threads = new HashMap<>();
@@ -151,6 +151,10 @@ public abstract class QEDChatPages {
     private static class ParseThread extends Thread {
         private static final Handler handler = new Handler(Looper.getMainLooper());
 
+        private static final int BATCH_SIZE = 2000;
+        private static final int MAX_PENDING_BATCHES = 2;
+        private static final int PROGRESS_INTERVAL = 947; // make it look random
+
         private final String mTag;
         private final long mId;
         private final MessageAdapter mOut;
@@ -158,11 +162,19 @@ public abstract class QEDChatPages {
         private final Application mContext;
         private final QEDPageStreamReceiver mChatLogReceiver;
         private final DownloadListener mDownloadListener;
+        private final boolean mReuseIndex;
+
+        private final Semaphore mPendingBatches = new Semaphore(MAX_PENDING_BATCHES);
+        private boolean mFirstBatch = true;
 
-        private boolean mCanceled;
+        private volatile boolean mCanceled;
 
 
-        private ParseThread(String tag, long id, @NonNull MessageAdapter out, Uri sourceFileUri, Application context, QEDPageStreamReceiver chatLogReceiver, DownloadListener downloadListener) {
+        /**
+         * @param reuseIndex whether an index written for an earlier version of the source file may be used. Must be
+         *                   false if the file has just been downloaded.
+         */
+        private ParseThread(String tag, long id, @NonNull MessageAdapter out, Uri sourceFileUri, Application context, QEDPageStreamReceiver chatLogReceiver, DownloadListener downloadListener, boolean reuseIndex) {
             this.mTag = tag;
             this.mId = id;
             this.mOut = out;
@@ -170,36 +182,18 @@ public abstract class QEDChatPages {
             this.mContext = context;
             this.mChatLogReceiver = chatLogReceiver;
             this.mDownloadListener = downloadListener;
+            this.mReuseIndex = reuseIndex;
         }
 
         @Override
         public void run() {
-            List<Closeable> closeables = new LinkedList<>();
-
-            // get reader from uri or tmp file
-            Reader inReader;
-            Reader inReader2;
-            long size = -1;
+            ParcelFileDescriptor parcelFileDescriptor;
+            long size;
+            long modified;
             try {
-                // Two streams required: one for getting line count, one for reading data
-                InputStream inputStream = mContext.getContentResolver().openInputStream(mSourceFileUri);
-                InputStream inputStream2 = mContext.getContentResolver().openInputStream(mSourceFileUri);
-                closeables.add(inputStream);
-                closeables.add(inputStream2);
-
-                ParcelFileDescriptor parcelFileDescriptor = mContext.getContentResolver().openFileDescriptor(mSourceFileUri, "r");
-                if (parcelFileDescriptor != null) {
-                    size = parcelFileDescriptor.getStatSize();
-                    parcelFileDescriptor.close();
-                }
-
-                if (inputStream == null || inputStream2 == null)
-                    throw new FileNotFoundException("InputStream is null");
-
-                inReader = new InputStreamReader(inputStream);
-                inReader2 = new InputStreamReader(inputStream2);
-                closeables.add(inReader);
-                closeables.add(inReader2);
+                parcelFileDescriptor = openSourceFile();
+                size = parcelFileDescriptor.getStatSize();
+                modified = getModificationTime(parcelFileDescriptor);
             } catch (IOException e) {
                 Log.e(Application.LOG_TAG_ERROR, e.getMessage(), e);
                 mDownloadListener.onError(mId, null, e);
@@ -209,56 +203,166 @@ public abstract class QEDChatPages {
             if (size != -1)
                 mDownloadListener.onProgressUpdate(mId, DownloadManager.STATUS_SUCCESSFUL, (int) size);
 
+            // a log that has been parsed before can be paged from the mapped file right away
+            File indexFile = ChatLogIndex.getIndexFile(mContext, mSourceFileUri);
+            if (!mReuseIndex) ChatLogIndex.delete(mContext, mSourceFileUri);
 
-            LinkedList<Message> tmpMessageList = new LinkedList<>();
-            try (BufferedReader reader = new BufferedReader(inReader); BufferedReader reader2 = new BufferedReader(inReader2)) {
-                // get BufferedReader and lineCount
-                final long lineCount = reader.lines().count() - 2;
-                mDownloadListener.onProgressUpdate(mId, 0, (int) lineCount);
-                reader.close();
+            ChatLogIndex index = ChatLogIndex.open(indexFile, size, modified);
+            if (index != null) {
+                MappedChatLog log = MappedChatLog.open(index, parcelFileDescriptor);
+                if (log != null) {
+                    deliverMapped(log);
+                    return;
+                }
+            }
 
+            ChatLogIndex.Writer indexWriter = null;
+            if (size != -1) try {
+                indexWriter = new ChatLogIndex.Writer(indexFile, size, modified);
+            } catch (IOException e) {
+                Log.w(Application.LOG_TAG_ERROR, "Unable to create chat log index.", e);
+            }
 
-                AtomicInteger index = new AtomicInteger(0);
-                Iterator<String> lines = reader2.lines().sequential().iterator();
+            try (ChatLogReader in = new ChatLogReader(new ParcelFileDescriptor.AutoCloseInputStream(parcelFileDescriptor))) {
+                mDownloadListener.onProgressUpdate(mId, 0, (int) size);
 
-                while (lines.hasNext()) {
-                    if (mCanceled) return;
+                MessageParser parser = new MessageParser();
+                List<Message> batch = new ArrayList<>(BATCH_SIZE);
 
-                    String string = lines.next();
-                    Message msg = Message.interpretJSONMessage(string);
+                int lines = 0;
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (mCanceled) return;
 
+                    Message msg = parser.parse(line);
                     if (msg != null) {
-                        tmpMessageList.add(msg);
+                        batch.add(msg);
+
+                        if (indexWriter != null) try {
+                            indexWriter.add(in, msg);
+                        } catch (IOException e) {
+                            Log.w(Application.LOG_TAG_ERROR, "Unable to write chat log index.", e);
+                            indexWriter.close();
+                            indexWriter = null;
+                        }
+
+                        if (batch.size() == BATCH_SIZE) {
+                            if (!deliver(batch)) return;
+                            batch = new ArrayList<>(BATCH_SIZE);
+                        }
                     }
 
-                    final int j = index.getAndIncrement();
-                    if (j % 947 == 0) { // make it look random
+                    if (++lines % PROGRESS_INTERVAL == 0) {
                         if (Thread.currentThread().isInterrupted()) {
                             return;
                         }
 
-                        mDownloadListener.onProgressUpdate(mId, -j, (int) lineCount);
+                        mDownloadListener.onProgressUpdate(mId, - (int) in.getBytesRead(), (int) size);
                     }
                 }
 
-                handler.post(() -> mOut.addAll(tmpMessageList));
+                if (!batch.isEmpty() && !deliver(batch)) return;
 
+                // replace the parsed messages with the mapped log so they don't have to be kept in memory
+                MappedChatLog log = null;
+                if (indexWriter != null) {
+                    indexWriter.commit();
+                    indexWriter = null;
 
-                if (mChatLogReceiver != null)
-                    handler.post(() -> mChatLogReceiver.onPageReceived(mTag));
+                    index = ChatLogIndex.open(indexFile, size, modified);
+                    if (index != null) {
+                        ParcelFileDescriptor descriptor = openSourceFile();
+                        log = MappedChatLog.open(index, descriptor);
+                        // the log only takes ownership of the descriptor if it could be mapped
+                        if (log == null) descriptor.close();
+                    }
+                }
+
+                if (log != null) {
+                    deliverMapped(log);
+                } else if (mChatLogReceiver != null) {
+                    handler.post(() -> {
+                        if (!mCanceled) mChatLogReceiver.onPageReceived(mTag);
+                    });
+                }
             } catch (IOException e) {
                 Log.e(Application.LOG_TAG_ERROR, e.getMessage(), e);
                 mDownloadListener.onError(mId, null, e);
             } finally {
-                // close all closeables
-                for (Closeable closeable : closeables) {
-                    if (closeable != null) try { closeable.close(); } catch (IOException ignored) {}
+                if (indexWriter != null) indexWriter.close();
+            }
+        }
+
+        @NonNull
+        private ParcelFileDescriptor openSourceFile() throws IOException {
+            ParcelFileDescriptor parcelFileDescriptor = mContext.getContentResolver().openFileDescriptor(mSourceFileUri, "r");
+            if (parcelFileDescriptor == null)
+                throw new FileNotFoundException("ParcelFileDescriptor is null");
+            return parcelFileDescriptor;
+        }
+
+        /**
+         * @return the modification time of the given file in seconds or -1 if it is unknown
+         */
+        private static long getModificationTime(@NonNull ParcelFileDescriptor parcelFileDescriptor) {
+            try {
+                return Os.fstat(parcelFileDescriptor.getFileDescriptor()).st_mtime;
+            } catch (ErrnoException e) {
+                Log.w(Application.LOG_TAG_ERROR, "Unable to stat chat log.", e);
+                return -1;
+            }
+        }
+
+        /**
+         * Hands a mapped log to the message adapter on the main thread, replacing its current content
+         */
+        private void deliverMapped(MappedChatLog log) {
+            handler.post(() -> {
+                if (mCanceled) {
+                    log.clear();
+                    return;
                 }
+
+                mOut.setData(log);
+                if (mChatLogReceiver != null) mChatLogReceiver.onPageReceived(mTag);
+            });
+        }
+
+        /**
+         * Hands a batch of parsed messages to the message adapter on the main thread.
+         *
+         * At most {@link #MAX_PENDING_BATCHES} batches are waiting for the main thread at any time, if the main
+         * thread falls behind this method blocks until one of the pending batches has been added to the adapter.
+         *
+         * @return false if the thread has been interrupted while waiting
+         */
+        private boolean deliver(List<Message> batch) {
+            try {
+                mPendingBatches.acquire();
+            } catch (InterruptedException e) {
+                return false;
             }
+
+            boolean first = mFirstBatch;
+            mFirstBatch = false;
+
+            handler.post(() -> {
+                try {
+                    if (mCanceled) return;
+
+                    mOut.addAll(batch);
+                    if (first && mChatLogReceiver != null) mChatLogReceiver.onPagePartiallyReceived(mTag);
+                } finally {
+                    mPendingBatches.release();
+                }
+            });
+
+            return true;
         }
 
         public void cancel() {
             mCanceled = true;
+            interrupt();
         }
     }
 
@@ -278,7 +382,7 @@ public abstract class QEDChatPages {
         }
 
         private void onDownloadCompleted(Uri file) {
-            ParseThread thread = new ParseThread(mTag, -1, mOut, file, mContext, mChatLogReceiver, this);
+            ParseThread thread = new ParseThread(mTag, -1, mOut, file, mContext, mChatLogReceiver, this, true);
             thread.start();
 
             threads.put(mTag, thread);
@@ -287,7 +391,7 @@ public abstract class QEDChatPages {
         @Override
         public void onDownloadCompleted(long id, Cursor download) {
             // asynchronously parse json messages
-            ParseThread thread = new ParseThread(mTag, id, mOut, mDownloadManager.getUriForDownloadedFile(id), mContext, mChatLogReceiver, this);
+            ParseThread thread = new ParseThread(mTag, id, mOut, mDownloadManager.getUriForDownloadedFile(id), mContext, mChatLogReceiver, this, false);
             thread.start();
 
             threads.put(mTag, thread);
@@ -281,7 +281,7 @@ public abstract class QEDGalleryPages {
     }
 
     @Nullable
-    public static AsyncTask<?,?,?> getImage(String tag, @NonNull Image image, @NonNull Mode mode, @NonNull OutputStream outputStream, QEDPageStreamReceiver imageReceiver) {
+    public static AsyncLoadQEDPageToStream getImage(String tag, @NonNull Image image, @NonNull Mode mode, @NonNull OutputStream outputStream, QEDPageStreamReceiver imageReceiver) {
         SoftReference<Application> applicationReference = Application.getApplicationReference();
         Application application = applicationReference.get();
 
@@ -0,0 +1,42 @@
+package com.jonahbauer.qed.networking;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+
+/**
+ * The HTTP client shared by all requests to the qed servers.
+ *
+ * Using a single client lets requests to the same host reuse pooled connections, multiplex over HTTP/2 where the
+ * server supports it and resume TLS sessions instead of doing a full handshake every time. Clients with different
+ * settings should be derived via {@link OkHttpClient#newBuilder()} so that they share the pool.
+ */
+public final class QEDHttpClient {
+    public static final MediaType FORM = MediaType.get("application/x-www-form-urlencoded; charset=utf-8");
+
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+
+    private static OkHttpClient sClient;
+
+    private QEDHttpClient() {}
+
+    @NonNull
+    public static synchronized OkHttpClient get() {
+        if (sClient == null) {
+            sClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                    .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    // login errors are detected by looking at the redirect target
+                    .followRedirects(false)
+                    .followSslRedirects(false)
+                    .build();
+        }
+        return sClient;
+    }
+}
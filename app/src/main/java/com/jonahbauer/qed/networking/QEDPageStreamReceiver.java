@@ -14,6 +14,11 @@ public interface QEDPageStreamReceiver {
 
     void onPageReceived(String tag);
 
+    /**
+     * Called when the first part of a page is available while the rest is still being received.
+     */
+    default void onPagePartiallyReceived(String tag) {}
+
     @CallSuper
     default void onError(String tag, @Nullable String reason, @Nullable Throwable cause) {
         Log.e(Application.LOG_TAG_ERROR, tag + ": " + reason, cause);
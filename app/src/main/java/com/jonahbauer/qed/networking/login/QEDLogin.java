@@ -10,19 +10,20 @@ import com.jonahbauer.qed.R;
 import com.jonahbauer.qed.activities.LoginActivity;
 import com.jonahbauer.qed.networking.Feature;
 import com.jonahbauer.qed.networking.NoNetworkException;
+import com.jonahbauer.qed.networking.QEDHttpClient;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.lang.ref.SoftReference;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Stream;
 
-import javax.net.ssl.HttpsURLConnection;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
 
 public final class QEDLogin {
     private QEDLogin() {}
@@ -46,27 +47,12 @@ public final class QEDLogin {
             String userid = null;
             String pwhash = null;
 
-            HttpsURLConnection httpsURLConnection = (HttpsURLConnection) new URL(application.getString(R.string.chat_server_login)).openConnection();
-            httpsURLConnection.setRequestMethod("POST");
-            httpsURLConnection.setDoOutput(true);
-            httpsURLConnection.setDoInput(true);
-            httpsURLConnection.setInstanceFollowRedirects(false);
-            httpsURLConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            httpsURLConnection.setRequestProperty("charset", "utf-8");
-            httpsURLConnection.setRequestProperty("Content-Length", Integer.toString(data.length));
-            httpsURLConnection.setUseCaches(false);
-
-            DataOutputStream dataOutputStream = new DataOutputStream(httpsURLConnection.getOutputStream());
-            dataOutputStream.write(data);
-
-            httpsURLConnection.connect();
-
-            List<String> cookies = httpsURLConnection.getHeaderFields().get("Set-Cookie");
-
-            httpsURLConnection.disconnect();
-            dataOutputStream.close();
+            List<String> cookies;
+            try (Response response = post(application.getString(R.string.chat_server_login), data)) {
+                cookies = response.headers("Set-Cookie");
+            }
 
-            if (cookies == null) {
+            if (cookies.isEmpty()) {
                 throw new InvalidCredentialsException();
             }
 
@@ -104,26 +90,12 @@ public final class QEDLogin {
             String sessionId2;
             String sessionCookie;
 
-            HttpsURLConnection httpsURLConnection = (HttpsURLConnection) new URL(application.getString(R.string.database_server_login)).openConnection();
-            httpsURLConnection.setRequestMethod("POST");
-            httpsURLConnection.setDoOutput(true);
-            httpsURLConnection.setDoInput(true);
-            httpsURLConnection.setInstanceFollowRedirects(false);
-            httpsURLConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            httpsURLConnection.setRequestProperty("charset", "utf-8");
-            httpsURLConnection.setRequestProperty("Content-Length", Integer.toString(data.length));
-            httpsURLConnection.setUseCaches(false);
-
-            DataOutputStream dataOutputStream = new DataOutputStream(httpsURLConnection.getOutputStream());
-            dataOutputStream.write(data);
-
-            httpsURLConnection.connect();
-
-            String location = httpsURLConnection.getHeaderField("Location");
-            String cookie = httpsURLConnection.getHeaderField("Set-Cookie");
-
-            httpsURLConnection.disconnect();
-            dataOutputStream.close();
+            String location;
+            String cookie;
+            try (Response response = post(application.getString(R.string.database_server_login), data)) {
+                location = response.header("Location");
+                cookie = response.header("Set-Cookie");
+            }
 
             if (location == null || cookie == null) {
                 throw new InvalidCredentialsException();
@@ -168,27 +140,12 @@ public final class QEDLogin {
             String userid = null;
             String pwhash = null;
 
-            HttpsURLConnection httpsURLConnection = (HttpsURLConnection) new URL(application.getString(R.string.gallery_server_login)).openConnection();
-            httpsURLConnection.setRequestMethod("POST");
-            httpsURLConnection.setDoOutput(true);
-            httpsURLConnection.setDoInput(true);
-            httpsURLConnection.setInstanceFollowRedirects(false);
-            httpsURLConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            httpsURLConnection.setRequestProperty("charset", "utf-8");
-            httpsURLConnection.setRequestProperty("Content-Length", Integer.toString(data.length));
-            httpsURLConnection.setUseCaches(false);
-
-            DataOutputStream dataOutputStream = new DataOutputStream(httpsURLConnection.getOutputStream());
-            dataOutputStream.write(data);
-
-            httpsURLConnection.connect();
-
-            List<String> cookies = httpsURLConnection.getHeaderFields().get("Set-Cookie");
-
-            httpsURLConnection.disconnect();
-            dataOutputStream.close();
+            List<String> cookies;
+            try (Response response = post(application.getString(R.string.gallery_server_login), data)) {
+                cookies = response.headers("Set-Cookie");
+            }
 
-            if (cookies == null)
+            if (cookies.isEmpty())
                 throw new InvalidCredentialsException();
 
             for (String str : cookies) {
@@ -204,11 +161,21 @@ public final class QEDLogin {
             application.saveData(pwhash, Application.KEY_GALLERY_PWHASH, true);
             application.saveData(phpsessid, Application.KEY_GALLERY_PHPSESSID, true);
             application.saveData(userid, Application.KEY_USERID, false);
-        } catch (java.io.IOException e) {
+        } catch (IOException e) {
             throw new NoNetworkException(e);
         }
     }
 
+    @NonNull
+    private static Response post(@NonNull String url, @NonNull byte[] data) throws IOException {
+        Request request = new Request.Builder()
+                .url(url)
+                .post(RequestBody.create(data, QEDHttpClient.FORM))
+                .build();
+
+        return QEDHttpClient.get().newCall(request).execute();
+    }
+
     /**
      * Tries to login to the specified {@code Feature} using stored username and password.
      * The resulting session tokens will be stored using {@link Application#saveData(String, String, boolean)}
@@ -11,15 +11,18 @@ import androidx.preference.PreferenceManager;
 import com.jonahbauer.qed.Application;
 import com.jonahbauer.qed.Pref;
 import com.jonahbauer.qed.R;
+import com.jonahbauer.qed.networking.NetworkUtils;
+import com.jonahbauer.qed.networking.QEDHttpClient;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.lang.ref.SoftReference;
-import java.net.URL;
 import java.net.URLEncoder;
+import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.HttpsURLConnection;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
 
 /**
  * Represents an asynchronous login/registration task used to authenticate
@@ -47,66 +50,43 @@ public class UserLoginTask extends AsyncTask<Void, Void, Boolean> {
     @Override
     protected Boolean doInBackground(Void... params) {
         try {
-            URL url = new URL(mUrl);
-            HttpsURLConnection logInConnection = (HttpsURLConnection) url.openConnection();
-
-            logInConnection.setDoInput(true);
-            logInConnection.setDoOutput(true);
-            logInConnection.setReadTimeout(5 * 1000);
-            logInConnection.setConnectTimeout(5 * 1000);
-            logInConnection.setRequestMethod("POST");
-            logInConnection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            logInConnection.setRequestProperty("charset", "utf-8");
-
-            logInConnection.connect();
+            OkHttpClient client = QEDHttpClient.get().newBuilder()
+                    .readTimeout(5, TimeUnit.SECONDS)
+                    .connectTimeout(5, TimeUnit.SECONDS)
+                    .followRedirects(true)
+                    .build();
 
             String data = URLEncoder.encode("username", "UTF-8") + "=" + URLEncoder.encode(mUsername, "UTF-8");
             data += "&" + URLEncoder.encode("password", "UTF-8") + "=" + URLEncoder.encode(mPassword, "UTF-8");
             data += "&" + URLEncoder.encode("version", "UTF-8") + "=" + URLEncoder.encode(mVersion, "UTF-8");
 
+            Request request = new Request.Builder()
+                    .url(mUrl)
+                    .post(RequestBody.create(data, QEDHttpClient.FORM))
+                    .build();
 
-            PrintWriter pw = new PrintWriter(logInConnection.getOutputStream());
-
-            pw.write(data);
-            pw.flush();
-            pw.close();
-
-            for (int i = 0; i < logInConnection.getHeaderFields().keySet().size(); i++) {
-                if ("Set-Cookie".equalsIgnoreCase(logInConnection.getHeaderFieldKey(i))) {
-                    String header = logInConnection.getHeaderField(i);
-
-                    SoftReference<Application> applicationRef = Application.getApplicationReference();
-                    Application application = applicationRef.get();
+            int responseCode;
+            String returnString;
+            try (Response response = client.newCall(request).execute()) {
+                SoftReference<Application> applicationRef = Application.getApplicationReference();
+                Application application = applicationRef.get();
 
-                    if (application != null) {
+                if (application != null) {
+                    for (String header : response.headers("Set-Cookie")) {
                         if (header.startsWith("userid"))
                             application.saveData(String.valueOf(Integer.valueOf(header.split("=")[1].split(";")[0])), Application.KEY_USERID, false);
                         else if (header.startsWith("pwhash"))
                             application.saveData(header.split("=")[1].split(";")[0], Application.KEY_CHAT_PWHASH, true);
                     }
                 }
-            }
 
-            BufferedInputStream in = new BufferedInputStream(logInConnection.getInputStream());
-            StringBuffer sb;
-            String returnString;
-
-            int x;
-
-            sb = new StringBuffer();
-
-            while ((x = in.read()) != -1) {
-                sb.append((char) x);
+                responseCode = response.code();
+                returnString = NetworkUtils.readPage(response);
             }
 
-            in.close();
-
-            logInConnection.disconnect();
-
-            returnString = sb.toString();
             String[] splitString = returnString.split("\"");
 
-            if (logInConnection.getResponseCode() == 200 && splitString[3].equals("success")) {
+            if (responseCode == 200 && splitString[3].equals("success")) {
                 return true;
             }
 
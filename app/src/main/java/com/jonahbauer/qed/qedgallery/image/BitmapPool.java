@@ -0,0 +1,101 @@
+package com.jonahbauer.qed.qedgallery.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A pool of mutable bitmaps that are no longer shown and can be reused via
+ * {@link android.graphics.BitmapFactory.Options#inBitmap}. The pool is limited by the size of its bitmaps in bytes,
+ * the oldest bitmaps are dropped first. Thread-safe.
+ */
+public final class BitmapPool {
+    private final int mMaxBytes;
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<>();
+    private int mBytes;
+
+    BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Adds a bitmap to the pool. Immutable bitmaps cannot be reused and are ignored.
+     */
+    synchronized void put(@NonNull Bitmap bitmap) {
+        if (!bitmap.isMutable() || bitmap.isRecycled()) return;
+
+        int size = bitmap.getAllocationByteCount();
+        if (size > mMaxBytes) return;
+
+        mBitmaps.addLast(bitmap);
+        mBytes += size;
+
+        while (mBytes > mMaxBytes) {
+            mBytes -= mBitmaps.removeFirst().getAllocationByteCount();
+        }
+    }
+
+    /**
+     * Removes a bitmap from the pool that is large enough to hold an {@link Bitmap.Config#ARGB_8888} image of the
+     * given size.
+     * @return a bitmap or null if there is none
+     */
+    @Nullable
+    synchronized Bitmap get(int width, int height) {
+        long required = (long) width * height * 4;
+
+        for (Iterator<Bitmap> iterator = mBitmaps.iterator(); iterator.hasNext(); ) {
+            Bitmap bitmap = iterator.next();
+            int size = bitmap.getAllocationByteCount();
+            if (size >= required) {
+                iterator.remove();
+                mBytes -= size;
+                return bitmap;
+            }
+        }
+
+        return null;
+    }
+
+    synchronized void clear() {
+        mBitmaps.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Decodes a mutable bitmap, reusing a pooled bitmap if possible.
+     * @param options the options to decode with, {@link BitmapFactory.Options#inSampleSize} has to be set already
+     * @param width the width of the encoded image
+     * @param height the height of the encoded image
+     * @return the bitmap or null if it could not be decoded
+     */
+    @Nullable
+    public Bitmap decode(@NonNull Decoder decoder, @NonNull BitmapFactory.Options options, int width, int height) {
+        int sampleSize = Math.max(1, options.inSampleSize);
+
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inBitmap = get((width + sampleSize - 1) / sampleSize, (height + sampleSize - 1) / sampleSize);
+
+        try {
+            Bitmap bitmap = decoder.decode(options);
+            if (bitmap == null && options.inBitmap != null) put(options.inBitmap);
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap cannot be reused for this image
+            if (options.inBitmap != null) put(options.inBitmap);
+            options.inBitmap = null;
+            return decoder.decode(options);
+        }
+    }
+
+    public interface Decoder {
+        @Nullable
+        Bitmap decode(@NonNull BitmapFactory.Options options);
+    }
+}
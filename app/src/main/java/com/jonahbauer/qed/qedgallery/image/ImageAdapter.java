@@ -2,13 +2,12 @@ package com.jonahbauer.qed.qedgallery.image;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
-import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
+import android.widget.GridView;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
@@ -17,63 +16,43 @@ import androidx.annotation.NonNull;
 
 import com.jonahbauer.qed.R;
 import com.jonahbauer.qed.activities.GalleryAlbumActivity;
-import com.jonahbauer.qed.database.GalleryDatabase;
 import com.jonahbauer.qed.database.GalleryDatabaseReceiver;
-import com.jonahbauer.qed.networking.QEDGalleryPages;
-import com.jonahbauer.qed.networking.QEDGalleryPages.Mode;
-import com.jonahbauer.qed.networking.QEDPageStreamReceiver;
-import com.jonahbauer.qed.util.Triple;
-
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.lang.ref.SoftReference;
-import java.util.HashMap;
-import java.util.HashSet;
+
 import java.util.List;
 import java.util.Objects;
-import java.util.Random;
-import java.util.Set;
 
 import static com.jonahbauer.qed.qedgallery.image.Image.audioFileExtensions;
 import static com.jonahbauer.qed.qedgallery.image.Image.videoFileExtensions;
 
-public class ImageAdapter extends ArrayAdapter<Image> implements GalleryDatabaseReceiver, QEDPageStreamReceiver {
+/**
+ * Shows the thumbnails of a list of images. Thumbnails are taken from the {@link ThumbnailCache} and downloaded by a
+ * {@link ThumbnailLoader} which has to be informed about the visible range by registering this adapter as
+ * {@link AbsListView.OnScrollListener}.
+ */
+public class ImageAdapter extends ArrayAdapter<Image> implements GalleryDatabaseReceiver, AbsListView.OnScrollListener {
     private final GalleryAlbumActivity mContext;
     private final List<Image> mImageList;
 
-    private final HashMap<String, AsyncTask<?,?,?>> mAsyncTasks;
-    private final HashMap<String, Triple<Image, ImageView, ProgressBar>> mByTag;
-    private final HashMap<View, String> mTagByView;
-    private final HashMap<Integer, ByteArrayOutputStream> mBaosById;
-
-    private final SparseArray<SoftReference<Bitmap>> mCache;
-
-    private final Set<String> mInvalidatedTags;
-
-    private final GalleryDatabase mGalleryDatabase;
+    private final ThumbnailCache mThumbnailCache;
+    private final ThumbnailLoader mThumbnailLoader;
+    private int mThumbnailSize;
 
     private boolean mOfflineMode;
     public static boolean sReceivedError = false;
 
-    private final Random mRandom;
-
     public ImageAdapter(GalleryAlbumActivity context, List<Image> imageList, boolean offlineMode) {
         super(context, R.layout.list_item_image, imageList);
         this.mContext = context;
         this.mImageList = imageList;
         this.mOfflineMode = offlineMode;
 
-        mRandom = new Random();
-
-        mGalleryDatabase = new GalleryDatabase();
-        mGalleryDatabase.init(context, this);
-
-        mAsyncTasks = new HashMap<>();
-        mByTag = new HashMap<>();
-        mTagByView = new HashMap<>();
-        mInvalidatedTags = new HashSet<>();
-        mCache = new SparseArray<>();
-        mBaosById = new HashMap<>();
+        mThumbnailCache = ThumbnailCache.getInstance(context);
+        mThumbnailLoader = new ThumbnailLoader(context, (reason, cause) -> {
+            if (!sReceivedError) {
+                sReceivedError = true;
+                mContext.switchToOfflineMode();
+            }
+        });
     }
 
     @NonNull
@@ -82,31 +61,35 @@ public class ImageAdapter extends ArrayAdapter<Image> implements GalleryDatabase
         final Image image = mImageList.get(position);
 
         View view;
+        ViewHolder holder;
         if (convertView != null) {
             view = convertView;
-            String tag = mTagByView.getOrDefault(convertView, "");
-            mInvalidatedTags.add(tag);
+            holder = (ViewHolder) view.getTag();
+
+            // the view is recycled, the thumbnail it waited for is not needed any more
+            if (holder.mCallback != null) {
+                mThumbnailCache.cancel(holder.mCallback);
+                mThumbnailLoader.cancel(holder.mCallback);
+                holder.mCallback = null;
+            }
 
-            AsyncTask<?,?,?> async = mAsyncTasks.get(tag);
-            if (async != null) async.cancel(false);
+            clearThumbnail(holder);
         } else {
             LayoutInflater inflater = (LayoutInflater) mContext.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
             view = Objects.requireNonNull(inflater).inflate(R.layout.list_item_image, parent, false);
+            holder = new ViewHolder(view);
+            view.setTag(holder);
         }
 
-        ImageView thumbnail = view.findViewById(R.id.thumbnail);
-        ProgressBar progressBar = view.findViewById(R.id.loading);
-
-        ((TextView)view.findViewById(R.id.image_title)).setText(image.name);
-        thumbnail.setVisibility(View.GONE);
-        progressBar.setVisibility(View.VISIBLE);
-
-        String tag = getClass().toString() + mRandom.nextLong();
-        mByTag.put(tag, new Triple<>(image, thumbnail, progressBar));
-
-        setThumbnail(tag, image, thumbnail, progressBar);
+        holder.mTitle.setText(image.name);
+        if (parent instanceof GridView) {
+            mThumbnailSize = ((GridView) parent).getColumnWidth();
+            mThumbnailLoader.setThumbnailSize(mThumbnailSize);
+        }
+        holder.mThumbnail.setVisibility(View.GONE);
+        holder.mProgressBar.setVisibility(View.VISIBLE);
 
-        mTagByView.put(view, tag);
+        setThumbnail(holder, image, position);
 
         return view;
     }
@@ -115,30 +98,30 @@ public class ImageAdapter extends ArrayAdapter<Image> implements GalleryDatabase
         mImageList.add(index, image);
     }
 
-    private void setThumbnail(String tag, @NonNull Image image, ImageView thumbnail, ProgressBar progressBar) {
-        // Cache
-        SoftReference<Bitmap> cachedBitmap = mCache.get(image.id);
-        if (cachedBitmap != null) {
-            Bitmap bitmap = cachedBitmap.get();
-            if (bitmap != null) {
-                thumbnail.setImageBitmap(bitmap);
-                thumbnail.setVisibility(View.VISIBLE);
-                progressBar.setVisibility(View.GONE);
-                return;
-            }
-        }
-
-        // Database
-        Bitmap bitmap = mGalleryDatabase.getThumbnail(image);
+    private void setThumbnail(@NonNull ViewHolder holder, @NonNull Image image, int position) {
+        // Memory
+        Bitmap bitmap = mThumbnailCache.get(image, mThumbnailSize);
         if (bitmap != null) {
-            mCache.put(image.id, new SoftReference<>(bitmap));
-            thumbnail.setImageBitmap(bitmap);
-            thumbnail.setVisibility(View.VISIBLE);
-            progressBar.setVisibility(View.GONE);
-            image.available = true;
+            showThumbnail(holder, bitmap);
             return;
         }
 
+        // Database
+        holder.mCallback = (image1, loaded) -> {
+            holder.mCallback = null;
+            if (loaded != null) {
+                showThumbnail(holder, loaded);
+            } else {
+                setFallbackThumbnail(holder, image, position);
+            }
+        };
+        mThumbnailCache.load(image, mThumbnailSize, mOfflineMode, holder.mCallback);
+    }
+
+    /**
+     * Shows a placeholder or starts a download for an image whose thumbnail is not cached
+     */
+    private void setFallbackThumbnail(@NonNull ViewHolder holder, @NonNull Image image, int position) {
         String fileExtension = null;
         if (image.name != null) {
             String[] tmp = image.name.split("\\.");
@@ -146,9 +129,7 @@ public class ImageAdapter extends ArrayAdapter<Image> implements GalleryDatabase
         }
 
         if (mOfflineMode) {
-            if (image.path == null) image.path = mGalleryDatabase.getImagePath(image);
-            image.available = image.path != null && new File(image.path).exists();
-
+            // availability has been checked by the thumbnail cache
             int drawableId;
             if (image.available) {
                 drawableId = R.drawable.ic_gallery_image;
@@ -166,101 +147,107 @@ public class ImageAdapter extends ArrayAdapter<Image> implements GalleryDatabase
                 }
             }
 
-            thumbnail.setImageDrawable(getContext().getDrawable(drawableId));
-            thumbnail.setVisibility(View.VISIBLE);
-            progressBar.setVisibility(View.GONE);
+            holder.mThumbnail.setImageDrawable(getContext().getDrawable(drawableId));
+            holder.mThumbnail.setVisibility(View.VISIBLE);
+            holder.mProgressBar.setVisibility(View.GONE);
             return;
         } else {
             if (videoFileExtensions.contains(fileExtension)) {
-                thumbnail.setImageDrawable(getContext().getDrawable(R.drawable.ic_gallery_video));
-                thumbnail.setVisibility(View.VISIBLE);
-                progressBar.setVisibility(View.GONE);
+                holder.mThumbnail.setImageDrawable(getContext().getDrawable(R.drawable.ic_gallery_video));
+                holder.mThumbnail.setVisibility(View.VISIBLE);
+                holder.mProgressBar.setVisibility(View.GONE);
                 image.available = true;
                 return;
             }
 
             if (audioFileExtensions.contains(fileExtension)) {
-                thumbnail.setImageDrawable(getContext().getDrawable(R.drawable.ic_gallery_audio));
-                thumbnail.setVisibility(View.VISIBLE);
-                progressBar.setVisibility(View.GONE);
+                holder.mThumbnail.setImageDrawable(getContext().getDrawable(R.drawable.ic_gallery_audio));
+                holder.mThumbnail.setVisibility(View.VISIBLE);
+                holder.mProgressBar.setVisibility(View.GONE);
                 image.available = true;
                 return;
             }
         }
 
-        thumbnail.setVisibility(View.GONE);
-        progressBar.setVisibility(View.VISIBLE);
+        holder.mThumbnail.setVisibility(View.GONE);
+        holder.mProgressBar.setVisibility(View.VISIBLE);
 
         // Download
-        downloadImage(tag, image);
+        holder.mCallback = (image1, downloaded) -> {
+            holder.mCallback = null;
+            if (downloaded != null) {
+                showThumbnail(holder, downloaded);
+            } else {
+                holder.mThumbnail.setImageResource(R.drawable.ic_gallery_empty_image);
+                holder.mThumbnail.setVisibility(View.VISIBLE);
+                holder.mProgressBar.setVisibility(View.GONE);
+            }
+        };
+        mThumbnailLoader.load(image, position, holder.mCallback);
     }
 
-    private void downloadImage(String tag, @NonNull Image image) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        mBaosById.put(image.id, baos);
-
-        AsyncTask<?,?,?> async = QEDGalleryPages.getImage(tag, image, Mode.THUMBNAIL, baos, this);
+    private void showThumbnail(@NonNull ViewHolder holder, @NonNull Bitmap bitmap) {
+        mThumbnailCache.acquire(bitmap);
+        clearThumbnail(holder);
 
-        mAsyncTasks.put(tag, async);
+        holder.mBitmap = bitmap;
+        holder.mThumbnail.setImageBitmap(bitmap);
+        holder.mThumbnail.setVisibility(View.VISIBLE);
+        holder.mProgressBar.setVisibility(View.GONE);
     }
 
-    @Override
-    public void onPageReceived(String tag) {
-        Triple<Image, ImageView, ProgressBar> triple = mByTag.get(tag);
-        assert triple != null;
-
-        Image image = triple.first;
-        ImageView thumbnail = triple.second;
-        ProgressBar progressBar = triple.third;
-
-        ByteArrayOutputStream baos = mBaosById.get(image.id);
-        if (baos == null) return;
-
-        byte[] encodedBitmap = baos.toByteArray();
-        Bitmap bitmap = BitmapFactory.decodeByteArray(encodedBitmap, 0, encodedBitmap.length);
-        if (bitmap != null) {
-            mGalleryDatabase.insertThumbnail(image, bitmap);
-            mCache.put(image.id, new SoftReference<>(bitmap));
-        }
-
-        mBaosById.remove(image.id);
-        mByTag.remove(tag);
-
-        if (mInvalidatedTags.contains(tag)) return;
-
-        if (thumbnail != null && progressBar != null) {
-            if (bitmap == null) {
-                thumbnail.setImageResource(R.drawable.ic_gallery_empty_image);
-            } else {
-                thumbnail.setImageBitmap(bitmap);
-            }
-
-            thumbnail.setVisibility(View.VISIBLE);
-            progressBar.setVisibility(View.GONE);
+    /**
+     * Removes the thumbnail from the view, allowing its bitmap to be reused
+     */
+    private void clearThumbnail(@NonNull ViewHolder holder) {
+        holder.mThumbnail.setImageDrawable(null);
+        if (holder.mBitmap != null) {
+            mThumbnailCache.release(holder.mBitmap);
+            holder.mBitmap = null;
         }
     }
 
     @Override
-    public void onProgressUpdate(String tag, long done, long total) {}
+    public void onScrollStateChanged(AbsListView view, int scrollState) {}
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if (visibleItemCount == 0 || mOfflineMode) return;
+        mThumbnailLoader.setViewport(mImageList, firstVisibleItem, firstVisibleItem + visibleItemCount - 1);
+    }
 
     @Override
     public void onInsertAllUpdate(int done, int total) {}
 
     public void setOfflineMode(boolean offlineMode) {
         this.mOfflineMode = offlineMode;
+        if (offlineMode) mThumbnailLoader.cancelAll();
     }
 
     public void clearCache() {
-        this.mCache.clear();
+        mThumbnailLoader.cancelAll();
+        mThumbnailCache.clearCache();
     }
 
-    @Override
-    public void onError(String tag, String reason, Throwable cause) {
-        QEDPageStreamReceiver.super.onError(tag, reason, cause);
-
-        if (!sReceivedError) {
-            sReceivedError = true;
-            mContext.switchToOfflineMode();
+    private static class ViewHolder {
+        final ImageView mThumbnail;
+        final ProgressBar mProgressBar;
+        final TextView mTitle;
+
+        /**
+         * Receives the thumbnail this view is waiting for
+         */
+        ThumbnailCache.Callback mCallback;
+
+        /**
+         * The thumbnail shown by this view
+         */
+        Bitmap mBitmap;
+
+        ViewHolder(@NonNull View view) {
+            mThumbnail = view.findViewById(R.id.thumbnail);
+            mProgressBar = view.findViewById(R.id.loading);
+            mTitle = view.findViewById(R.id.image_title);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,82 @@
+package com.jonahbauer.qed.qedgallery.image;
+
+import androidx.annotation.NonNull;
+
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * An {@link OutputStream} collecting bytes in an array taken from a shared pool.
+ *
+ * Unlike {@link java.io.ByteArrayOutputStream} the collected bytes are accessed without copying via
+ * {@link #getBuffer()} and {@link #size()}. Once the bytes are not needed any more the stream has to be
+ * {@link #release() released}, returning its array to the pool.
+ */
+final class PooledByteArrayOutputStream extends OutputStream {
+    private static final int INITIAL_CAPACITY = 32 * 1024;
+    private static final int MAX_POOL_SIZE = 8;
+
+    private static final ArrayDeque<byte[]> sPool = new ArrayDeque<>(MAX_POOL_SIZE);
+
+    private byte[] mBuffer;
+    private int mCount;
+
+    private PooledByteArrayOutputStream(@NonNull byte[] buffer) {
+        mBuffer = buffer;
+    }
+
+    @NonNull
+    static PooledByteArrayOutputStream obtain() {
+        byte[] buffer;
+        synchronized (sPool) {
+            buffer = sPool.poll();
+        }
+        return new PooledByteArrayOutputStream(buffer != null ? buffer : new byte[INITIAL_CAPACITY]);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(mCount + 1);
+        mBuffer[mCount++] = (byte) b;
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) {
+        ensureCapacity(mCount + len);
+        System.arraycopy(b, off, mBuffer, mCount, len);
+        mCount += len;
+    }
+
+    /**
+     * @return the array holding the bytes written, only the first {@link #size()} bytes are valid
+     */
+    @NonNull
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * Returns the array to the pool. The stream must not be used afterwards.
+     */
+    void release() {
+        byte[] buffer = mBuffer;
+        if (buffer == null) return;
+        mBuffer = null;
+
+        synchronized (sPool) {
+            if (sPool.size() < MAX_POOL_SIZE) sPool.offer(buffer);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mBuffer.length) return;
+
+        // outgrown arrays are left to the garbage collector, pooled arrays grow to the usual thumbnail size
+        mBuffer = Arrays.copyOf(mBuffer, Math.max(capacity, mBuffer.length * 2));
+    }
+}
@@ -0,0 +1,277 @@
+package com.jonahbauer.qed.qedgallery.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jonahbauer.qed.Application;
+import com.jonahbauer.qed.database.GalleryDatabase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * A two-tiered cache of gallery thumbnails.
+ *
+ * Thumbnails are kept in a {@link LruCache} limited by their size in bytes, keyed by the image id and the size they
+ * were decoded for. Misses are looked up in the {@link GalleryDatabase}, which keeps the thumbnails as files, on a
+ * background thread, where thumbnails are downsampled to the requested size while decoding. Requests for the same
+ * thumbnail are coalesced.
+ *
+ * Downloaded thumbnails are decoded on the background thread as well. Bitmaps that dropped out of the memory cache and
+ * are not shown any more are kept in a {@link BitmapPool} for reuse when decoding, views showing a thumbnail have to
+ * report this via {@link #acquire(Bitmap)} and {@link #release(Bitmap)}.
+ * All methods have to be called on the main thread, callbacks are invoked on the main thread.
+ */
+@MainThread
+public class ThumbnailCache {
+    private static final int MAX_CACHE_BYTES = 32 * 1024 * 1024;
+    private static final int MAX_POOL_BYTES = 4 * 1024 * 1024;
+
+    private static ThumbnailCache sInstance;
+
+    private final LruCache<Long, Bitmap> mCache;
+    private final GalleryDatabase mGalleryDatabase;
+    private final Map<Long, List<Callback>> mPending = new HashMap<>();
+
+    private final BitmapPool mBitmapPool = new BitmapPool(MAX_POOL_BYTES);
+
+    /**
+     * The number of views showing each bitmap. Weak, so that views which are never released do not leak.
+     */
+    private final Map<Bitmap, Integer> mUsage = new WeakHashMap<>();
+
+    /**
+     * Bitmaps that dropped out of the memory cache while being shown
+     */
+    private final Set<Bitmap> mEvicted = Collections.newSetFromMap(new WeakHashMap<>());
+
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private ThumbnailCache(@NonNull Context context) {
+        mGalleryDatabase = new GalleryDatabase();
+        mGalleryDatabase.init(context, null);
+
+        int budget = (int) Math.min(MAX_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 8);
+        mCache = new LruCache<Long, Bitmap>(budget) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue == newValue) return;
+
+                if (mUsage.containsKey(oldValue)) {
+                    mEvicted.add(oldValue);
+                } else {
+                    mBitmapPool.put(oldValue);
+                }
+            }
+        };
+
+        HandlerThread thread = new HandlerThread("ThumbnailCache", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    @NonNull
+    public static ThumbnailCache getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new ThumbnailCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the thumbnail of the given image if it is in memory, null otherwise
+     */
+    @Nullable
+    public Bitmap get(@NonNull Image image, int size) {
+        return mCache.get(getKey(image.id, size));
+    }
+
+    /**
+     * Loads the thumbnail of the given image from memory or, on a background thread, from the database. When the
+     * thumbnail is in memory the callback is invoked immediately.
+     * @param size the width and height of the view showing the thumbnail
+     * @param checkLocalFile if the thumbnail is not found, whether to look up the local copy of the image and update
+     *                       {@link Image#path} and {@link Image#available} accordingly
+     */
+    public void load(@NonNull Image image, int size, boolean checkLocalFile, @NonNull Callback callback) {
+        long key = getKey(image.id, size);
+
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap != null) {
+            callback.onThumbnailLoaded(image, bitmap);
+            return;
+        }
+
+        List<Callback> callbacks = mPending.get(key);
+        if (callbacks != null) {
+            callbacks.add(callback);
+            return;
+        }
+
+        callbacks = new ArrayList<>(1);
+        callbacks.add(callback);
+        mPending.put(key, callbacks);
+
+        mHandler.post(() -> {
+            Bitmap result = null;
+            String path = image.path;
+            boolean available = image.available;
+            try {
+                result = mGalleryDatabase.getThumbnail(image, size, mBitmapPool);
+                if (result == null && checkLocalFile) {
+                    if (path == null) path = mGalleryDatabase.getImagePath(image);
+                    available = path != null && new File(path).exists();
+                }
+            } catch (RuntimeException e) {
+                Log.e(Application.LOG_TAG_ERROR, "Could not load thumbnail of image " + image.id, e);
+            }
+
+            Bitmap loaded = result;
+            String loadedPath = path;
+            boolean loadedAvailable = available;
+            mMainHandler.post(() -> {
+                if (loaded != null) {
+                    mCache.put(key, loaded);
+                    image.available = true;
+                } else if (checkLocalFile) {
+                    image.path = loadedPath;
+                    image.available = loadedAvailable;
+                }
+
+                List<Callback> pending = mPending.remove(key);
+                if (pending != null) {
+                    for (Callback pendingCallback : pending) {
+                        pendingCallback.onThumbnailLoaded(image, loaded);
+                    }
+                }
+            });
+        });
+    }
+
+    /**
+     * Decodes a freshly downloaded thumbnail on the background thread, downsampled to the requested size and reusing a
+     * pooled bitmap if possible, and stores it in the database. Only the decoded bitmap is passed to the main thread,
+     * where it is put into memory.
+     * @param encoded the thumbnail as received from the server, it is stored without re-encoding. The stream is
+     *                released afterwards.
+     * @param callback receives the thumbnail or null if it could not be decoded
+     */
+    void decode(@NonNull Image image, int size, @NonNull PooledByteArrayOutputStream encoded, @NonNull Callback callback) {
+        long key = getKey(image.id, size);
+
+        mHandler.post(() -> {
+            byte[] buffer = encoded.getBuffer();
+            int length = encoded.size();
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(buffer, 0, length, options);
+            int width = options.outWidth;
+            int height = options.outHeight;
+
+            Bitmap bitmap = null;
+            try {
+                if (width > 0 && height > 0) {
+                    options.inSampleSize = GalleryDatabase.getSampleSize(width, height, size);
+                    bitmap = mBitmapPool.decode(
+                            opts -> BitmapFactory.decodeByteArray(buffer, 0, length, opts),
+                            options, width, height
+                    );
+                }
+            } catch (RuntimeException e) {
+                Log.e(Application.LOG_TAG_ERROR, "Could not decode thumbnail of image " + image.id, e);
+            }
+
+            Bitmap decoded = bitmap;
+            mMainHandler.post(() -> {
+                if (decoded != null) mCache.put(key, decoded);
+                callback.onThumbnailLoaded(image, decoded);
+            });
+
+            try {
+                if (decoded != null) {
+                    mGalleryDatabase.insertThumbnail(image, buffer, length, width, height);
+                }
+            } catch (RuntimeException e) {
+                Log.e(Application.LOG_TAG_ERROR, "Could not store thumbnail of image " + image.id, e);
+            } finally {
+                encoded.release();
+            }
+        });
+    }
+
+    /**
+     * Marks the given bitmap as shown by a view. It will not be reused until it is {@link #release(Bitmap) released}.
+     */
+    public void acquire(@NonNull Bitmap bitmap) {
+        Integer count = mUsage.get(bitmap);
+        mUsage.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Marks the given bitmap as no longer shown by a view. Bitmaps not shown by any view that dropped out of the
+     * memory cache are reused.
+     */
+    public void release(@NonNull Bitmap bitmap) {
+        Integer count = mUsage.get(bitmap);
+        if (count == null) return;
+
+        if (count > 1) {
+            mUsage.put(bitmap, count - 1);
+        } else {
+            mUsage.remove(bitmap);
+            if (mEvicted.remove(bitmap)) mBitmapPool.put(bitmap);
+        }
+    }
+
+    /**
+     * Removes the given callback from all pending requests
+     */
+    public void cancel(@NonNull Callback callback) {
+        for (List<Callback> callbacks : mPending.values()) {
+            callbacks.remove(callback);
+        }
+    }
+
+    /**
+     * Clears the memory cache, thumbnails are still available from the database
+     */
+    public void clearCache() {
+        mCache.evictAll();
+        mBitmapPool.clear();
+    }
+
+    private static long getKey(int id, int size) {
+        return ((long) id << 32) | (size & 0xFFFFFFFFL);
+    }
+
+    public interface Callback {
+        /**
+         * @param bitmap the thumbnail or null if it is not cached
+         */
+        void onThumbnailLoaded(@NonNull Image image, @Nullable Bitmap bitmap);
+    }
+}
@@ -0,0 +1,276 @@
+package com.jonahbauer.qed.qedgallery.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.jonahbauer.qed.networking.AsyncLoadQEDPageToStream;
+import com.jonahbauer.qed.networking.QEDGalleryPages;
+import com.jonahbauer.qed.networking.QEDGalleryPages.Mode;
+import com.jonahbauer.qed.networking.QEDPageStreamReceiver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Downloads the thumbnails of a scrolling list of images.
+ *
+ * Requests are identified by the image id, so that a thumbnail is downloaded only once no matter how many views ask
+ * for it. Only a few downloads run at the same time, queued requests are served by their distance to the visible
+ * range, requests in scroll direction first. The thumbnails of the next screen in scroll direction are prefetched.
+ * Requests nobody is waiting for any more are dropped when they leave the prefetch range, running downloads are
+ * aborted. Downloads are written to pooled buffers and decoded by the {@link ThumbnailCache} on a background thread.
+ * All methods have to be called on the main thread, callbacks are invoked on the main thread.
+ */
+@MainThread
+public class ThumbnailLoader implements QEDPageStreamReceiver {
+    private static final int MAX_RUNNING = 4;
+
+    private final ThumbnailCache mThumbnailCache;
+    private final ErrorListener mErrorListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Map<Integer, Request> mRequests = new HashMap<>();
+    private final List<Request> mQueue = new ArrayList<>();
+    private final Map<String, Request> mRunning = new HashMap<>();
+    private int mRequestCount;
+
+    private int mThumbnailSize;
+    private int mFirstVisible;
+    private int mLastVisible = -1;
+    private boolean mScrollingUp;
+
+    public ThumbnailLoader(@NonNull Context context, @NonNull ErrorListener errorListener) {
+        mThumbnailCache = ThumbnailCache.getInstance(context);
+        mErrorListener = errorListener;
+    }
+
+    public void setThumbnailSize(int size) {
+        mThumbnailSize = size;
+    }
+
+    /**
+     * Downloads the thumbnail of the image at the given position.
+     * @param callback receives the thumbnail or null if it could not be downloaded
+     */
+    public void load(@NonNull Image image, int position, @NonNull ThumbnailCache.Callback callback) {
+        Request request = getRequest(image, position);
+        request.callbacks.add(callback);
+        schedule();
+    }
+
+    /**
+     * Removes the given callback from all requests. Requests nobody is waiting for are dropped once they leave the
+     * prefetch range.
+     */
+    public void cancel(@NonNull ThumbnailCache.Callback callback) {
+        for (Request request : mRequests.values()) {
+            request.callbacks.remove(callback);
+        }
+    }
+
+    /**
+     * Updates the visible range, reorders the queue and prefetches the next screen in scroll direction.
+     */
+    public void setViewport(@NonNull List<Image> images, int firstVisible, int lastVisible) {
+        if (firstVisible == mFirstVisible && lastVisible == mLastVisible) return;
+
+        if (firstVisible != mFirstVisible) mScrollingUp = firstVisible < mFirstVisible;
+        mFirstVisible = firstVisible;
+        mLastVisible = lastVisible;
+
+        // drop requests nobody is waiting for that left the prefetch range
+        for (Iterator<Request> iterator = mRequests.values().iterator(); iterator.hasNext(); ) {
+            Request request = iterator.next();
+            if (request.callbacks.isEmpty() && !isInPrefetchRange(request.position)) {
+                iterator.remove();
+                mQueue.remove(request);
+                if (request.task != null && mRunning.remove(request.tag) != null) {
+                    // the buffer is not released, the aborted download might still be writing to it
+                    request.task.abort();
+                }
+            }
+        }
+
+        int count = lastVisible - firstVisible + 1;
+        int from = mScrollingUp ? firstVisible - count : lastVisible + 1;
+        int to = mScrollingUp ? firstVisible : lastVisible + 1 + count;
+        for (int i = Math.max(0, from); i < Math.min(images.size(), to); i++) {
+            prefetch(images.get(i), i);
+        }
+
+        schedule();
+    }
+
+    /**
+     * Drops all requests and aborts all running downloads
+     */
+    public void cancelAll() {
+        // the buffers are not released, the aborted downloads might still be writing to them
+        for (Request request : mRunning.values()) {
+            request.task.abort();
+        }
+        mRunning.clear();
+        mRequests.clear();
+        mQueue.clear();
+    }
+
+    private void prefetch(@NonNull Image image, int position) {
+        if (mRequests.containsKey(image.id) || mThumbnailCache.get(image, mThumbnailSize) != null) return;
+
+        String extension = null;
+        if (image.name != null) {
+            String[] tmp = image.name.split("\\.");
+            extension = tmp[tmp.length - 1];
+        }
+        if (Image.videoFileExtensions.contains(extension) || Image.audioFileExtensions.contains(extension)) return;
+
+        // look up the database first, only download the thumbnail if it is not there
+        mThumbnailCache.load(image, mThumbnailSize, false, (image1, bitmap) -> {
+            if (bitmap != null || !isInPrefetchRange(position)) return;
+
+            getRequest(image, position);
+            schedule();
+        });
+    }
+
+    @NonNull
+    private Request getRequest(@NonNull Image image, int position) {
+        Request request = mRequests.get(image.id);
+        if (request == null) {
+            request = new Request(image);
+            mRequests.put(image.id, request);
+            mQueue.add(request);
+        }
+        request.position = position;
+        return request;
+    }
+
+    private void schedule() {
+        while (mRunning.size() < MAX_RUNNING && !mQueue.isEmpty()) {
+            Request next = null;
+            int best = Integer.MAX_VALUE;
+            for (Request request : mQueue) {
+                int priority = getPriority(request);
+                if (priority < best) {
+                    best = priority;
+                    next = request;
+                }
+            }
+
+            mQueue.remove(next);
+            start(next);
+        }
+    }
+
+    private void start(@NonNull Request request) {
+        request.tag = "ThumbnailLoader#" + (++mRequestCount);
+        request.out = PooledByteArrayOutputStream.obtain();
+        request.task = QEDGalleryPages.getImage(request.tag, request.image, Mode.THUMBNAIL, request.out, this);
+
+        if (request.task == null) {
+            // the error has been reported already
+            request.out.release();
+            mRequests.remove(request.image.id);
+            deliver(request, null);
+        } else {
+            mRunning.put(request.tag, request);
+        }
+    }
+
+    /**
+     * Lower values are served first. Visible requests come first, followed by requests in scroll direction and
+     * requests someone is waiting for.
+     */
+    private int getPriority(@NonNull Request request) {
+        int position = request.position;
+        if (position >= mFirstVisible && position <= mLastVisible) return 0;
+
+        int distance;
+        boolean ahead;
+        if (position < mFirstVisible) {
+            distance = mFirstVisible - position;
+            ahead = mScrollingUp;
+        } else {
+            distance = position - mLastVisible;
+            ahead = !mScrollingUp;
+        }
+
+        if (!ahead) distance *= 2;
+        if (request.callbacks.isEmpty()) distance *= 2;
+        return distance;
+    }
+
+    private boolean isInPrefetchRange(int position) {
+        int count = mLastVisible - mFirstVisible + 1;
+        return position >= mFirstVisible - count && position <= mLastVisible + count;
+    }
+
+    @Override
+    public void onPageReceived(String tag) {
+        Request request = mRunning.remove(tag);
+        if (request == null) return;
+
+        // the request stays registered while decoding so that further callbacks are added to it
+        mThumbnailCache.decode(request.image, mThumbnailSize, request.out, (image, bitmap) -> {
+            if (mRequests.get(image.id) == request) mRequests.remove(image.id);
+            deliver(request, bitmap);
+        });
+        schedule();
+    }
+
+    @Override
+    public void onError(String tag, @Nullable String reason, @Nullable Throwable cause) {
+        QEDPageStreamReceiver.super.onError(tag, reason, cause);
+
+        // errors are reported on the download thread
+        mHandler.post(() -> {
+            Request request = mRunning.remove(tag);
+            if (request != null) {
+                request.out.release();
+                mRequests.remove(request.image.id);
+                deliver(request, null);
+            }
+
+            mErrorListener.onError(reason, cause);
+            schedule();
+        });
+    }
+
+    @Override
+    public void onProgressUpdate(String tag, long done, long total) {}
+
+    private void deliver(@NonNull Request request, @Nullable Bitmap bitmap) {
+        if (bitmap != null) request.image.available = true;
+
+        for (ThumbnailCache.Callback callback : request.callbacks) {
+            callback.onThumbnailLoaded(request.image, bitmap);
+        }
+    }
+
+    public interface ErrorListener {
+        void onError(@Nullable String reason, @Nullable Throwable cause);
+    }
+
+    private static class Request {
+        final Image image;
+        final List<ThumbnailCache.Callback> callbacks = new ArrayList<>(1);
+        int position;
+
+        String tag;
+        PooledByteArrayOutputStream out;
+        AsyncLoadQEDPageToStream task;
+
+        Request(Image image) {
+            this.image = image;
+        }
+    }
+}